@@ -0,0 +1,454 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache en memoire des reponses recues du serveur DNS de redirection,
+ * indexe par (nom, type, classe).
+ *
+ * Chaque entree conserve les ressources records recus avec leur TTL reel ;
+ * a la lecture, le TTL retourne est decompte depuis la mise en cache.
+ * Le cache est borne en nombre d'entrees et en octets, l'entree la moins
+ * recemment utilisee est evincee en premier (LRU). Les entrees expirees
+ * sont retirees lorsqu'on les rencontre (a la lecture ou en fin de LRU).
+ *
+ * Les reponses negatives (NXDOMAIN, NODATA) sont aussi conservees, avec
+ * la duree de vie donnee par le SOA de la zone (RFC 2308).
+ *
+ * Avec une fenetre de grace (serve-stale, RFC 8767), une entree expiree
+ * reste en cache pendant cette fenetre : elle n'est plus retournee par get
+ * mais getStale permet de la servir si le serveur DNS ne repond pas.
+ * @author lighta
+ */
+public class AnswerCache {
+	private static final Record[] NO_RECORD = new Record[0];
+
+	/**
+	 * Ressource record en cache (noms decompresses, format wire)
+	 */
+	public static class Record {
+		private final byte[] owner; //nom du record
+		private final int type;
+		private final int clazz;
+		private final long ttl; //TTL recu, en secondes
+		private final byte[] rdata;
+
+		public Record(byte[] owner, int type, int clazz, long ttl, byte[] rdata) {
+			this.owner = owner;
+			this.type = type;
+			this.clazz = clazz;
+			this.ttl = ttl;
+			this.rdata = rdata;
+		}
+
+		public byte[] getOwner() {
+			return owner;
+		}
+
+		public int getType() {
+			return type;
+		}
+
+		public int getClazz() {
+			return clazz;
+		}
+
+		public long getTtl() {
+			return ttl;
+		}
+
+		public byte[] getRdata() {
+			return rdata;
+		}
+	}
+
+	/**
+	 * Reponse en cache pour une question. Une reponse negative (NXDOMAIN ou
+	 * NOERROR sans reponse) n'a pas de records reponse mais garde son RCODE
+	 * et le SOA de la section autorite.
+	 */
+	public static class Entry {
+		private final Record[] answers;
+		private final int rcode; //RCODE de la reponse
+		private final Record[] authority; //SOA des reponses negatives
+		private final long storedAt; //System.nanoTime() a la mise en cache
+		private final long expiresAt;
+		private final long ttl; //duree de vie de l'entree (secondes)
+		private final int size; //estimation de la taille en octets
+		private final AtomicInteger hits = new AtomicInteger(); //pour le rafraichissement anticipe
+		private final AtomicBoolean refreshing = new AtomicBoolean();
+		private volatile boolean upstreamFailed = false; //le serveur n'a pas rafraichi l'entree perimee
+		private volatile long upstreamFailureAt;
+
+		Entry(Record[] answers, int rcode, Record[] authority, long storedAt, long ttlSeconds, int size) {
+			this.answers = answers;
+			this.rcode = rcode;
+			this.authority = authority;
+			this.storedAt = storedAt;
+			this.expiresAt = storedAt + TimeUnit.SECONDS.toNanos(ttlSeconds);
+			this.ttl = ttlSeconds;
+			this.size = size;
+		}
+
+		public Record[] getAnswers() {
+			return answers;
+		}
+
+		public Record[] getAuthority() {
+			return authority;
+		}
+
+		public int getRcode() {
+			return rcode;
+		}
+
+		/**
+		 * @return true pour une reponse negative (NXDOMAIN / NODATA)
+		 */
+		public boolean isNegative() {
+			return answers.length == 0;
+		}
+
+		/**
+		 * @param now : System.nanoTime()
+		 * @return duree de vie restante de l'entree (secondes)
+		 */
+		public long getRemainingTtl(long now) {
+			return Math.max(0, ttl - getAge(now));
+		}
+
+		/**
+		 * @param now : System.nanoTime()
+		 * @return secondes ecoulees depuis la mise en cache
+		 */
+		public long getAge(long now) {
+			return TimeUnit.NANOSECONDS.toSeconds(now - storedAt);
+		}
+
+		/**
+		 * @param record : record de cette entree
+		 * @param now : System.nanoTime()
+		 * @return TTL restant du record (decompte depuis la mise en cache)
+		 */
+		public long getRemainingTtl(Record record, long now) {
+			return Math.max(0, record.ttl - getAge(now));
+		}
+
+		public boolean isExpired(long now) {
+			return now - expiresAt >= 0;
+		}
+
+		public long getExpiresAt() {
+			return expiresAt;
+		}
+
+		/**
+		 * Compte un hit de l'entree
+		 * @param prefetcher : politique de rafraichissement anticipe
+		 * @param now : System.nanoTime()
+		 * @return true si l'entree doit etre rafraichie maintenant
+		 */
+		public boolean claimRefresh(Prefetcher prefetcher, long now) {
+			return prefetcher.claim(hits, refreshing, storedAt, expiresAt, now);
+		}
+
+		/**
+		 * Le serveur DNS n'a pas repondu a temps pour rafraichir cette entree perimee
+		 * @param now : System.nanoTime()
+		 */
+		public void markUpstreamFailure(long now) {
+			upstreamFailureAt = now;
+			upstreamFailed = true;
+		}
+
+		/**
+		 * @param now : System.nanoTime()
+		 * @param windowNanos : duree pendant laquelle un echec est considere recent
+		 * @return true si le serveur a echoue a rafraichir l'entree recemment
+		 */
+		public boolean hasRecentUpstreamFailure(long now, long windowNanos) {
+			return upstreamFailed && now - upstreamFailureAt < windowNanos;
+		}
+	}
+
+	/** Cle du cache : nom en minuscule, type et classe */
+	private static final class Key {
+		private final String name;
+		private final int type;
+		private final int clazz;
+		private final int hash;
+
+		Key(String name, int type, int clazz) {
+			this.name = name;
+			this.type = type;
+			this.clazz = clazz;
+			this.hash = (name.hashCode() * 31 + type) * 31 + clazz;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return k.type == type && k.clazz == clazz && k.name.equals(name);
+		}
+	}
+
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(1024, 0.75f, true); //ordre d'acces = LRU
+	private final int maxEntries;
+	private final long maxBytes;
+	private final long maxTtl; //TTL max en secondes
+	private long bytes = 0; //taille courante
+	private long negativeMinTtl = 0; //bornes des reponses negatives (secondes)
+	private long negativeMaxTtl = 10800;
+	private long staleNanos = 0; //fenetre de grace des entrees expirees (0 = desactive)
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+	private final LongAdder negatives = new LongAdder();
+	private final LongAdder staleServed = new LongAdder();
+
+	/**
+	 * @param maxEntries : nombre max d'entrees
+	 * @param maxBytes : taille max estimee en octets
+	 * @param maxTtl : TTL max accorde a une entree (secondes)
+	 */
+	public AnswerCache(int maxEntries, long maxBytes, long maxTtl) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.maxTtl = maxTtl;
+	}
+
+	/**
+	 * Recherche une reponse valide
+	 * @param name : nom demande (minuscule, sans point final)
+	 * @param type : QTYPE
+	 * @param clazz : QCLASS
+	 * @return l'entree, null si absente ou expiree
+	 */
+	public Entry get(String name, int type, int clazz) {
+		long now = System.nanoTime();
+		Key key = new Key(name, type, clazz);
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.isExpired(now)) {
+				//gardee pendant la fenetre de grace pour getStale
+				if (now - entry.expiresAt >= staleNanos) {
+					remove(key, entry);
+					expirations.increment();
+				}
+				entry = null;
+			}
+			if (entry == null) {
+				misses.increment();
+				return null;
+			}
+			hits.increment();
+			return entry;
+		}
+	}
+
+	/**
+	 * Recherche une reponse expiree encore dans la fenetre de grace
+	 * @param name : nom demande (minuscule, sans point final)
+	 * @param type : QTYPE
+	 * @param clazz : QCLASS
+	 * @return l'entree perimee, null si absente, valide ou trop ancienne
+	 */
+	public Entry getStale(String name, int type, int clazz) {
+		long now = System.nanoTime();
+		Key key = new Key(name, type, clazz);
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry == null || !entry.isExpired(now) || now - entry.expiresAt >= staleNanos)
+				return null;
+			return entry;
+		}
+	}
+
+	/**
+	 * Une reponse perimee a ete servie
+	 */
+	public void recordStaleServed() {
+		staleServed.increment();
+	}
+
+	/**
+	 * @param seconds : duree pendant laquelle une entree expiree peut
+	 * encore etre servie (0 = desactive)
+	 */
+	public void setStaleWindow(long seconds) {
+		this.staleNanos = TimeUnit.SECONDS.toNanos(Math.max(0, seconds));
+	}
+
+	/**
+	 * Ajoute (ou remplace) la reponse d'une question. La duree de vie de
+	 * l'entree est le plus petit TTL des records, borne par maxTtl.
+	 * @param name : nom demande (minuscule, sans point final)
+	 * @param type : QTYPE
+	 * @param clazz : QCLASS
+	 * @param answers : records de la section reponse
+	 * @return l'entree ajoutee, null si rien n'a ete mis en cache (TTL nul)
+	 */
+	public Entry put(String name, int type, int clazz, List<Record> answers) {
+		if (answers.isEmpty())
+			return null;
+		long ttl = maxTtl;
+		int size = 64 + 2 * name.length();
+		for (Record r : answers) {
+			ttl = Math.min(ttl, r.ttl);
+			size += 48 + r.owner.length + r.rdata.length;
+		}
+		if (ttl <= 0 || size > maxBytes)
+			return null;
+		return store(new Key(name, type, clazz),
+				new Entry(answers.toArray(new Record[0]), 0, NO_RECORD, System.nanoTime(), ttl, size));
+	}
+
+	/**
+	 * Ajoute une reponse negative (RFC 2308). Sa duree de vie est le minimum
+	 * entre le TTL du SOA et son champ MINIMUM, bornee par les limites
+	 * negatives du cache.
+	 * @param name : nom demande (minuscule, sans point final)
+	 * @param type : QTYPE
+	 * @param clazz : QCLASS
+	 * @param rcode : 3 (NXDOMAIN) ou 0 (NODATA)
+	 * @param soa : record SOA de la section autorite
+	 * @return l'entree ajoutee, null si rien n'a ete mis en cache
+	 */
+	public Entry putNegative(String name, int type, int clazz, int rcode, Record soa) {
+		byte[] rdata = soa.rdata;
+		if (soa.type != DNSMessageDecoder.TYPE_SOA || rdata.length < 20)
+			return null;
+		int i = rdata.length - 4; //MINIMUM : dernier champ du SOA
+		long minimum = ((rdata[i] & 0xFFL) << 24) | ((rdata[i + 1] & 0xFF) << 16)
+				| ((rdata[i + 2] & 0xFF) << 8) | (rdata[i + 3] & 0xFF);
+		long ttl = Math.min(soa.ttl, minimum);
+		ttl = Math.max(negativeMinTtl, Math.min(negativeMaxTtl, ttl));
+		int size = 64 + 2 * name.length() + 48 + soa.owner.length + rdata.length;
+		if (ttl <= 0 || size > maxBytes)
+			return null;
+		negatives.increment();
+		return store(new Key(name, type, clazz),
+				new Entry(NO_RECORD, rcode, new Record[] { soa }, System.nanoTime(), ttl, size));
+	}
+
+	/**
+	 * Bornes de la duree de vie des reponses negatives
+	 * @param minTtl : duree minimale (secondes)
+	 * @param maxTtl : duree maximale (secondes)
+	 */
+	public void setNegativeTtl(long minTtl, long maxTtl) {
+		this.negativeMinTtl = minTtl;
+		this.negativeMaxTtl = maxTtl;
+	}
+
+	private synchronized Entry store(Key key, Entry entry) {
+		Entry ancienne = entries.put(key, entry);
+		if (ancienne != null)
+			bytes -= ancienne.size;
+		bytes += entry.size;
+		evict(System.nanoTime());
+		return entry;
+	}
+
+	/**
+	 * Retire les entrees les moins recemment utilisees tant que le budget
+	 * est depasse
+	 */
+	private void evict(long now) {
+		Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+		while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+			Entry entry = it.next().getValue();
+			it.remove();
+			bytes -= entry.size;
+			if (entry.isExpired(now))
+				expirations.increment();
+			else
+				evictions.increment();
+		}
+	}
+
+	private void remove(Key key, Entry entry) {
+		entries.remove(key);
+		bytes -= entry.size;
+	}
+
+	/**
+	 * Retire la reponse d'une question (ex : nom ajoute a la zone par --record)
+	 * @param name : nom demande (minuscule, sans point final)
+	 * @param type : QTYPE
+	 * @param clazz : QCLASS
+	 */
+	public synchronized void invalidate(String name, int type, int clazz) {
+		Entry entry = entries.remove(new Key(name, type, clazz));
+		if (entry != null)
+			bytes -= entry.size;
+	}
+
+	/**
+	 * Vide le cache
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public long getExpirations() {
+		return expirations.sum();
+	}
+
+	/**
+	 * @return nombre de reponses perimees servies (serve-stale)
+	 */
+	public long getStaleServed() {
+		return staleServed.sum();
+	}
+
+	/**
+	 * @return nombre de reponses negatives mises en cache
+	 */
+	public long getNegatives() {
+		return negatives.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "AnswerCache[entrees=" + size() + ", octets=" + getBytes() + ", hits=" + getHits()
+				+ ", misses=" + getMisses() + ", evictions=" + getEvictions()
+				+ ", expirations=" + getExpirations() + ", negatives=" + getNegatives()
+				+ ", stale=" + getStaleServed() + "]";
+	}
+}
@@ -0,0 +1,216 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Journal d'ajout asynchrone (write-behind) pour le fichier DNS.
+ * Les lignes a ajouter sont placees dans une file bornee ; un thread unique
+ * les ecrit par lots dans un seul FileChannel ouvert en ajout, lorsque le
+ * lot atteint sa taille maximale ou que le delai de flush est ecoule.
+ * Les appelants ne font donc jamais d'entree/sortie disque.
+ *
+ * Si la file est pleine la ligne est abandonnee (et comptee) plutot que de
+ * bloquer le traitement des requetes. A l'arret de la JVM, les lignes en
+ * attente sont ecrites avant la fermeture du fichier.
+ *
+ * Le journal retient la taille et la date du fichier apres ses ecritures :
+ * la surveillance de la zone (ZoneWatcher) ne recharge pas le fichier pour
+ * des lignes deja presentes dans l'index en memoire. Une modification
+ * exterieure entre deux ecritures n'est pas retenue, elle sera rechargee.
+ * Pendant un rechargement, l'index servi n'est pas encore celui qui
+ * recevra les lignes ecrites : l'etat retenu n'avance qu'a la publication
+ * du nouvel index (setLoaded).
+ * @author lighta
+ */
+public class AnswerJournal implements Runnable {
+	private final static String FIN_DE_LIGNE = "\r\n";
+
+	private final String filename; //fichier DNS
+	private long knownSize = -1; //taille du fichier connue du serveur (ecriture ou chargement)
+	private long knownModified = -1; //date de modification correspondante
+	private boolean reloading = false; //rechargement de la zone en cours
+	private final BlockingQueue<String> file; //lignes en attente d'ecriture
+	private final int batchSize; //nombre max de lignes par ecriture
+	private final long flushNanos; //delai max avant ecriture d'un lot incomplet
+	private final Thread writer;
+	private volatile boolean stop = false;
+
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+
+	/**
+	 * @param filename : fichier ou ajouter les lignes
+	 * @param queueSize : nombre max de lignes en attente
+	 * @param batchSize : nombre max de lignes par ecriture
+	 * @param flushMs : delai max avant l'ecriture d'un lot (ms)
+	 */
+	public AnswerJournal(String filename, int queueSize, int batchSize, long flushMs) {
+		this.filename = filename;
+		this.file = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+		this.batchSize = Math.max(1, batchSize);
+		this.flushNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushMs));
+		this.writer = new Thread(this, "dns-journal");
+		this.writer.setDaemon(true);
+	}
+
+	/**
+	 * Demarre le thread d'ecriture et le flush a l'arret de la JVM
+	 * @return this
+	 */
+	public AnswerJournal start() {
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close, "dns-journal-flush"));
+		return this;
+	}
+
+	/**
+	 * Ajoute une ligne au journal (sans attendre l'ecriture)
+	 * @param ligne : ligne sans fin de ligne
+	 * @return false si la file est pleine ou le journal ferme
+	 */
+	public boolean append(String ligne) {
+		if (stop || !file.offer(ligne)) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void run() {
+		List<String> lot = new ArrayList<>(batchSize);
+		Path path = Paths.get(filename);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			setLoaded(channel.size(), Files.getLastModifiedTime(path).toMillis());
+			while (!stop || !file.isEmpty()) {
+				String premiere = file.poll(flushNanos, TimeUnit.NANOSECONDS);
+				if (premiere == null)
+					continue;
+				//accumule jusqu'a la taille du lot ou l'echeance du premier element
+				lot.add(premiere);
+				long echeance = System.nanoTime() + flushNanos;
+				while (lot.size() < batchSize) {
+					file.drainTo(lot, batchSize - lot.size());
+					long reste = echeance - System.nanoTime();
+					if (lot.size() >= batchSize || reste <= 0 || stop)
+						break;
+					String suivante = file.poll(reste, TimeUnit.NANOSECONDS);
+					if (suivante == null)
+						break;
+					lot.add(suivante);
+				}
+				write(channel, path, lot);
+				lot.clear();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			Log.error("Probleme d'ecriture du journal " + filename + " :", e);
+		}
+	}
+
+	/**
+	 * Ecrit un lot en une seule operation puis force l'ecriture sur disque
+	 */
+	private synchronized void write(FileChannel channel, Path path, List<String> lot) throws IOException {
+		long avant = channel.size();
+		StringBuilder sb = new StringBuilder(lot.size() * 32);
+		for (String ligne : lot) {
+			sb.append(ligne).append(FIN_DE_LIGNE);
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		channel.force(false);
+		if (avant == knownSize && !reloading) {
+			//fichier tel que le serveur le connait, plus nos lignes (deja dans l'index servi)
+			knownSize = channel.size();
+			knownModified = Files.getLastModifiedTime(path).toMillis();
+		}
+		written.addAndGet(lot.size());
+		flushes.incrementAndGet();
+	}
+
+	/**
+	 * @param size : taille actuelle du fichier
+	 * @param modified : date de modification actuelle du fichier (ms)
+	 * @return true si le fichier n'a ete modifie que par le journal depuis
+	 * le dernier chargement
+	 */
+	public synchronized boolean isKnown(long size, long modified) {
+		return size == knownSize && modified == knownModified;
+	}
+
+	/**
+	 * Le fichier a ete (re)charge dans cet etat
+	 * @param size : taille du fichier lu
+	 * @param modified : date de modification du fichier lu (ms)
+	 */
+	public synchronized void setLoaded(long size, long modified) {
+		knownSize = size;
+		knownModified = modified;
+		reloading = false;
+	}
+
+	/**
+	 * Debut d'un rechargement de la zone : les lignes ecrites jusqu'a la
+	 * publication du nouvel index ne changent plus l'etat retenu
+	 */
+	public synchronized void beginReload() {
+		reloading = true;
+	}
+
+	/**
+	 * Rechargement echoue : l'index servi reste celui des lignes ecrites
+	 */
+	public synchronized void abortReload() {
+		reloading = false;
+	}
+
+	/**
+	 * Ecrit les lignes en attente puis arrete le thread d'ecriture
+	 */
+	public void close() {
+		stop = true;
+		try {
+			writer.join(TimeUnit.NANOSECONDS.toMillis(flushNanos) + 5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return nombre de lignes ecrites
+	 */
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	/**
+	 * @return nombre de lignes abandonnees (file pleine)
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return nombre d'ecritures (lots) effectuees
+	 */
+	public long getFlushCount() {
+		return flushes.get();
+	}
+}
@@ -1,6 +1,8 @@
 
-import java.io.FileWriter;
-import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 /***
  * Cette classe est utilise pour enregistrer une reponse
@@ -8,9 +10,38 @@ import java.io.IOException;
  * @author Max (aj98150)
  * Nettoyer pour eviter les erreurs de manipulation
  * @author lighta, Simon
+ * 
+ * Les ecritures passent par un journal asynchrone (AnswerJournal) : l'appel
+ * ne fait pas d'acces disque. Les doublons sont detectes avec l'index en
+ * memoire du fichier au lieu de relire le fichier.
+ *
+ * Un rechargement de la zone relit un fichier ou manquent les lignes encore
+ * dans le journal : elles sont gardees ici et rajoutees au nouvel index
+ * avant sa publication (beginReload puis rebase).
  */
 public class AnswerRecorder {
+	/**
+	 * Ligne confiee au journal
+	 */
+	private static final class Ajout {
+		private final long rang; //numero de la ligne dans le journal (a partir de 1)
+		private final String hostname;
+		private final int adresse;
+
+		Ajout(long rang, String hostname, int adresse) {
+			this.rang = rang;
+			this.hostname = hostname;
+			this.adresse = adresse;
+		}
+	}
+
 	private String filename = null; //path du fichier a utiliser
+	private ZoneStore index = null; //contenu du fichier, pour eviter les doublons
+	private AnswerJournal journal = null; //ecriture differee dans le fichier
+	private final ArrayDeque<Ajout> ajouts = new ArrayDeque<>(); //lignes qu'un rechargement pourrait ne pas lire
+	private long confiees = 0; //lignes confiees au journal
+	private long marque = -1; //lignes ecrites au debut du rechargement en cours, -1 sans rechargement
+	private final List<Consumer<String>> recordListeners = new CopyOnWriteArrayList<>();
 
 	/**
 	 * Construteur
@@ -18,9 +49,21 @@ public class AnswerRecorder {
 	 * 
 	 */
 	public AnswerRecorder(String filename){
-		this.filename = filename;
+		this(filename, null, new AnswerJournal(filename, 8192, 256, 200));
 		//TODO devrait check si on a le droit d'ecriture / lecture dans ce filename
 	}
+	
+	/**
+	 * Construteur
+	 * @param filename : Nom du fichier pour sauvegarder les adressesIP et hostname
+	 * @param index : index en memoire du fichier, null pour ne pas verifier les doublons
+	 * @param journal : journal d'ecriture (demarre par ce constructeur)
+	 */
+	public AnswerRecorder(String filename, ZoneStore index, AnswerJournal journal){
+		this.filename = filename;
+		this.index = index;
+		this.journal = journal.start();
+	}
 		
 	/**
 	 * @return file name
@@ -28,23 +71,117 @@ public class AnswerRecorder {
 	public String getFilename() {
 		return filename;
 	}
+	
+	/**
+	 * Change l'index utilise pour les doublons (apres un rechargement de la zone)
+	 * @param index : nouvel index du fichier
+	 */
+	public synchronized void setIndex(ZoneStore index) {
+		this.index = index;
+	}
+	
+	/**
+	 * @param listener : appele avec le nom de chaque correspondance ajoutee a l'index
+	 */
+	public void addRecordListener(Consumer<String> listener) {
+		recordListeners.add(listener);
+	}
+	
+	/**
+	 * @return le journal d'ecriture
+	 */
+	public AnswerJournal getJournal() {
+		return journal;
+	}
 
 	/**
+	 * Ajoute la correspondance au fichier si elle n'y est pas deja
 	 * @param hostname : NS (ex google.com)
 	 * @param adresseIP : Ip resolvant le NS
 	 */
-	public void StartRecord(String hostname,String adresseIP){
-		if(adresseIP.length() < 7) { //@TODO add proper regex
-			System.out.println("Invalid adresseIP to write ("+adresseIP+")");
+	public synchronized void StartRecord(String hostname,String adresseIP){
+		int adr;
+		try {
+			adr = ZoneStore.parseIPv4(adresseIP);
+		} catch (IllegalArgumentException e) {
+			Log.warn("Invalid adresseIP to write ("+adresseIP+")");
 			return; 	
 		}
-		try {
-			FileWriter writerFichierSource = new FileWriter(filename,true);		
-			writerFichierSource.write(hostname + " " + adresseIP);
-			writerFichierSource.write("\r\n");
-			writerFichierSource.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+		//un seul appelant ecrit la ligne, et un rechargement ne peut pas
+		//changer d'index entre l'ajout et la mise en file
+		if(index != null && !index.add(hostname, adr)) {
+			return; //deja dans le fichier
+		}
+		for (Consumer<String> listener : recordListeners) {
+			listener.accept(hostname);
 		}
+		if(!journal.append(hostname + " " + adresseIP)) {
+			Log.warn("Journal plein, adresse non enregistree ("+hostname+" "+adresseIP+")");
+			return;
+		}
+		ajouts.add(new Ajout(++confiees, hostname, adr));
+		prune();
+	}
+	
+	/**
+	 * Oublie les lignes ecrites dans le fichier avant le debut du
+	 * rechargement en cours (ou deja ecrites, sans rechargement)
+	 */
+	private void prune() {
+		long lues = journal.getWrittenCount();
+		if (marque >= 0)
+			lues = Math.min(lues, marque);
+		while (!ajouts.isEmpty() && ajouts.peekFirst().rang <= lues) {
+			ajouts.pollFirst();
+		}
+	}
+	
+	/**
+	 * Debut d'un rechargement de la zone : les lignes ecrites a partir de
+	 * maintenant ne seront peut-etre pas lues
+	 */
+	public synchronized void beginReload() {
+		marque = journal.getWrittenCount();
+		journal.beginReload();
+	}
+	
+	/**
+	 * Rechargement echoue, l'index courant est garde
+	 */
+	public synchronized void abortReload() {
+		journal.abortReload();
+		marque = -1;
+		prune();
+	}
+	
+	/**
+	 * Fin d'un rechargement, avant la publication du nouvel index : les
+	 * lignes ecrites apres le debut de la lecture du fichier, ou encore
+	 * en file, y sont rajoutees, puis il sert pour les doublons
+	 * @param zone : nouvel index
+	 * @param taille : taille du fichier lu
+	 * @param modifie : date de modification du fichier lu (ms)
+	 * @return l'index a publier
+	 */
+	public synchronized ZoneLookup rebase(ZoneLookup zone, long taille, long modifie) {
+		if (zone instanceof ZoneStore) {
+			ZoneStore nouvel = (ZoneStore) zone;
+			for (Ajout a : ajouts) {
+				if (a.rang > marque)
+					nouvel.add(a.hostname, a.adresse);
+			}
+			index = nouvel;
+		}
+		journal.setLoaded(taille, modifie);
+		marque = -1;
+		prune();
+		return zone;
+	}
+	
+	/**
+	 * Ecrit les enregistrements en attente et ferme le journal
+	 */
+	public void close() {
+		journal.close();
 	}
 }
@@ -0,0 +1,72 @@
+/**
+ * Section reponse pre-encodee (format wire) pour un nom de la zone locale :
+ * un record A par adresse, dont le nom est un pointeur vers la question
+ * (0xC00C). Elle est construite une seule fois par nom puis copiee telle
+ * quelle dans chaque reponse ; seul le TTL peut etre modifie au besoin.
+ *
+ * Le tableau n'est jamais modifie apres la construction, un template peut
+ * donc etre partage entre les threads.
+ * @author lighta
+ */
+public class AnswerTemplate {
+	public final static int RECORD_SIZE = 16; //pointeur (2) + type, classe, TTL, RDLENGTH (10) + ip (4)
+	public final static int TTL_OFFSET = 6; //position du TTL dans un record
+	public final static long DEFAULT_TTL = 0x00011A6C; //TTL historique des reponses de la zone
+
+	private final byte[] records; //section reponse encodee
+	private final int count; //nombre de records
+
+	private AnswerTemplate(byte[] records, int count) {
+		this.records = records;
+		this.count = count;
+	}
+
+	/**
+	 * Construit le template des records A d'un nom
+	 * @param adresses : ip (v4) sous forme d'entier
+	 * @param ttl : TTL des records
+	 * @return le template, ou null s'il n'y a pas d'adresse
+	 */
+	public static AnswerTemplate forAddresses(int[] adresses, long ttl) {
+		if (adresses.length == 0)
+			return null;
+		byte[] records = new byte[adresses.length * RECORD_SIZE];
+		int j = 0;
+		for (int adr : adresses) {
+			records[j] = (byte) 0xC0; //pointeur vers le nom de la question
+			records[j + 1] = (byte) 0x0C;
+			j = UDPAnswerPacketCreator.writeRecord(records, j + 2, DNSMessageDecoder.TYPE_A,
+					DNSMessageDecoder.CLASS_IN, ttl, new byte[] { (byte) (adr >>> 24), (byte) (adr >>> 16),
+							(byte) (adr >>> 8), (byte) adr });
+		}
+		return new AnswerTemplate(records, adresses.length);
+	}
+
+	/**
+	 * @see #forAddresses(int[], long), avec le TTL par defaut
+	 */
+	public static AnswerTemplate forAddresses(int[] adresses) {
+		return forAddresses(adresses, DEFAULT_TTL);
+	}
+
+	/**
+	 * @return nombre de records
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return taille de la section reponse encodee
+	 */
+	public int getLength() {
+		return records.length;
+	}
+
+	/**
+	 * @return section reponse encodee (ne pas modifier)
+	 */
+	byte[] getRecords() {
+		return records;
+	}
+}
@@ -0,0 +1,55 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reserve de ByteBuffer directs de taille fixe, reutilises d'un paquet a
+ * l'autre pour eviter une allocation (et une copie dans un buffer natif)
+ * a chaque reception.
+ * @author lighta
+ */
+public class BufferPool {
+	private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger available = new AtomicInteger();
+	private final int bufferSize; //taille de chaque buffer
+	private final int maxPooled; //nombre max de buffers conserves
+
+	/**
+	 * @param bufferSize : taille de chaque buffer
+	 * @param maxPooled : nombre max de buffers gardes en reserve
+	 */
+	public BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * @return un buffer vide (position 0, limit = capacite)
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = free.poll();
+		if (buffer == null)
+			return ByteBuffer.allocateDirect(bufferSize);
+		available.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Rend un buffer a la reserve (ignore si la reserve est pleine)
+	 * @param buffer : buffer obtenu par acquire()
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.capacity() != bufferSize || !buffer.isDirect())
+			return;
+		if (available.incrementAndGet() > maxPooled) {
+			available.decrementAndGet();
+			return;
+		}
+		free.offer(buffer);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
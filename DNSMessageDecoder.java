@@ -0,0 +1,481 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Decodeur reutilisable d'un message DNS (en-tete + question).
+ * Les champs sont lus directement dans le tableau de bytes avec des masques,
+ * sans conversion en chaine de bits ni allocation : une instance peut etre
+ * reutilisee pour chaque paquet recu par le meme thread.
+ *
+ * Le decodeur permet aussi de parcourir les ressources records qui suivent
+ * la question (reponse, autorite, additionnel) avec readRecord(). L'OPT
+ * EDNS0 de la section additionnelle n'est cherche qu'a la demande.
+ *
+ * NB : une instance n'est pas thread safe
+ * @author lighta
+ */
+public class DNSMessageDecoder {
+	public final static int HEADER_SIZE = 12; //taille de l'en-tete
+	public final static int MAX_NAME_LENGTH = 255; //taille max d'un nom (RFC 1035)
+
+	public final static int TYPE_A = 1;
+	public final static int TYPE_NS = 2;
+	public final static int TYPE_CNAME = 5;
+	public final static int TYPE_SOA = 6;
+	public final static int TYPE_PTR = 12;
+	public final static int TYPE_MX = 15;
+	public final static int TYPE_TXT = 16;
+	public final static int TYPE_AAAA = 28;
+	public final static int TYPE_OPT = 41; //pseudo-record EDNS0 (RFC 6891)
+	public final static int TYPE_ANY = 255;
+	public final static int CLASS_IN = 1;
+
+	private byte[] data = null; //paquet en cours de decodage
+	private int offset; //debut du message dans data
+	private int length; //taille du message
+	private byte[] scratch = null; //copie des buffers directs
+
+	//en-tete
+	private int id;
+	private int flags;
+	private int qdcount, ancount, nscount, arcount;
+
+	//question
+	private final char[] qnameChars = new char[MAX_NAME_LENGTH];
+	private int qnameLength; //nombre de caracteres dans qnameChars
+	private String qname = null; //construit a la demande
+	private int qtype, qclass;
+	private int questionEnd; //offset (relatif au message) apres la section question
+	private int optOffset; //offset de l'OPT, -1 s'il n'y en a pas, NOT_SEARCHED avant la recherche
+	private int optLength; //taille de l'OPT (options comprises)
+	private final static int NOT_SEARCHED = -2;
+
+	//dernier ressource record lu par readRecord
+	private int rrType, rrClass;
+	private long rrTtl;
+	private int rdataOffset, rdLength;
+
+	/**
+	 * Decode l'en-tete et la premiere question du message
+	 * @param data : paquet recu
+	 * @param offset : debut du message dans data
+	 * @param length : taille du message
+	 * @return false si le message est trop court ou mal forme
+	 */
+	public boolean decode(byte[] data, int offset, int length) {
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+		this.qname = null;
+		this.qnameLength = 0;
+		this.qtype = 0;
+		this.qclass = 0;
+		this.optOffset = NOT_SEARCHED;
+		this.arcount = 0;
+		if (length < HEADER_SIZE)
+			return false;
+
+		id = readU16(0);
+		flags = readU16(2);
+		qdcount = readU16(4);
+		ancount = readU16(6);
+		nscount = readU16(8);
+		arcount = readU16(10);
+
+		questionEnd = HEADER_SIZE;
+		if (qdcount == 0)
+			return true;
+
+		//QNAME : suite de labels prefixes par leur longueur, termine par 0
+		int pos = HEADER_SIZE;
+		int len;
+		while (true) {
+			if (pos >= length)
+				return false;
+			if ((len = readU8(pos)) == 0)
+				break;
+			if ((len & 0xC0) != 0 || pos + 1 + len >= length)
+				return false; //pas de compression dans une question
+			if (qnameLength + len + 1 > MAX_NAME_LENGTH)
+				return false;
+			if (qnameLength > 0)
+				qnameChars[qnameLength++] = '.';
+			int debut = offset + pos + 1;
+			for (int i = 0; i < len; i++) {
+				int c = data[debut + i] & 0xFF;
+				if (c >= 'A' && c <= 'Z')
+					c += 'a' - 'A';
+				qnameChars[qnameLength++] = (char) c;
+			}
+			pos += len + 1;
+		}
+		pos++; //octet 0 de fin
+		if (pos + 4 > length)
+			return false;
+		qtype = readU16(pos);
+		qclass = readU16(pos + 2);
+		pos += 4;
+
+		//saute les questions suivantes (rare)
+		for (int i = 1; i < qdcount; i++) {
+			pos = skipName(pos);
+			if (pos < 0 || pos + 4 > length)
+				return false;
+			pos += 4;
+		}
+		questionEnd = pos;
+		return true;
+	}
+
+	/**
+	 * Decode un message contenu dans un ByteBuffer (de position a limit).
+	 * Les buffers directs sont copies dans un tableau interne reutilise.
+	 * @param buffer : message recu
+	 * @return false si le message est mal forme
+	 */
+	public boolean decode(ByteBuffer buffer) {
+		int len = buffer.remaining();
+		if (buffer.hasArray())
+			return decode(buffer.array(), buffer.arrayOffset() + buffer.position(), len);
+		if (scratch == null || scratch.length < len)
+			scratch = new byte[Math.max(len, 512)];
+		buffer.duplicate().get(scratch, 0, len);
+		return decode(scratch, 0, len);
+	}
+
+	/**
+	 * @return le tableau contenant le message decode
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * @return l'offset du message dans getData()
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return taille du message decode
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public int getFlags() {
+		return flags;
+	}
+
+	/**
+	 * @return true si QR = 1 (reponse)
+	 */
+	public boolean isResponse() {
+		return (flags & 0x8000) != 0;
+	}
+
+	public int getOpcode() {
+		return (flags >>> 11) & 0x0F;
+	}
+
+	public boolean isAuthoritative() {
+		return (flags & 0x0400) != 0;
+	}
+
+	public boolean isTruncated() {
+		return (flags & 0x0200) != 0;
+	}
+
+	public boolean isRecursionDesired() {
+		return (flags & 0x0100) != 0;
+	}
+
+	public boolean isRecursionAvailable() {
+		return (flags & 0x0080) != 0;
+	}
+
+	public int getRcode() {
+		return flags & 0x0F;
+	}
+
+	public int getQuestionCount() {
+		return qdcount;
+	}
+
+	public int getAnswerCount() {
+		return ancount;
+	}
+
+	public int getAuthorityCount() {
+		return nscount;
+	}
+
+	public int getAdditionalCount() {
+		return arcount;
+	}
+
+	/**
+	 * Le nom est retourne en minuscule et sans point final.
+	 * La chaine n'est construite qu'au premier appel pour ce message.
+	 * @return le nom demande dans la question
+	 */
+	public String getQName() {
+		if (qname == null)
+			qname = new String(qnameChars, 0, qnameLength);
+		return qname;
+	}
+
+	/**
+	 * @return nombre de caracteres du nom demande
+	 */
+	public int getQNameLength() {
+		return qnameLength;
+	}
+
+	/**
+	 * Acces au nom demande sans allocation
+	 * @param i : index du caractere
+	 * @return le caractere (minuscule)
+	 */
+	public char getQNameChar(int i) {
+		return qnameChars[i];
+	}
+
+	public int getQType() {
+		return qtype;
+	}
+
+	public int getQClass() {
+		return qclass;
+	}
+
+	/**
+	 * @return offset (relatif au debut du message) suivant la section question,
+	 * c'est-a-dire le debut de la section reponse
+	 */
+	public int getQuestionEnd() {
+		return questionEnd;
+	}
+
+	/**
+	 * Cherche l'OPT (EDNS0) dans la section additionnelle, une seule fois
+	 * par message. Les champs du dernier record lu par readRecord() ne sont
+	 * pas modifies.
+	 * @return offset (relatif au message) de l'OPT, -1 s'il n'y en a pas
+	 */
+	public int getOptOffset() {
+		if (optOffset == NOT_SEARCHED)
+			optOffset = searchOpt();
+		return optOffset;
+	}
+
+	/**
+	 * @return taille de l'OPT (options comprises), 0 s'il n'y en a pas
+	 */
+	public int getOptLength() {
+		return getOptOffset() < 0 ? 0 : optLength;
+	}
+
+	/**
+	 * @return taille UDP max annoncee par l'OPT, 0 si le message n'a pas d'OPT
+	 */
+	public int getUdpPayloadSize() {
+		int opt = getOptOffset();
+		return opt < 0 ? 0 : readU16(opt + 3);
+	}
+
+	private int searchOpt() {
+		if (arcount == 0)
+			return -1;
+		int avant = ancount + nscount; //records des sections reponse et autorite
+		int pos = questionEnd;
+		for (int i = 0; i < avant + arcount; i++) {
+			int debut = pos;
+			pos = skipName(pos);
+			if (pos < 0 || pos + 10 > length)
+				return -1;
+			int fin = pos + 10 + readU16(pos + 8);
+			if (fin > length)
+				return -1;
+			if (i >= avant && readU16(pos) == TYPE_OPT && pos == debut + 1) { //nom racine
+				optLength = fin - debut;
+				return debut;
+			}
+			pos = fin;
+		}
+		return -1;
+	}
+
+	/**
+	 * Lit le ressource record qui commence a pos. Les champs sont ensuite
+	 * accessibles par getRecordType(), getRecordTtl(), getRdataOffset()...
+	 * @param pos : offset (relatif au message) du record
+	 * @return offset du record suivant, -1 si le record est mal forme
+	 */
+	public int readRecord(int pos) {
+		pos = skipName(pos);
+		if (pos < 0 || pos + 10 > length)
+			return -1;
+		rrType = readU16(pos);
+		rrClass = readU16(pos + 2);
+		rrTtl = readU32(pos + 4);
+		rdLength = readU16(pos + 8);
+		rdataOffset = pos + 10;
+		if (rdataOffset + rdLength > length)
+			return -1;
+		return rdataOffset + rdLength;
+	}
+
+	public int getRecordType() {
+		return rrType;
+	}
+
+	public int getRecordClass() {
+		return rrClass;
+	}
+
+	public long getRecordTtl() {
+		return rrTtl;
+	}
+
+	/**
+	 * @return offset (relatif au message) des donnees du dernier record lu
+	 */
+	public int getRdataOffset() {
+		return rdataOffset;
+	}
+
+	public int getRdLength() {
+		return rdLength;
+	}
+
+	/**
+	 * Copie un nom en format wire non compresse (les pointeurs sont suivis)
+	 * @param pos : offset (relatif au message) du nom
+	 * @param dest : tableau de destination
+	 * @param destOff : offset d'ecriture
+	 * @return nombre d'octets ecrits, -1 si le nom est mal forme ou trop long
+	 */
+	public int copyName(int pos, byte[] dest, int destOff) {
+		int ecrits = 0;
+		int sauts = 0; //protection contre les boucles de pointeurs
+		while (pos < length) {
+			int len = readU8(pos);
+			if ((len & 0xC0) == 0xC0) {
+				if (pos + 1 >= length || ++sauts > 64)
+					return -1;
+				pos = ((len & 0x3F) << 8) | readU8(pos + 1);
+				continue;
+			}
+			if ((len & 0xC0) != 0 || pos + 1 + len > length || ecrits + len + 1 > MAX_NAME_LENGTH
+					|| destOff + ecrits + len + 1 > dest.length)
+				return -1;
+			System.arraycopy(data, offset + pos, dest, destOff + ecrits, len + 1);
+			ecrits += len + 1;
+			if (len == 0)
+				return ecrits;
+			pos += len + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Copie les donnees du dernier record lu en decompressant les noms
+	 * qu'elles contiennent (NS, CNAME, PTR, MX, SOA), afin de pouvoir les
+	 * reutiliser dans un autre message.
+	 * @return les donnees du record, null si elles sont mal formees
+	 */
+	public byte[] copyRdata() {
+		byte[] tmp;
+		int n;
+		switch (rrType) {
+		case TYPE_NS:
+		case TYPE_CNAME:
+		case TYPE_PTR:
+			tmp = new byte[MAX_NAME_LENGTH];
+			n = copyName(rdataOffset, tmp, 0);
+			return n < 0 ? null : Arrays.copyOf(tmp, n);
+		case TYPE_MX:
+			if (rdLength < 3)
+				return null;
+			tmp = new byte[2 + MAX_NAME_LENGTH];
+			tmp[0] = data[offset + rdataOffset];
+			tmp[1] = data[offset + rdataOffset + 1];
+			n = copyName(rdataOffset + 2, tmp, 2);
+			return n < 0 ? null : Arrays.copyOf(tmp, n + 2);
+		case TYPE_SOA:
+			tmp = new byte[2 * MAX_NAME_LENGTH + 20];
+			int mname = copyName(rdataOffset, tmp, 0);
+			int pos = skipName(rdataOffset);
+			if (mname < 0 || pos < 0)
+				return null;
+			int rname = copyName(pos, tmp, mname);
+			pos = skipName(pos);
+			if (rname < 0 || pos < 0 || pos + 20 > rdataOffset + rdLength)
+				return null;
+			System.arraycopy(data, offset + pos, tmp, mname + rname, 20);
+			return Arrays.copyOf(tmp, mname + rname + 20);
+		default:
+			return Arrays.copyOfRange(data, offset + rdataOffset, offset + rdataOffset + rdLength);
+		}
+	}
+
+	/**
+	 * Saute un nom (labels et/ou pointeur de compression)
+	 * @param pos : offset (relatif au message) du nom
+	 * @return offset apres le nom, -1 si mal forme
+	 */
+	public int skipName(int pos) {
+		while (pos < length) {
+			int len = readU8(pos);
+			if (len == 0)
+				return pos + 1;
+			if ((len & 0xC0) == 0xC0)
+				return pos + 2 <= length ? pos + 2 : -1; //pointeur : fin du nom
+			if ((len & 0xC0) != 0)
+				return -1;
+			pos += len + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param pos : offset relatif au message
+	 * @return octet non signe
+	 */
+	public int readU8(int pos) {
+		return data[offset + pos] & 0xFF;
+	}
+
+	/**
+	 * @param pos : offset relatif au message
+	 * @return entier 16 bits non signe (big endian)
+	 */
+	public int readU16(int pos) {
+		int i = offset + pos;
+		return ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+	}
+
+	/**
+	 * @param pos : offset relatif au message
+	 * @return entier 32 bits (big endian)
+	 */
+	public int readInt(int pos) {
+		int i = offset + pos;
+		return ((data[i] & 0xFF) << 24) | ((data[i + 1] & 0xFF) << 16)
+				| ((data[i + 2] & 0xFF) << 8) | (data[i + 3] & 0xFF);
+	}
+
+	/**
+	 * @param pos : offset relatif au message
+	 * @return entier 32 bits non signe (big endian)
+	 */
+	public long readU32(int pos) {
+		return readInt(pos) & 0xFFFFFFFFL;
+	}
+}
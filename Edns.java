@@ -0,0 +1,159 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Extensions EDNS0 (RFC 6891) : pseudo-record OPT de la section additionnelle.
+ *
+ * Le champ classe de l'OPT annonce la taille max d'une reponse UDP que
+ * l'emetteur accepte. Le serveur repond jusqu'a min(taille du client,
+ * --edns-max), 512 octets sans OPT (RFC 1035), sans limite en TCP ; une
+ * reponse plus grande est tronquee (bit TC) et le client reessaie en TCP.
+ *
+ * Les reponses gardees en cache ne contiennent pas d'OPT : il est ajoute a
+ * l'envoi, seulement si la requete du client en avait un.
+ * @author lighta
+ */
+public final class Edns {
+	public final static int OPT_SIZE = 11; //nom racine, type, classe (taille UDP), TTL (flags), RDLENGTH
+	public final static int MIN_PAYLOAD = 512; //sans EDNS (RFC 1035)
+	public final static int DEFAULT_MAX_PAYLOAD = 1232; //sans fragmentation IPv6 (DNS flag day 2020)
+
+	private Edns() {
+	}
+
+	/**
+	 * Taille max de la reponse a un demandeur
+	 * @param clientPayload : taille annoncee par l'OPT du client, 0 sans OPT
+	 * @param maxPayload : --edns-max, 0 si EDNS est desactive
+	 * @param channelMax : taille max du canal (65535 en TCP)
+	 * @return taille max de la reponse
+	 */
+	public static int responseLimit(int clientPayload, int maxPayload, int channelMax) {
+		if (channelMax > MIN_PAYLOAD)
+			return channelMax; //TCP : pas de limite UDP
+		if (clientPayload <= 0 || maxPayload <= 0)
+			return MIN_PAYLOAD;
+		return Math.max(MIN_PAYLOAD, Math.min(clientPayload, maxPayload));
+	}
+
+	/**
+	 * Ecrit un OPT (version 0, sans option) et incremente ARCOUNT
+	 * @param packet : message, l'OPT est ecrit a pos
+	 * @param start : debut du message dans packet
+	 * @param pos : position d'ecriture
+	 * @param payload : taille UDP annoncee
+	 * @return position apres l'OPT
+	 */
+	public static int writeOpt(byte[] packet, int start, int pos, int payload) {
+		packet[pos] = 0; //nom racine
+		packet[pos + 1] = 0;
+		packet[pos + 2] = (byte) DNSMessageDecoder.TYPE_OPT;
+		packet[pos + 3] = (byte) (payload >>> 8);
+		packet[pos + 4] = (byte) payload;
+		Arrays.fill(packet, pos + 5, pos + OPT_SIZE, (byte) 0); //RCODE etendu, version, flags, RDLENGTH
+		int arcount = ((packet[start + 10] & 0xFF) << 8 | (packet[start + 11] & 0xFF)) + 1;
+		packet[start + 10] = (byte) (arcount >>> 8);
+		packet[start + 11] = (byte) arcount;
+		return pos + OPT_SIZE;
+	}
+
+	/**
+	 * @param packet : message complet
+	 * @param payload : taille UDP annoncee
+	 * @return copie du message avec un OPT a la fin
+	 */
+	public static byte[] appendOpt(byte[] packet, int payload) {
+		byte[] message = Arrays.copyOf(packet, packet.length + OPT_SIZE);
+		writeOpt(message, 0, packet.length, payload);
+		return message;
+	}
+
+	/**
+	 * Ajoute un OPT a la fin d'un message encode dans un buffer (de position
+	 * a limit), sans allocation. Le buffer doit avoir OPT_SIZE octets de
+	 * plus que limit.
+	 * @param packet : message, limit est avancee apres l'OPT
+	 * @param payload : taille UDP annoncee
+	 */
+	public static void appendOpt(ByteBuffer packet, int payload) {
+		int start = packet.position();
+		int pos = packet.limit();
+		packet.limit(pos + OPT_SIZE);
+		packet.put(pos, (byte) 0);
+		packet.putShort(pos + 1, (short) DNSMessageDecoder.TYPE_OPT);
+		packet.putShort(pos + 3, (short) payload);
+		packet.putInt(pos + 5, 0);
+		packet.putShort(pos + 9, (short) 0);
+		packet.putShort(start + 10, (short) (packet.getShort(start + 10) + 1));
+	}
+
+	/**
+	 * Requete vers le serveur de redirection : en-tete et question de la
+	 * requete, suivis de notre OPT (les autres records ne sont pas relayes)
+	 * @param requete : message du client
+	 * @param offset : debut du message
+	 * @param questionEnd : fin de la section question (relative au message)
+	 * @param payload : taille UDP annoncee au serveur
+	 * @return la requete a envoyer
+	 */
+	public static byte[] upstreamQuery(byte[] requete, int offset, int questionEnd, int payload) {
+		byte[] message = new byte[questionEnd + OPT_SIZE];
+		System.arraycopy(requete, offset, message, 0, questionEnd);
+		Arrays.fill(message, 6, DNSMessageDecoder.HEADER_SIZE, (byte) 0); //ANCOUNT, NSCOUNT, ARCOUNT
+		writeOpt(message, 0, questionEnd, payload);
+		return message;
+	}
+
+	/**
+	 * Prepare la reponse du serveur de redirection pour un demandeur :
+	 * l'OPT du serveur est remplace par le notre si le client en avait un,
+	 * retire sinon, et la reponse est tronquee si elle depasse la taille
+	 * permise. Le message est modifie sur place (l'OPT est le dernier record
+	 * en pratique), il est copie seulement s'il faut ajouter l'OPT ou tronquer.
+	 * @param reponse : reponse du serveur decodee
+	 * @param clientPayload : taille annoncee par le client, 0 sans OPT
+	 * @param maxPayload : --edns-max (> 0)
+	 * @param limit : taille max de la reponse au demandeur
+	 * @return message a envoyer
+	 */
+	public static ByteBuffer forClient(DNSMessageDecoder reponse, int clientPayload, int maxPayload, int limit) {
+		byte[] data = reponse.getData();
+		int offset = reponse.getOffset();
+		int longueur = reponse.getLength();
+		int opt = reponse.getOptOffset();
+		int additionnels = reponse.getAdditionalCount();
+		boolean avecOpt = clientPayload > 0;
+		boolean dernier = opt >= 0 && opt + reponse.getOptLength() == longueur;
+		if (opt < 0 || dernier) {
+			int base = opt < 0 ? longueur : opt; //message sans OPT
+			int arcount = opt < 0 ? additionnels : additionnels - 1;
+			if (!avecOpt && base <= limit) {
+				data[offset + 10] = (byte) (arcount >>> 8);
+				data[offset + 11] = (byte) arcount;
+				return ByteBuffer.wrap(data, offset, base);
+			}
+			if (avecOpt && base + OPT_SIZE <= limit) {
+				data[offset + 10] = (byte) (arcount >>> 8);
+				data[offset + 11] = (byte) arcount;
+				if (opt >= 0) {
+					writeOpt(data, offset, offset + opt, maxPayload);
+					return ByteBuffer.wrap(data, offset, opt + OPT_SIZE);
+				}
+				byte[] message = Arrays.copyOfRange(data, offset, offset + base + OPT_SIZE);
+				writeOpt(message, 0, base, maxPayload);
+				return ByteBuffer.wrap(message);
+			}
+		} else if (longueur <= limit) {
+			return ByteBuffer.wrap(data, offset, longueur); //OPT au milieu des additionnels : relayee telle quelle
+		}
+		//trop grande pour le demandeur : en-tete et question seulement, bit TC
+		int questionEnd = reponse.getQuestionEnd();
+		byte[] message = new byte[questionEnd + (avecOpt ? OPT_SIZE : 0)];
+		System.arraycopy(data, offset, message, 0, questionEnd);
+		message[2] |= 0x02; //TC
+		Arrays.fill(message, 6, DNSMessageDecoder.HEADER_SIZE, (byte) 0);
+		if (avecOpt)
+			writeOpt(message, 0, questionEnd, maxPayload);
+		return ByteBuffer.wrap(message);
+	}
+}
@@ -0,0 +1,236 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Micro-benchmarks des chemins critiques du serveur, a la maniere de JMH :
+ * iterations de chauffe puis iterations mesurees de duree fixe, resultat
+ * de chaque operation consomme (pour que le JIT ne l'elimine pas), debit
+ * en ops/s avec son ecart et allocation par operation (equivalent du
+ * profileur gc de JMH, via ThreadMXBean.getThreadAllocatedBytes).
+ *
+ * Cas mesures :
+ * 	decode : decodage d'une requete (DNSMessageDecoder, comme UDPReceiver)
+ * 	lookup : QueryFinder.StartResearch et le template de la zone, pour des
+ * 	         zones generees de --zones lignes
+ * 	encode : UDPAnswerPacketCreator.CreateAnswerPacket, de 1 a 16 reponses
+ * 	record : AnswerRecorder.StartRecord (noms deja connus apres la chauffe)
+ *
+ * Usage : java HotPathBenchmark [--zones=1000,100000] [--iterations=5]
+ * [--time-ms=1000] [cas ...]   (ou ServeurDNS bench ...)
+ * Une zone de 10M lignes (--zones=10000000) demande plusieurs Go de memoire.
+ * @author lighta
+ */
+public class HotPathBenchmark {
+
+	/**
+	 * Operation mesuree
+	 */
+	interface Operation {
+		/**
+		 * @param i : numero de l'appel
+		 * @return resultat a consommer
+		 */
+		long run(int i) throws Exception;
+	}
+
+	private static volatile long sink; //consommation des resultats
+	private static final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	private int iterations = 5;
+	private long iterationMs = 1000;
+	private int[] zones = { 1000, 100000 };
+	private final static List<String> CAS = Arrays.asList("decode", "lookup", "encode", "record"); //cas connus
+	private final List<String> cas = new ArrayList<>();
+
+	public static void main(String[] args) {
+		HotPathBenchmark bench = new HotPathBenchmark();
+		try {
+			for (String arg : args) {
+				if (arg.startsWith("--zones="))
+					bench.zones = Arrays.stream(arg.substring(8).split(",")).mapToInt(Integer::parseInt).toArray();
+				else if (arg.startsWith("--iterations="))
+					bench.iterations = Integer.parseInt(arg.substring(13));
+				else if (arg.startsWith("--time-ms="))
+					bench.iterationMs = Long.parseLong(arg.substring(10));
+				else if (CAS.contains(arg))
+					bench.cas.add(arg);
+				else
+					throw new IllegalArgumentException("Argument inconnu : " + arg);
+			}
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			System.out.println("Usage: HotPathBenchmark [--zones=1000,100000] [--iterations=5] [--time-ms=1000]"
+					+ " [decode|lookup|encode|record ...]");
+			System.exit(1);
+		}
+		Log.setLevel(Log.ERROR);
+		try {
+			bench.run();
+		} catch (Exception e) {
+			Log.error("Probleme du benchmark :", e);
+			System.exit(1);
+		}
+	}
+
+	private boolean selected(String nom) {
+		return cas.isEmpty() || cas.contains(nom);
+	}
+
+	public void run() throws Exception {
+		System.out.println(String.format(Locale.ROOT, "%-36s %14s %9s %10s", "Benchmark", "ops/s", "erreur", "B/op"));
+		byte[] requete = query("www.example.com", 0x1234);
+		if (selected("decode"))
+			benchDecode(requete);
+		if (selected("lookup"))
+			for (int lignes : zones) {
+				benchLookup(lignes);
+			}
+		if (selected("encode"))
+			benchEncode(requete);
+		if (selected("record"))
+			benchRecord();
+	}
+
+	private void benchDecode(byte[] requete) throws Exception {
+		DNSMessageDecoder decodeur = new DNSMessageDecoder();
+		measure("decode", i -> decodeur.decode(requete, 0, requete.length) ? decodeur.getQType() : -1);
+	}
+
+	private void benchLookup(int lignes) throws Exception {
+		File fichier = File.createTempFile("bench-zone", ".txt");
+		fichier.deleteOnExit();
+		try (BufferedWriter out = new BufferedWriter(new FileWriter(fichier))) {
+			for (int i = 0; i < lignes; i++) {
+				out.write(name(i) + " 10." + ((i >>> 16) & 0xFF) + "." + ((i >>> 8) & 0xFF) + "." + (i & 0xFF));
+				out.newLine();
+			}
+		}
+		QueryFinder finder = new QueryFinder(fichier.getPath());
+		//noms presents, tires au hasard dans la zone
+		Random random = new Random(42);
+		String[] noms = new String[4096];
+		for (int i = 0; i < noms.length; i++) {
+			noms[i] = name(random.nextInt(lignes));
+		}
+		measure("lookup.StartResearch[" + lignes + "]", i -> finder.StartResearch(noms[i & 4095]).size());
+		measure("lookup.template[" + lignes + "]", i -> finder.getZone().template(noms[i & 4095]).getCount());
+		fichier.delete();
+	}
+
+	private void benchEncode(byte[] requete) throws Exception {
+		DNSMessageDecoder decodeur = new DNSMessageDecoder();
+		decodeur.decode(requete, 0, requete.length);
+		ByteBuffer out = ByteBuffer.allocateDirect(UDPReceiver.BUF_SIZE);
+		UDPAnswerPacketCreator creator = UDPAnswerPacketCreator.getInstance();
+		for (int n = 1; n <= 16; n *= 2) {
+			int[] adresses = new int[n];
+			List<String> liste = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) {
+				adresses[i] = 0x0A000001 + i;
+				liste.add(ZoneStore.formatIPv4(adresses[i]));
+			}
+			AnswerTemplate template = AnswerTemplate.forAddresses(adresses);
+			measure("encode.template[" + n + "]", i -> {
+				out.clear();
+				return creator.CreateAnswerPacket(decodeur, template, out);
+			});
+			measure("encode.liste[" + n + "]", i -> creator.CreateAnswerPacket(requete, liste).length);
+		}
+	}
+
+	private void benchRecord() throws Exception {
+		File fichier = File.createTempFile("bench-record", ".txt");
+		fichier.deleteOnExit();
+		ZoneStore index = new ZoneStore(fichier.getPath());
+		AnswerRecorder recorder = new AnswerRecorder(fichier.getPath(), index,
+				new AnswerJournal(fichier.getPath(), 8192, 256, 200));
+		String[] noms = new String[4096];
+		for (int i = 0; i < noms.length; i++) {
+			noms[i] = name(i);
+		}
+		measure("record", i -> {
+			recorder.StartRecord(noms[i & 4095], "10.0.0.1");
+			return i;
+		});
+		recorder.close();
+		fichier.delete();
+	}
+
+	private static String name(int i) {
+		return "host" + i + ".bench.test";
+	}
+
+	/**
+	 * Requete standard de type A (format wire)
+	 */
+	static byte[] query(String nom, int id) {
+		ByteBuffer b = ByteBuffer.allocate(DNSMessageDecoder.HEADER_SIZE + nom.length() + 6);
+		b.putShort((short) id).putShort((short) 0x0100).putShort((short) 1).putShort((short) 0)
+				.putShort((short) 0).putShort((short) 0);
+		for (String label : nom.split("\\.")) {
+			b.put((byte) label.length()).put(label.getBytes());
+		}
+		b.put((byte) 0).putShort((short) DNSMessageDecoder.TYPE_A).putShort((short) DNSMessageDecoder.CLASS_IN);
+		return b.array();
+	}
+
+	/**
+	 * Chauffe puis mesure une operation et affiche le resultat
+	 */
+	private void measure(String nom, Operation op) throws Exception {
+		int appel = 0;
+		for (int it = 0; it < iterations; it++) {
+			appel = iteration(op, appel, null);
+		}
+		double[] debits = new double[iterations];
+		long[] mesure = new long[2]; //operations, octets alloues
+		long operations = 0, octets = 0;
+		for (int it = 0; it < iterations; it++) {
+			long debut = System.nanoTime();
+			appel = iteration(op, appel, mesure);
+			debits[it] = mesure[0] * 1e9 / (System.nanoTime() - debut);
+			operations += mesure[0];
+			octets += mesure[1];
+		}
+		double moyenne = Arrays.stream(debits).average().orElse(0);
+		double ecart = Math.sqrt(Arrays.stream(debits).map(d -> (d - moyenne) * (d - moyenne)).sum()
+				/ Math.max(1, iterations - 1));
+		System.out.println(String.format(Locale.ROOT, "%-36s %14.0f %8.1f%% %10.1f", nom, moyenne,
+				moyenne == 0 ? 0 : 100 * ecart / moyenne, operations == 0 ? 0 : (double) octets / operations));
+	}
+
+	/**
+	 * Appelle l'operation par lots pendant iterationMs
+	 * @param mesure : recoit le nombre d'operations et les octets alloues (null pendant la chauffe)
+	 * @return numero du prochain appel
+	 */
+	private int iteration(Operation op, int appel, long[] mesure) throws Exception {
+		long tid = Thread.currentThread().getId();
+		long fin = System.nanoTime() + iterationMs * 1000000;
+		long alloue = THREADS.getThreadAllocatedBytes(tid);
+		long n = 0;
+		long resultat = 0;
+		do {
+			for (int k = 0; k < 1024; k++) {
+				resultat += op.run(appel++);
+			}
+			n += 1024;
+		} while (System.nanoTime() < fin);
+		sink = resultat;
+		if (mesure != null) {
+			mesure[0] = n;
+			mesure[1] = THREADS.getThreadAllocatedBytes(tid) - alloue;
+		}
+		return appel;
+	}
+}
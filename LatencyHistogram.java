@@ -0,0 +1,142 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogramme de latences log-lineaire (a la HdrHistogram) : les valeurs
+ * (en microsecondes) sont regroupees par puissance de 2, chaque puissance
+ * etant divisee en SUB_BUCKETS cases egales. La precision relative est donc
+ * constante (environ 6 %) de la microseconde a plusieurs heures, avec un
+ * tableau fixe de moins de 1000 compteurs.
+ *
+ * L'enregistrement est un calcul d'index et un increment atomique, sans
+ * verrou ni allocation. Les percentiles sont calcules sur une copie des
+ * compteurs (legerement incoherente si des valeurs arrivent pendant la
+ * lecture, ce qui est sans importance pour des statistiques).
+ * @author lighta
+ */
+public class LatencyHistogram {
+	private final static int SUB_BITS = 4;
+	private final static int SUB_BUCKETS = 1 << SUB_BITS; //cases par puissance de 2
+	private final static int MAX_EXPONENT = 40; //2^40 us, environ 12 jours
+	private final static int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS + SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder total = new LongAdder(); //somme des valeurs (us)
+
+	/**
+	 * Case d'une valeur : valeur directe sous 2 * SUB_BUCKETS, puis les
+	 * SUB_BITS + 1 bits de poids fort
+	 */
+	static int index(long micros) {
+		if (micros < 2 * SUB_BUCKETS)
+			return (int) Math.max(0, micros);
+		int exposant = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+		long haut = Math.min(micros >>> (exposant - SUB_BITS), 2 * SUB_BUCKETS - 1);
+		return (exposant - SUB_BITS) * SUB_BUCKETS + (int) haut;
+	}
+
+	/**
+	 * @return plus petite valeur (us) de la case
+	 */
+	static long lowerBound(int index) {
+		if (index < 2 * SUB_BUCKETS)
+			return index;
+		int exposant = index / SUB_BUCKETS + SUB_BITS - 1;
+		return (long) (index % SUB_BUCKETS + SUB_BUCKETS) << (exposant - SUB_BITS);
+	}
+
+	/**
+	 * @return plus grande valeur (us) de la case
+	 */
+	static long upperBound(int index) {
+		return index + 1 < BUCKETS ? lowerBound(index + 1) - 1 : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Enregistre une duree
+	 * @param nanos : duree mesuree avec System.nanoTime()
+	 */
+	public void record(long nanos) {
+		long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		counts.incrementAndGet(index(micros));
+		total.add(micros);
+	}
+
+	/**
+	 * Copie des compteurs pour le calcul des statistiques
+	 */
+	public Snapshot snapshot() {
+		long[] copie = new long[BUCKETS];
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			copie[i] = counts.get(i);
+			n += copie[i];
+		}
+		return new Snapshot(copie, n, total.sum());
+	}
+
+	/**
+	 * Etat de l'histogramme a un instant
+	 */
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+
+		private Snapshot(long[] counts, long count, long sum) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+		}
+
+		/**
+		 * @return nombre de valeurs
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return moyenne (us)
+		 */
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * @param p : percentile (0 a 100)
+		 * @return plus grande valeur (us) de la case du percentile, 0 si vide
+		 */
+		public long getPercentile(double p) {
+			if (count == 0)
+				return 0;
+			long rang = Math.max(1, (long) Math.ceil(count * Math.min(100, Math.max(0, p)) / 100));
+			long cumul = 0;
+			for (int i = 0; i < counts.length; i++) {
+				cumul += counts[i];
+				if (cumul >= rang)
+					return upperBound(i);
+			}
+			return upperBound(counts.length - 1);
+		}
+
+		/**
+		 * @return valeur max (us, precision de la case), 0 si vide
+		 */
+		public long getMax() {
+			for (int i = counts.length - 1; i >= 0; i--) {
+				if (counts[i] > 0)
+					return upperBound(i);
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return "n=" + count + " moy=" + Math.round(getMean()) + "us p50=" + getPercentile(50)
+					+ "us p90=" + getPercentile(90) + "us p99=" + getPercentile(99)
+					+ "us p99.9=" + getPercentile(99.9) + "us max=" + getMax() + "us";
+		}
+	}
+}
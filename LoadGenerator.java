@@ -0,0 +1,430 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generateur de charge (a la maniere de dnsperf) : envoie des requetes a
+ * un debit cible sur l'interface de bouclage et mesure le taux de reponse,
+ * les pertes et les percentiles de latence.
+ *
+ * Les noms viennent d'un fichier de requetes (une requete "nom [type]" par
+ * ligne, format dnsperf) ou sont tires selon une loi de Zipf parmi --names
+ * noms generes : quelques noms tres demandes et une longue traine, comme un
+ * vrai trafic, ce qui rend le comportement des caches realiste.
+ *
+ * Avec --mode, le serveur est lance dans le meme processus, avec un
+ * StubResolver comme serveur de redirection (delai et pertes
+ * configurables) :
+ * 	forward : zone vide, les noms sont rediriges (ou servis par le cache)
+ * 	redirect : redirection seulement (RedirectionSeulement)
+ * 	zone : tous les noms sont dans le fichier DNS
+ * Sans --mode, la charge est envoyee a --server.
+ *
+ * Usage : java LoadGenerator [--mode=forward|redirect|zone] [--server=127.0.0.1:53]
+ * [--port=5300] [--qps=1000] [--duration=10] [--names=10000] [--zipf=1.0]
+ * [--file=requetes.txt] [--sockets=1] [--timeout-ms=2000] [--stub-delay-ms=0]
+ * [--stub-loss=0] [options du serveur...]   (ou ServeurDNS load ...)
+ * @author lighta
+ */
+public class LoadGenerator {
+	private final static int IDS = 1 << 16; //identifiants par socket
+
+	private String mode = null;
+	private String server = "127.0.0.1:53";
+	private int port = 5300;
+	private double qps = 1000;
+	private long durationSeconds = 10;
+	private int names = 10000;
+	private double zipf = 1.0;
+	private String file = null;
+	private int sockets = 1;
+	private long timeoutMs = 2000;
+	private long stubDelayMs = 0;
+	private double stubLoss = 0;
+	private final List<String> serverOptions = new ArrayList<>();
+
+	private final LatencyHistogram latences = new LatencyHistogram();
+	private final LongAdder received = new LongAdder();
+	private final LongAdder unexpected = new LongAdder(); //reponses tardives ou inconnues
+	private final LongAdder[] rcodes = new LongAdder[16];
+	private volatile boolean stop = false;
+
+	public static void main(String[] args) {
+		LoadGenerator load = new LoadGenerator();
+		try {
+			load.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			System.out.println("Usage: LoadGenerator [--mode=forward|redirect|zone] [--server=127.0.0.1:53] [--port=5300]"
+					+ " [--qps=1000] [--duration=10] [--names=10000] [--zipf=1.0] [--file=requetes.txt] [--sockets=1]"
+					+ " [--timeout-ms=2000] [--stub-delay-ms=0] [--stub-loss=0] [options du serveur...]");
+			System.exit(1);
+		}
+		try {
+			load.run();
+		} catch (Exception e) {
+			Log.error("Probleme de l'essai de charge :", e);
+			System.exit(1);
+		}
+	}
+
+	private void parse(String[] args) {
+		for (String arg : args) {
+			int egal = arg.indexOf('=');
+			String key = egal < 0 ? arg : arg.substring(0, egal);
+			String value = egal < 0 ? "true" : arg.substring(egal + 1);
+			try {
+				switch (key) {
+				case "--mode":
+					if (!value.equals("forward") && !value.equals("redirect") && !value.equals("zone"))
+						throw new IllegalArgumentException("Mode inconnu : " + value);
+					mode = value;
+					break;
+				case "--server":
+					server = value;
+					break;
+				case "--port":
+					port = Integer.parseInt(value);
+					break;
+				case "--qps":
+					qps = Double.parseDouble(value);
+					break;
+				case "--duration":
+					durationSeconds = Long.parseLong(value);
+					break;
+				case "--names":
+					names = Integer.parseInt(value);
+					break;
+				case "--zipf":
+					zipf = Double.parseDouble(value);
+					break;
+				case "--file":
+					file = value;
+					break;
+				case "--sockets":
+					sockets = Math.max(1, Integer.parseInt(value));
+					break;
+				case "--timeout-ms":
+					timeoutMs = Long.parseLong(value);
+					break;
+				case "--stub-delay-ms":
+					stubDelayMs = Long.parseLong(value);
+					break;
+				case "--stub-loss":
+					stubLoss = Double.parseDouble(value);
+					break;
+				default:
+					if (!arg.startsWith("--"))
+						throw new IllegalArgumentException("Argument inconnu : " + arg);
+					serverOptions.add(arg); //option du serveur lance avec --mode
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Valeur invalide : " + arg);
+			}
+		}
+		if (qps <= 0 || durationSeconds <= 0)
+			throw new IllegalArgumentException("--qps et --duration doivent etre positifs");
+	}
+
+	public void run() throws Exception {
+		for (int i = 0; i < rcodes.length; i++) {
+			rcodes[i] = new LongAdder();
+		}
+		List<byte[]> requetes = file != null ? readQueries(file) : generateNames();
+		double[] cdf = file != null ? null : zipfCdf(requetes.size(), zipf);
+
+		InetSocketAddress cible = UpstreamPool.parse(server, 53).get(0);
+		StubResolver stub = null;
+		if (mode != null) {
+			if (!serverOptions.stream().anyMatch(o -> o.startsWith("--log-level")))
+				Log.setLevel(Log.WARN);
+			stub = new StubResolver(0, stubDelayMs, stubLoss, 300).start();
+			cible = startServer(stub, requetes);
+			System.out.println("Serveur lance (" + mode + ") sur " + cible + ", redirection vers " + stub.getAddress());
+		}
+
+		DatagramChannel[] canaux = new DatagramChannel[sockets];
+		AtomicLongArray[] envois = new AtomicLongArray[sockets]; //System.nanoTime() d'envoi par identifiant, 0 = libre
+		Thread[] receveurs = new Thread[sockets];
+		for (int s = 0; s < sockets; s++) {
+			canaux[s] = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+			canaux[s].connect(cible);
+			envois[s] = new AtomicLongArray(IDS);
+			DatagramChannel canal = canaux[s];
+			AtomicLongArray envoi = envois[s];
+			receveurs[s] = new Thread(() -> receive(canal, envoi), "dns-load-" + s);
+			receveurs[s].setDaemon(true);
+			receveurs[s].start();
+		}
+		if (mode != null)
+			waitReady(canaux[0], envois[0], requetes.get(0));
+
+		System.out.println(String.format(Locale.ROOT, "Envoi de %.0f requetes/s pendant %d s (%d noms%s)", qps,
+				durationSeconds, requetes.size(), cdf != null ? ", zipf " + zipf : ", fichier " + file));
+		received.reset();
+		unexpected.reset();
+		for (LongAdder r : rcodes) {
+			r.reset();
+		}
+
+		// *Envoi au debit cible : la n-ieme requete part a debut + n / qps
+		long intervalle = (long) (TimeUnit.SECONDS.toNanos(1) / qps);
+		long debut = System.nanoTime();
+		long fin = debut + TimeUnit.SECONDS.toNanos(durationSeconds);
+		long envoyees = 0, ecrasees = 0;
+		int[] prochainId = new int[sockets];
+		ByteBuffer tampon = ByteBuffer.allocate(512);
+		while (true) {
+			long echeance = debut + envoyees * intervalle;
+			if (echeance >= fin)
+				break;
+			long attente = echeance - System.nanoTime();
+			if (attente > 50000)
+				LockSupport.parkNanos(attente);
+			else if (attente > 0)
+				continue; //attente active pour les intervalles courts
+			byte[] requete = requetes.get(cdf == null ? (int) (envoyees % requetes.size()) : sample(cdf));
+			int s = (int) (envoyees % sockets);
+			int id = prochainId[s];
+			prochainId[s] = (id + 1) & (IDS - 1);
+			if (envois[s].getAndSet(id, System.nanoTime()) != 0)
+				ecrasees++; //identifiant reutilise avant la reponse (perdue)
+			tampon.clear();
+			tampon.put(requete).flip();
+			tampon.putShort(0, (short) id);
+			canaux[s].write(tampon);
+			envoyees++;
+		}
+		long finEnvoi = System.nanoTime();
+		Thread.sleep(timeoutMs); //reponses en retard
+		stop = true;
+		for (DatagramChannel canal : canaux) {
+			canal.close();
+		}
+
+		report(envoyees, ecrasees, (finEnvoi - debut) / 1e9);
+		if (stub != null)
+			System.out.println(stub);
+		System.exit(0);
+	}
+
+	/**
+	 * Reception des reponses d'un socket : latence par identifiant
+	 */
+	private void receive(DatagramChannel canal, AtomicLongArray envois) {
+		ByteBuffer reception = ByteBuffer.allocate(65535);
+		try {
+			while (!stop) {
+				reception.clear();
+				try {
+					canal.read(reception);
+				} catch (PortUnreachableException e) {
+					continue; //serveur pas encore demarre (ICMP)
+				}
+				long now = System.nanoTime();
+				if (reception.position() < DNSMessageDecoder.HEADER_SIZE)
+					continue;
+				int id = reception.getShort(0) & 0xFFFF;
+				long envoi = envois.getAndSet(id, 0);
+				if (envoi == 0) {
+					unexpected.increment();
+					continue;
+				}
+				latences.record(now - envoi);
+				received.increment();
+				rcodes[reception.get(3) & 0x0F].increment();
+			}
+		} catch (IOException e) {
+			//socket ferme a la fin de l'essai
+		}
+	}
+
+	/**
+	 * Lance le serveur dans ce processus, avec le serveur simule comme redirection
+	 * @return adresse du serveur
+	 */
+	private InetSocketAddress startServer(StubResolver stub, List<byte[]> requetes) throws IOException {
+		File zone = File.createTempFile("load-zone", ".txt");
+		zone.deleteOnExit();
+		if (mode.equals("zone")) {
+			//tous les noms dans la zone
+			try (BufferedWriter out = new BufferedWriter(new FileWriter(zone))) {
+				int i = 0;
+				for (byte[] requete : requetes) {
+					out.write(questionName(requete) + " 10.1." + ((i >>> 8) & 0xFF) + "." + (i & 0xFF));
+					out.newLine();
+					i++;
+				}
+			}
+		}
+		UDPReceiver serveur = new UDPReceiver();
+		serveur.setport(port);
+		serveur.setSERVER_DNS("127.0.0.1:" + stub.getAddress().getPort());
+		serveur.setDNSFile(zone.getPath());
+		serveur.setRedirectionSeulement(mode.equals("redirect"));
+		serveur.setConfig(ServerConfig.parse(serverOptions.toArray(new String[0])));
+		serveur.setDaemon(true);
+		serveur.start();
+		return new InetSocketAddress("127.0.0.1", port);
+	}
+
+	/**
+	 * Attend que le serveur reponde (5 s au plus)
+	 */
+	private void waitReady(DatagramChannel canal, AtomicLongArray envois, byte[] requete) throws Exception {
+		ByteBuffer tampon = ByteBuffer.allocate(512);
+		long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (received.sum() == 0) {
+			if (System.nanoTime() > limite)
+				throw new IOException("Le serveur ne repond pas");
+			tampon.clear();
+			tampon.put(requete).flip();
+			tampon.putShort(0, (short) (IDS - 1));
+			envois.set(IDS - 1, System.nanoTime());
+			try {
+				canal.write(tampon);
+			} catch (PortUnreachableException e) {
+				//serveur pas encore demarre
+			}
+			Thread.sleep(100);
+		}
+		envois.set(IDS - 1, 0);
+	}
+
+	private void report(long envoyees, long ecrasees, double secondes) {
+		long recues = received.sum();
+		long perdues = Math.max(0, envoyees - recues);
+		LatencyHistogram.Snapshot l = latences.snapshot();
+		System.out.println(String.format(Locale.ROOT, "Requetes envoyees : %d (%.1f/s)", envoyees, envoyees / secondes));
+		System.out.println(String.format(Locale.ROOT, "Reponses recues   : %d (%.1f/s)", recues, recues / secondes));
+		System.out.println(String.format(Locale.ROOT, "Perdues           : %d (%.2f%%)%s", perdues,
+				envoyees == 0 ? 0 : 100.0 * perdues / envoyees,
+				ecrasees > 0 ? ", dont " + ecrasees + " identifiants reutilises (augmenter --sockets)" : ""));
+		if (unexpected.sum() > 0)
+			System.out.println("Reponses tardives ou inconnues : " + unexpected.sum());
+		System.out.println("Latence (us)      : p50=" + l.getPercentile(50) + " p90=" + l.getPercentile(90)
+				+ " p99=" + l.getPercentile(99) + " p99.9=" + l.getPercentile(99.9) + " max=" + l.getMax()
+				+ String.format(Locale.ROOT, " moyenne=%.0f", l.getMean()));
+		StringBuilder sb = new StringBuilder("RCODE             :");
+		for (int i = 0; i < rcodes.length; i++) {
+			if (rcodes[i].sum() > 0)
+				sb.append(' ').append(i).append('=').append(rcodes[i].sum());
+		}
+		System.out.println(sb);
+	}
+
+	/**
+	 * Noms generes : name<rang>.load.test, le rang 0 etant le plus demande
+	 */
+	private List<byte[]> generateNames() {
+		List<byte[]> requetes = new ArrayList<>(names);
+		for (int i = 0; i < Math.max(1, names); i++) {
+			requetes.add(HotPathBenchmark.query("name" + i + ".load.test", 0));
+		}
+		return requetes;
+	}
+
+	/**
+	 * Lit un fichier de requetes : "nom [type]" par ligne (# : commentaire)
+	 */
+	private static List<byte[]> readQueries(String filename) throws IOException {
+		List<byte[]> requetes = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+			String ligne;
+			while ((ligne = reader.readLine()) != null) {
+				String[] champs = ligne.trim().split("\\s+");
+				if (champs[0].isEmpty() || champs[0].startsWith("#"))
+					continue;
+				String nom = champs[0].endsWith(".") ? champs[0].substring(0, champs[0].length() - 1) : champs[0];
+				byte[] requete = HotPathBenchmark.query(nom, 0);
+				int type = champs.length > 1 ? parseType(champs[1]) : DNSMessageDecoder.TYPE_A;
+				requete[requete.length - 4] = (byte) (type >>> 8);
+				requete[requete.length - 3] = (byte) type;
+				requetes.add(requete);
+			}
+		}
+		if (requetes.isEmpty())
+			throw new IOException("Aucune requete dans " + filename);
+		return requetes;
+	}
+
+	private static int parseType(String type) {
+		switch (type.toUpperCase(Locale.ROOT)) {
+		case "A":
+			return 1;
+		case "NS":
+			return 2;
+		case "CNAME":
+			return 5;
+		case "SOA":
+			return 6;
+		case "PTR":
+			return 12;
+		case "MX":
+			return 15;
+		case "TXT":
+			return 16;
+		case "AAAA":
+			return 28;
+		case "ANY":
+			return 255;
+		default:
+			return Integer.parseInt(type);
+		}
+	}
+
+	/**
+	 * @return nom de la question d'une requete (format texte)
+	 */
+	private static String questionName(byte[] requete) {
+		StringBuilder sb = new StringBuilder();
+		int i = DNSMessageDecoder.HEADER_SIZE;
+		while (requete[i] != 0) {
+			if (sb.length() > 0)
+				sb.append('.');
+			sb.append(new String(requete, i + 1, requete[i] & 0xFF));
+			i += (requete[i] & 0xFF) + 1;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Fonction de repartition de la loi de Zipf : P(rang k) proportionnelle a 1 / (k+1)^s
+	 */
+	private static double[] zipfCdf(int n, double s) {
+		double[] cdf = new double[n];
+		double somme = 0;
+		for (int k = 0; k < n; k++) {
+			somme += 1 / Math.pow(k + 1, s);
+			cdf[k] = somme;
+		}
+		for (int k = 0; k < n; k++) {
+			cdf[k] /= somme;
+		}
+		return cdf;
+	}
+
+	/**
+	 * @return rang tire selon la fonction de repartition
+	 */
+	private static int sample(double[] cdf) {
+		int i = Arrays.binarySearch(cdf, ThreadLocalRandom.current().nextDouble());
+		return Math.min(cdf.length - 1, i < 0 ? -i - 1 : i);
+	}
+}
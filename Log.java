@@ -0,0 +1,193 @@
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Journalisation du serveur, par niveau (DEBUG, INFO, WARN, ERROR).
+ *
+ * Le niveau est verifie avant tout : un message sous le niveau courant ne
+ * coute qu'une lecture. Pour ne pas construire la chaine inutilement, les
+ * messages concatenes du chemin des requetes sont precedes de isDebug().
+ *
+ * Les messages ne sont pas ecrits par le thread appelant : ils sont places
+ * dans un anneau borne (file multi-producteurs sans verrou, une sequence
+ * par case) et ecrits par le thread "dns-log". Si l'anneau est plein le
+ * message est perdu et compte, le traitement des requetes n'attend jamais
+ * la console. WARN et ERROR vont sur System.err, les autres sur System.out.
+ * @author lighta
+ */
+public final class Log implements Runnable {
+	public final static int DEBUG = 0;
+	public final static int INFO = 1;
+	public final static int WARN = 2;
+	public final static int ERROR = 3;
+	public final static int OFF = 4;
+
+	private final static int CAPACITY = 8192; //puissance de 2
+	private final static int MASK = CAPACITY - 1;
+	private final static long IDLE_NANOS = 1000000; //attente du thread quand l'anneau est vide
+
+	private static volatile int level = INFO;
+
+	private final String[] messages = new String[CAPACITY];
+	private final int[] levels = new int[CAPACITY];
+	private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY); //etat de chaque case
+	private final AtomicLong tail = new AtomicLong(); //prochaine case a remplir
+	private long head = 0; //prochaine case a ecrire (thread dns-log seulement)
+	private final LongAdder dropped = new LongAdder();
+	private final Thread thread;
+
+	/** Holder (thread safe) */
+	private static class SingletonHolder
+	{
+		/** Instance unique non preinitialisee */
+		private final static Log instance = new Log();
+	}
+
+	private Log() {
+		for (int i = 0; i < CAPACITY; i++) {
+			sequences.set(i, i);
+		}
+		thread = new Thread(this, "dns-log");
+		thread.setDaemon(true);
+		thread.start();
+		//ecrire les derniers messages a l'arret du programme
+		Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "dns-log-flush"));
+	}
+
+	/**
+	 * @param l : DEBUG, INFO, WARN, ERROR ou OFF
+	 */
+	public static void setLevel(int l) {
+		level = l;
+	}
+
+	/**
+	 * @param name : debug, info, warn, error ou off
+	 * @return le niveau correspondant
+	 * @throws IllegalArgumentException si le niveau est inconnu
+	 */
+	public static int parseLevel(String name) {
+		switch (name) {
+		case "debug":
+			return DEBUG;
+		case "info":
+			return INFO;
+		case "warn":
+			return WARN;
+		case "error":
+			return ERROR;
+		case "off":
+			return OFF;
+		default:
+			throw new IllegalArgumentException("Niveau de journalisation inconnu : " + name);
+		}
+	}
+
+	public static boolean isDebug() {
+		return level <= DEBUG;
+	}
+
+	public static boolean isEnabled(int l) {
+		return level <= l;
+	}
+
+	public static void debug(String message) {
+		if (level <= DEBUG)
+			SingletonHolder.instance.append(DEBUG, message);
+	}
+
+	public static void info(String message) {
+		if (level <= INFO)
+			SingletonHolder.instance.append(INFO, message);
+	}
+
+	public static void warn(String message) {
+		if (level <= WARN)
+			SingletonHolder.instance.append(WARN, message);
+	}
+
+	public static void error(String message) {
+		if (level <= ERROR)
+			SingletonHolder.instance.append(ERROR, message);
+	}
+
+	/**
+	 * Erreur avec la pile d'appels de l'exception
+	 */
+	public static void error(String message, Throwable e) {
+		if (level > ERROR)
+			return;
+		StringWriter pile = new StringWriter();
+		e.printStackTrace(new PrintWriter(pile));
+		SingletonHolder.instance.append(ERROR, message + System.lineSeparator() + pile.toString().trim());
+	}
+
+	/**
+	 * @return nombre de messages perdus (anneau plein)
+	 */
+	public static long getDroppedCount() {
+		return SingletonHolder.instance.dropped.sum();
+	}
+
+	/**
+	 * Place un message dans l'anneau (perdu si l'anneau est plein)
+	 */
+	private void append(int l, String message) {
+		long position = tail.get();
+		while (true) {
+			int index = (int) (position & MASK);
+			long difference = sequences.get(index) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1))
+					break;
+				position = tail.get();
+			} else if (difference < 0) {
+				dropped.increment(); //plein
+				return;
+			} else {
+				position = tail.get();
+			}
+		}
+		int index = (int) (position & MASK);
+		messages[index] = message;
+		levels[index] = l;
+		sequences.set(index, position + 1); //publie la case
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			if (!drain())
+				LockSupport.parkNanos(this, IDLE_NANOS);
+		}
+	}
+
+	/**
+	 * Ecrit les messages publies
+	 * @return false si l'anneau etait vide
+	 */
+	private synchronized boolean drain() {
+		boolean ecrit = false;
+		while (true) {
+			int index = (int) (head & MASK);
+			if (sequences.get(index) != head + 1)
+				break;
+			String message = messages[index];
+			int l = levels[index];
+			messages[index] = null;
+			sequences.set(index, head + CAPACITY); //case libre pour le tour suivant
+			head++;
+			(l >= WARN ? System.err : System.out).println(message);
+			ecrit = true;
+		}
+		if (ecrit) {
+			System.out.flush();
+			System.err.flush();
+		}
+		return ecrit;
+	}
+}
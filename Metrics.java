@@ -0,0 +1,120 @@
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Mesures du serveur : compteurs de requetes par origine de la reponse et
+ * histogrammes de latence par etape du traitement.
+ *
+ * Les etapes mesurees :
+ * 	parse : decodage de l'en-tete et de la question
+ * 	lookup : recherche dans les caches et dans la zone (une mesure par
+ * 	         structure consultee)
+ * 	encode : construction de la reponse
+ * 	send : envoi du paquet
+ * 	upstream : temps de reponse du serveur DNS de redirection
+ * 	total : de la reception du paquet a l'envoi de la reponse (pour une
+ * 	        requete redirigee, de l'envoi au serveur a la reponse relayee)
+ *
+ * Tout l'enregistrement passe par des LongAdder et des increments
+ * atomiques : aucun verrou sur le chemin des requetes.
+ * @author lighta
+ */
+public class Metrics {
+	public final static int PARSE = 0;
+	public final static int LOOKUP = 1;
+	public final static int ENCODE = 2;
+	public final static int SEND = 3;
+	public final static int UPSTREAM = 4;
+	public final static int TOTAL = 5;
+	private final static String[] STAGES = { "parse", "lookup", "encode", "send", "upstream", "total" };
+
+	public final static int QUERIES = 0; //requetes recues
+	public final static int INVALID = 1; //paquets invalides
+	public final static int THROTTLED = 2; //requetes limitees (debit du client)
+	public final static int RESPONSE_CACHE = 3; //reponses copiees du cache encode
+	public final static int ANSWER_CACHE = 4; //reponses construites depuis le cache
+	public final static int ZONE = 5; //reponses de la zone locale
+	public final static int FORWARDED = 6; //requetes redirigees (ou attachees a une requete en attente)
+	public final static int UPSTREAM_ANSWERS = 7; //reponses du serveur relayees
+	public final static int UPSTREAM_FAILURES = 8; //requetes abandonnees sans reponse du serveur
+	public final static int STALE = 9; //reponses perimees servies (serve-stale)
+	private final static String[] COUNTERS = { "queries", "invalid", "throttled", "response-cache", "answer-cache",
+			"zone", "forwarded", "upstream-answers", "upstream-failures", "stale" };
+
+	private final LatencyHistogram[] stages = new LatencyHistogram[STAGES.length];
+	private final LongAdder[] counters = new LongAdder[COUNTERS.length];
+	private final long startedAt = System.nanoTime();
+	private long lastQueries = 0; //pour le debit depuis le dernier rapport
+	private long lastReportAt = startedAt;
+
+	public Metrics() {
+		for (int i = 0; i < stages.length; i++) {
+			stages[i] = new LatencyHistogram();
+		}
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Enregistre la duree d'une etape
+	 * @param stage : PARSE, LOOKUP, ENCODE, SEND, UPSTREAM ou TOTAL
+	 * @param nanos : duree (System.nanoTime())
+	 */
+	public void record(int stage, long nanos) {
+		stages[stage].record(nanos);
+	}
+
+	/**
+	 * Incremente un compteur
+	 * @param counter : QUERIES, INVALID, ...
+	 */
+	public void count(int counter) {
+		counters[counter].increment();
+	}
+
+	public long get(int counter) {
+		return counters[counter].sum();
+	}
+
+	/**
+	 * @param stage : PARSE, LOOKUP, ...
+	 * @return etat de l'histogramme de l'etape
+	 */
+	public LatencyHistogram.Snapshot getLatency(int stage) {
+		return stages[stage].snapshot();
+	}
+
+	private static String ratio(long n, long total) {
+		return total == 0 ? "0.000" : String.format(Locale.ROOT, "%.3f", (double) n / total);
+	}
+
+	/**
+	 * Rapport texte : debit, compteurs, taux de reponse par origine et
+	 * latences par etape
+	 */
+	public synchronized String report() {
+		long now = System.nanoTime();
+		long requetes = get(QUERIES);
+		double uptime = Math.max(1e-9, (now - startedAt) / 1e9);
+		double intervalle = Math.max(1e-9, (now - lastReportAt) / 1e9);
+		StringBuilder sb = new StringBuilder();
+		sb.append("uptime ").append(TimeUnit.NANOSECONDS.toSeconds(now - startedAt)).append("s\n");
+		sb.append("qps ").append(String.format(Locale.ROOT, "%.1f", (requetes - lastQueries) / intervalle))
+				.append(" (moyenne ").append(String.format(Locale.ROOT, "%.1f", requetes / uptime)).append(")\n");
+		lastQueries = requetes;
+		lastReportAt = now;
+		for (int i = 0; i < COUNTERS.length; i++) {
+			sb.append("count.").append(COUNTERS[i]).append(' ').append(get(i)).append('\n');
+		}
+		sb.append("ratio.response-cache ").append(ratio(get(RESPONSE_CACHE), requetes)).append('\n');
+		sb.append("ratio.answer-cache ").append(ratio(get(ANSWER_CACHE), requetes)).append('\n');
+		sb.append("ratio.zone ").append(ratio(get(ZONE), requetes)).append('\n');
+		sb.append("ratio.forwarded ").append(ratio(get(FORWARDED), requetes)).append('\n');
+		for (int i = 0; i < STAGES.length; i++) {
+			sb.append("latency.").append(STAGES[i]).append(' ').append(stages[i].snapshot()).append('\n');
+		}
+		return sb.toString();
+	}
+}
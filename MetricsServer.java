@@ -0,0 +1,65 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Point d'acces local aux mesures du serveur : un petit serveur HTTP sur
+ * l'interface de bouclage qui repond a GET /metrics par le rapport texte
+ * (ex : curl http://127.0.0.1:8053/metrics).
+ *
+ * Le rapport est construit a la demande, dans le thread du serveur HTTP :
+ * le traitement des requetes DNS n'est jamais ralenti par une lecture.
+ * @author lighta
+ */
+public class MetricsServer {
+	private final HttpServer server;
+
+	/**
+	 * @param port : port d'ecoute sur 127.0.0.1
+	 * @param report : construit le rapport texte
+	 * @throws IOException si le port ne peut etre ouvert
+	 */
+	public MetricsServer(int port, Supplier<String> report) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/metrics", echange -> {
+			try {
+				byte[] corps = report.get().getBytes(StandardCharsets.UTF_8);
+				echange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+				echange.sendResponseHeaders(200, corps.length);
+				try (OutputStream out = echange.getResponseBody()) {
+					out.write(corps);
+				}
+			} finally {
+				echange.close();
+			}
+		});
+	}
+
+	/**
+	 * Demarre le serveur HTTP (thread du serveur)
+	 * @return this
+	 */
+	public MetricsServer start() {
+		server.start();
+		return this;
+	}
+
+	/**
+	 * @return adresse d'ecoute
+	 */
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+
+	/**
+	 * Arrete le serveur HTTP
+	 */
+	public void close() {
+		server.stop(0);
+	}
+}
@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transport UDP base sur NIO : DatagramChannel non bloquant, Selector et
+ * buffers directs reutilises (BufferPool).
+ *
+ * Avec plusieurs listeners, chacun ouvre son propre DatagramChannel sur le
+ * meme port avec SO_REUSEPORT et a son propre thread de reception : le noyau
+ * repartit alors les paquets entre les sockets (un par coeur).
+ * Une requete redirigee part par le socket qui l'a recue, mais rien ne
+ * garantit que la reponse du serveur DNS revienne sur ce socket : le noyau
+ * la distribue comme n'importe quel paquet du port. Elle est retrouvee dans
+ * la table des transactions (commune a tous les sockets), qui garde le
+ * canal de la requete pour repondre au demandeur.
+ * @author lighta
+ */
+public class NioUDPTransport implements UDPTransport {
+	private final int port; //port de reception
+	private final int listeners; //nombre de sockets sur le port
+	private final BufferPool pool;
+	private final List<Listener> ouverts = new ArrayList<>();
+	private final AtomicLong sendDrops = new AtomicLong(); //envois abandonnes (buffer socket plein)
+	private volatile boolean stop = false;
+
+	/**
+	 * @param port : port de reception
+	 * @param listeners : nombre de sockets (SO_REUSEPORT si plus de 1)
+	 * @param bufferSize : taille des buffers de reception
+	 */
+	public NioUDPTransport(int port, int listeners, int bufferSize) {
+		this.port = port;
+		this.listeners = Math.max(1, listeners);
+		this.pool = new BufferPool(bufferSize, 1024 * this.listeners);
+	}
+
+	@Override
+	public void serve(PacketHandler handler) throws IOException {
+		for (int i = 0; i < listeners; i++) {
+			ouverts.add(new Listener(open(), handler));
+		}
+		//un thread par listener supplementaire, le premier tourne dans l'appelant
+		for (int i = 1; i < ouverts.size(); i++) {
+			Thread t = new Thread(ouverts.get(i), "dns-udp-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+		ouverts.get(0).run();
+	}
+
+	private DatagramChannel open() throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		if (listeners > 1) {
+			if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+				channel.close();
+				throw new IOException("SO_REUSEPORT non supporte, utiliser un seul listener");
+			}
+			channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		}
+		channel.configureBlocking(false);
+		channel.bind(new InetSocketAddress(port));
+		return channel;
+	}
+
+	@Override
+	public void close() {
+		stop = true;
+		for (Listener l : ouverts) {
+			l.selector.wakeup();
+		}
+	}
+
+	/**
+	 * @return nombre d'envois abandonnes car le buffer du socket etait plein
+	 */
+	public long getSendDrops() {
+		return sendDrops.get();
+	}
+
+	@Override
+	public String describe() {
+		return "NIO DatagramChannel sur le port " + port + " (" + listeners + " listener"
+				+ (listeners > 1 ? "s, SO_REUSEPORT" : "") + ")";
+	}
+
+	/**
+	 * Un socket sur le port DNS et son thread de reception
+	 */
+	private class Listener implements Runnable, PacketChannel {
+		private final DatagramChannel channel;
+		private final Selector selector;
+		private final PacketHandler handler;
+
+		Listener(DatagramChannel channel, PacketHandler handler) throws IOException {
+			this.channel = channel;
+			this.handler = handler;
+			this.selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!stop) {
+					selector.select();
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						it.next();
+						it.remove();
+						drain();
+					}
+				}
+			} catch (IOException e) {
+				if (!stop) {
+					Log.error("Probleme de reception :", e);
+				}
+			} finally {
+				try {
+					selector.close();
+					channel.close();
+				} catch (IOException e) {
+					Log.error("Fermeture du listener impossible :", e);
+				}
+			}
+		}
+
+		/**
+		 * Lit tous les paquets disponibles sur le socket
+		 */
+		private void drain() throws IOException {
+			while (true) {
+				ByteBuffer buffer = pool.acquire();
+				SocketAddress source = channel.receive(buffer);
+				if (source == null) {
+					pool.release(buffer);
+					return;
+				}
+				buffer.flip();
+				handler.handle(buffer, (InetSocketAddress) source, this);
+			}
+		}
+
+		@Override
+		public void send(ByteBuffer packet, InetSocketAddress dest) throws IOException {
+			//DatagramChannel.send est thread safe ; en mode non bloquant
+			//le paquet est perdu si le buffer d'envoi est plein (comme en UDP)
+			if (channel.send(packet, dest) == 0)
+				sendDrops.incrementAndGet();
+		}
+
+		@Override
+		public void release(ByteBuffer packet) {
+			pool.release(packet);
+		}
+	}
+}
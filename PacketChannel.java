@@ -0,0 +1,33 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Canal par lequel un paquet a ete recu. Il permet de repondre (ou de
+ * rediriger une requete) par le meme socket, puis de rendre le buffer de
+ * reception au transport une fois le traitement termine.
+ * @author lighta
+ */
+public interface PacketChannel {
+	/**
+	 * Envoie un paquet (de position a limit)
+	 * @param packet : data a envoyer
+	 * @param dest : adresse et port de destination
+	 * @throws IOException
+	 */
+	void send(ByteBuffer packet, InetSocketAddress dest) throws IOException;
+
+	/**
+	 * Rend le buffer d'un paquet recu, il ne doit plus etre utilise ensuite
+	 * @param packet : buffer recu par PacketHandler.handle
+	 */
+	void release(ByteBuffer packet);
+
+	/**
+	 * @return taille max d'un message envoye par ce canal (512 en UDP sans
+	 * EDNS, les reponses plus grandes sont tronquees)
+	 */
+	default int getMaxMessageSize() {
+		return UDPReceiver.MAX_UDP_SIZE;
+	}
+}
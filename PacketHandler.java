@@ -0,0 +1,17 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Traitement des paquets recus par un transport UDP.
+ * @author lighta
+ */
+public interface PacketHandler {
+	/**
+	 * Appele par le thread de reception pour chaque paquet. Le buffer
+	 * appartient au handler jusqu'a l'appel de channel.release(packet).
+	 * @param packet : paquet recu (de position a limit)
+	 * @param source : adresse et port de l'emetteur
+	 * @param channel : canal de reception, a utiliser pour repondre
+	 */
+	void handle(ByteBuffer packet, InetSocketAddress source, PacketChannel channel);
+}
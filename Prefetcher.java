@@ -0,0 +1,89 @@
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Politique de rafraichissement anticipe (refresh-ahead) des reponses en
+ * cache. Chaque entree compte ses hits ; lorsqu'une entree souvent demandee
+ * arrive dans la derniere fraction de son TTL, le hit qui le constate
+ * declenche une requete de rafraichissement vers le serveur DNS, en
+ * arriere-plan. La nouvelle reponse remplace l'entree avant son expiration :
+ * pour les clients, un nom populaire n'expire jamais.
+ *
+ * Une seule requete de rafraichissement par entree, et un nombre borne de
+ * rafraichissements en cours pour ne pas surcharger le serveur.
+ * @author lighta
+ */
+public class Prefetcher {
+	private final int minHits; //hits avant de rafraichir une entree
+	private final double fraction; //fraction du TTL restante qui declenche le rafraichissement
+	private final int maxInflight;
+	private final AtomicInteger inflight = new AtomicInteger();
+
+	private final LongAdder started = new LongAdder();
+	private final LongAdder rejected = new LongAdder(); //limite de rafraichissements atteinte
+
+	/**
+	 * @param minHits : hits avant de rafraichir une entree
+	 * @param fraction : fraction du TTL restante qui declenche le rafraichissement (0 a 1)
+	 * @param maxInflight : rafraichissements en cours au maximum
+	 */
+	public Prefetcher(int minHits, double fraction, int maxInflight) {
+		this.minHits = Math.max(1, minHits);
+		this.fraction = Math.max(0, Math.min(1, fraction));
+		this.maxInflight = Math.max(1, maxInflight);
+	}
+
+	/**
+	 * Compte un hit et decide s'il faut rafraichir l'entree. En cas de
+	 * reponse positive, l'appelant doit envoyer le rafraichissement puis
+	 * appeler release() lorsqu'il est termine.
+	 * @param hits : compteur de hits de l'entree
+	 * @param refreshing : l'entree a deja un rafraichissement
+	 * @param storedAt : System.nanoTime() de mise en cache
+	 * @param expiresAt : System.nanoTime() d'expiration
+	 * @param now : System.nanoTime()
+	 * @return true si ce hit doit declencher le rafraichissement
+	 */
+	public boolean claim(AtomicInteger hits, AtomicBoolean refreshing, long storedAt, long expiresAt, long now) {
+		if (hits.incrementAndGet() < minHits || refreshing.get())
+			return false;
+		if (expiresAt - now > (long) ((expiresAt - storedAt) * fraction))
+			return false; //pas encore dans la fenetre de rafraichissement
+		if (!refreshing.compareAndSet(false, true))
+			return false;
+		if (inflight.incrementAndGet() > maxInflight) {
+			inflight.decrementAndGet();
+			refreshing.set(false); //un hit suivant reessaiera
+			rejected.increment();
+			return false;
+		}
+		started.increment();
+		return true;
+	}
+
+	/**
+	 * Un rafraichissement est termine (reponse, abandon ou expiration)
+	 */
+	public void release() {
+		inflight.decrementAndGet();
+	}
+
+	public int getInflight() {
+		return inflight.get();
+	}
+
+	public long getStartedCount() {
+		return started.sum();
+	}
+
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "Prefetcher[inflight=" + getInflight() + ", started=" + getStartedCount()
+				+ ", rejected=" + getRejectedCount() + "]";
+	}
+}
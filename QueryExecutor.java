@@ -0,0 +1,144 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Execute le traitement des paquets recus en dehors du thread de reception.
+ * Deux modes sont possibles :
+ * 	- un pool fixe de threads avec une file bornee ;
+ * 	- un thread virtuel par requete (si la JVM le supporte), le nombre de
+ * 	  requetes en cours etant alors borne par un semaphore.
+ * Avec 0 worker, le traitement est fait directement par l'appelant.
+ *
+ * Lorsque la file est pleine la requete est rejetee (le client refera sa
+ * requete), ce qui evite qu'un afflux de paquets epuise la memoire.
+ * @author lighta
+ */
+public class QueryExecutor {
+	private final ExecutorService executor; //null si traitement direct
+	private final Semaphore inflight; //borne du mode thread virtuel
+	private final AtomicLong rejected = new AtomicLong();
+	private final String mode;
+
+	/**
+	 * @param workers : nombre de threads (0 = traitement direct)
+	 * @param queueDepth : nombre de requetes en attente avant rejet
+	 * @param virtualThreads : un thread virtuel par requete si disponible
+	 */
+	public QueryExecutor(int workers, int queueDepth, boolean virtualThreads) {
+		ExecutorService virtual = virtualThreads ? newVirtualThreadExecutor() : null;
+		if (virtual != null) {
+			executor = virtual;
+			inflight = new Semaphore(Math.max(1, queueDepth));
+			mode = "thread virtuel par requete (max " + Math.max(1, queueDepth) + ")";
+		} else {
+			if (virtualThreads)
+				Log.warn("Threads virtuels non supportes par cette JVM, utilisation d'un pool");
+			inflight = null;
+			if (workers <= 0) {
+				executor = null;
+				mode = "traitement dans le thread de reception";
+			} else {
+				executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+						new ArrayBlockingQueue<Runnable>(Math.max(1, queueDepth)),
+						new WorkerThreadFactory(), new ThreadPoolExecutor.AbortPolicy());
+				mode = workers + " workers, file de " + Math.max(1, queueDepth);
+			}
+		}
+	}
+
+	/**
+	 * Java 21+ : Executors.newVirtualThreadPerTaskExecutor(), recherche par
+	 * reflexion pour continuer a compiler et s'executer sur les JVM plus anciennes
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Soumet le traitement d'une requete
+	 * @param task : traitement a executer
+	 * @return false si la requete a ete rejetee (file pleine)
+	 */
+	public boolean submit(Runnable task) {
+		if (executor == null) {
+			task.run();
+			return true;
+		}
+		if (inflight != null) {
+			if (!inflight.tryAcquire()) {
+				rejected.incrementAndGet();
+				return false;
+			}
+			Runnable inner = task;
+			task = () -> {
+				try {
+					inner.run();
+				} finally {
+					inflight.release();
+				}
+			};
+		}
+		try {
+			executor.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			if (inflight != null)
+				inflight.release();
+			rejected.incrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * @return nombre de requetes rejetees
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return true si chaque requete a son propre thread virtuel
+	 */
+	public boolean isVirtual() {
+		return inflight != null;
+	}
+
+	/**
+	 * @return description du mode d'execution
+	 */
+	public String getMode() {
+		return mode;
+	}
+
+	/**
+	 * Arrete les workers apres les requetes en cours
+	 */
+	public void shutdown() {
+		if (executor != null)
+			executor.shutdown();
+	}
+
+	/** Threads daemon nommes pour les traces */
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "dns-worker-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
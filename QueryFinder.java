@@ -13,17 +13,26 @@
  Date cree :         2007-03-10
  Date dern. modif.   X
  *******************************************************/
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 /**
  * Cette classe est utilise pour la recherche d'un hostname
  * dans le fichier contenant l'information de celui-ci.
  * Si le hostname existe, l'adresse IP est retroune, sinon
  * l'absence de cette adresse est signale
+ * 
+ * Le fichier est charge une seule fois dans un index en memoire (ZoneStore),
+ * les recherches ne relisent plus le fichier. Un snapshot binaire (produit
+ * par ZoneSnapshotCompiler) est projete en memoire sans etre charge.
+ * 
+ * L'index peut etre remplace a chaud (reload) : le nouvel index est
+ * construit a part puis publie par un echange de reference atomique.
  * @author Max
  */
 	public class QueryFinder  {
@@ -31,10 +40,8 @@ import java.util.Scanner;
 	private String adresse = null; //hostname de l'adresse a chercher
 	private String filename = null; //fichier ou effectuer la recherche
 	
-	private Scanner scanneurFichierSource = null;
-	private String uneligne = null;
-	private String[] hostnameFromFile = null;
-	private String valueToReturn = null;
+	private final AtomicReference<ZoneLookup> zone = new AtomicReference<>(); //index du fichier
+	private final List<Consumer<ZoneLookup>> reloadListeners = new CopyOnWriteArrayList<>();
 	
 	/**
 	 * Constructeur
@@ -42,16 +49,44 @@ import java.util.Scanner;
 	 * @param adresse
 	 */
 	public QueryFinder(String filename, String adresse){
-		this.filename = filename;
+		this(filename);
 		this.adresse = adresse;
 	}
 	
 	/**
-	 * Constructeur
+	 * Constructeur, charge le fichier dans l'index
+	 * (ou projette le snapshot binaire en memoire)
 	 * @param filename
 	 */
 	public QueryFinder(String filename){
 		this.filename = filename;
+		try {
+			zone.set(load(filename));
+		} catch (IOException e) {
+			Log.error("Chargement de la zone " + filename + " impossible :", e);
+			zone.set(new ZoneStore(filename));
+		}
+	}
+	
+	/**
+	 * Charge le fichier de zone : snapshot binaire ou fichier texte
+	 * @param filename
+	 * @return la zone chargee
+	 * @throws IOException
+	 */
+	public static ZoneLookup load(String filename) throws IOException {
+		if (ZoneSnapshot.isSnapshot(filename))
+			return ZoneSnapshot.open(filename);
+		return ZoneStore.load(filename);
+	}
+	
+	/**
+	 * Constructeur, partage un index deja charge
+	 * @param zone
+	 */
+	public QueryFinder(ZoneLookup zone){
+		this.filename = zone.getFilename();
+		this.zone.set(zone);
 	}
 	
 	public String getadresse(){
@@ -59,41 +94,57 @@ import java.util.Scanner;
 	}
 	
 	/**
-	 * Search un hostname et retourne une ip
+	 * @return l'index utilise pour les recherches
+	 */
+	public ZoneLookup getZone(){
+		return zone.get();
+	}
+	
+	/**
+	 * Relit le fichier de zone et publie le nouvel index. En cas d'erreur
+	 * l'index courant est conserve.
+	 * @return le nouvel index
+	 * @throws IOException si le fichier ne peut etre lu
+	 */
+	public ZoneLookup reload() throws IOException {
+		return reload(null);
+	}
+	
+	/**
+	 * Relit le fichier de zone et publie le nouvel index, apres l'avoir
+	 * complete (ajouts pas encore ecrits dans le fichier)
+	 * @param avantPublication : appele avec le nouvel index avant sa publication, null pour aucun
+	 * @return le nouvel index
+	 * @throws IOException si le fichier ne peut etre lu
+	 */
+	public ZoneLookup reload(UnaryOperator<ZoneLookup> avantPublication) throws IOException {
+		ZoneLookup nouvelle = load(filename); //construit entierement avant publication
+		if (avantPublication != null)
+			nouvelle = avantPublication.apply(nouvelle);
+		zone.set(nouvelle);
+		for (Consumer<ZoneLookup> listener : reloadListeners) {
+			listener.accept(nouvelle);
+		}
+		return nouvelle;
+	}
+	
+	/**
+	 * @param listener : appele apres chaque rechargement avec le nouvel index
+	 */
+	public void addReloadListener(Consumer<ZoneLookup> listener){
+		reloadListeners.add(listener);
+	}
+	
+	/**
+	 * Search un hostname et retourne toutes ses ip
 	 * @param hostname = adresse dns a chercher
 	 */
 	public List<String> StartResearch(String hostname){
-		List<String> adresslist = new ArrayList<>();
-		
-		try {
-			scanneurFichierSource = new Scanner(new FileReader(filename));
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-			return null;
-		}
-		
-		//Test pour savoir si le fichier est vide
-		//S'il n'y a pas de ligne apr�s le d�but du fichier (quand le curseur est avant le
-		//d�but du fichier), le fichier est vide
-		
-		if(!scanneurFichierSource.hasNextLine()){
-			System.out.println("Le fichier DNS est vide");
-			scanneurFichierSource.close();
-			return adresslist;
-		}
-		
-		//prend une ligne
-		uneligne = scanneurFichierSource.nextLine();
-		hostnameFromFile = uneligne.split(" ");
-		
-		while( scanneurFichierSource.hasNextLine() ){
-			uneligne = scanneurFichierSource.nextLine();
-			hostnameFromFile = uneligne.split(" ");
-			if(hostnameFromFile[0].equals(hostname)){
-				adresslist.add(hostnameFromFile[1]);
-			}
+		int[] adresses = zone.get().lookup(hostname);
+		List<String> adresslist = new ArrayList<>(adresses.length);
+		for (int adr : adresses) {
+			adresslist.add(ZoneStore.formatIPv4(adr));
 		}
-		scanneurFichierSource.close();
 		return adresslist;
 	}
 	
@@ -101,22 +152,16 @@ import java.util.Scanner;
 	 * Affiche l'ensemble du contenu du DNSFILE
 	 */
 	public void listCorrespondingTable(){	
-		try {
-			scanneurFichierSource = new Scanner(new FileReader(filename));
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-			return;
-		}
-		
-		if(!scanneurFichierSource.hasNextLine()){
+		ZoneLookup zone = this.zone.get();
+		if(zone.size() == 0){
 			System.out.println("La table est vide!");
 			return;
 		}
 		
-		while(scanneurFichierSource.hasNextLine()){
-			uneligne = scanneurFichierSource.nextLine();
-			System.out.println(uneligne);
-		}
-		scanneurFichierSource.close();
+		zone.forEach((hostname, adresses) -> {
+			for (int adr : adresses) {
+				System.out.println(hostname + " " + ZoneStore.formatIPv4(adr));
+			}
+		});
 	}
 }
\ No newline at end of file
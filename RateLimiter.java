@@ -0,0 +1,189 @@
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limitation du debit des requetes par adresse IP source : un seau a jetons
+ * (token bucket) par client, pour qu'un seul client ne sature pas les
+ * workers ni le serveur DNS de redirection.
+ *
+ * Chaque seau est un seul AtomicLong, l'heure theorique d'arrivee de la
+ * prochaine requete (GCRA, equivalent au seau a jetons) : un client peut
+ * envoyer burst requetes d'un coup puis rate requetes par seconde. La
+ * verification est une lecture dans une ConcurrentHashMap et un CAS, sans
+ * verrou ni allocation pour un client connu.
+ *
+ * Les seaux inactifs (pleins depuis IDLE_NANOS) sont retires lorsque de
+ * nouveaux clients arrivent ; au dela de maxClients, les nouveaux clients
+ * partagent un seau commun : des adresses sources changeantes (usurpees)
+ * ne desactivent pas la limitation.
+ * @author lighta
+ */
+public class RateLimiter {
+	public final static int DROP = 0; //requete ignoree
+	public final static int REFUSED = 1; //reponse REFUSED
+	public final static int TRUNCATE = 2; //reponse vide avec le bit TC (le client doit reessayer en TCP)
+
+	private final static long IDLE_NANOS = TimeUnit.SECONDS.toNanos(10); //seau plein depuis ce delai : retire
+	private final static long SWEEP_NANOS = TimeUnit.SECONDS.toNanos(1); //un nettoyage par seconde au plus
+
+	/**
+	 * Seau d'un client
+	 */
+	private static final class Bucket {
+		private final AtomicLong tat; //System.nanoTime() theorique de la prochaine requete
+		private final AtomicLong throttled = new AtomicLong(); //requetes limitees de ce client
+
+		Bucket(long now) {
+			this.tat = new AtomicLong(now);
+		}
+	}
+
+	private final long intervalNanos; //temps d'emission d'un jeton
+	private final long toleranceNanos; //avance permise (burst - 1 jetons)
+	private final int maxClients;
+	private final int action;
+	private final ConcurrentHashMap<InetAddress, Bucket> buckets = new ConcurrentHashMap<>();
+	private final Bucket overflow; //seau commun des clients non suivis (table pleine)
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+	private volatile long nextSweep;
+
+	private final LongAdder throttled = new LongAdder();
+	private final LongAdder throttledClients = new LongAdder(); //clients limites au moins une fois
+	private final LongAdder untracked = new LongAdder(); //requetes du seau commun, table pleine
+	private final LongAdder idle = new LongAdder(); //seaux inactifs retires
+
+	/**
+	 * @param rate : requetes par seconde et par client
+	 * @param burst : requetes permises d'un coup
+	 * @param maxClients : nombre max de clients suivis
+	 * @param action : traitement des requetes en exces (DROP, REFUSED ou TRUNCATE)
+	 */
+	public RateLimiter(double rate, int burst, int maxClients, int action) {
+		this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+		this.toleranceNanos = intervalNanos * (Math.max(1, burst) - 1);
+		this.maxClients = Math.max(1, maxClients);
+		this.action = action;
+		this.nextSweep = System.nanoTime() + SWEEP_NANOS;
+		this.overflow = new Bucket(nextSweep - SWEEP_NANOS);
+	}
+
+	/**
+	 * @param action : drop, refused ou tc
+	 * @return la constante correspondante
+	 * @throws IllegalArgumentException si l'action est inconnue
+	 */
+	public static int parseAction(String action) {
+		switch (action) {
+		case "drop":
+			return DROP;
+		case "refused":
+			return REFUSED;
+		case "tc":
+			return TRUNCATE;
+		default:
+			throw new IllegalArgumentException("Action de limitation inconnue : " + action);
+		}
+	}
+
+	/**
+	 * @return traitement des requetes en exces (DROP, REFUSED ou TRUNCATE)
+	 */
+	public int getAction() {
+		return action;
+	}
+
+	/**
+	 * Consomme un jeton du client
+	 * @param client : adresse IP source de la requete
+	 * @return true si la requete est permise, false si elle doit etre limitee
+	 */
+	public boolean allow(InetAddress client) {
+		long now = System.nanoTime();
+		Bucket bucket = buckets.get(client);
+		if (bucket == null) {
+			bucket = newBucket(client, now);
+			if (bucket == null) {
+				untracked.increment();
+				bucket = overflow;
+			}
+		}
+		AtomicLong tat = bucket.tat;
+		while (true) {
+			long t = tat.get();
+			long debut = Math.max(t, now);
+			if (debut - now > toleranceNanos) {
+				if (bucket.throttled.getAndIncrement() == 0)
+					throttledClients.increment();
+				throttled.increment();
+				return false;
+			}
+			if (tat.compareAndSet(t, debut + intervalNanos))
+				return true;
+		}
+	}
+
+	/**
+	 * Cree le seau d'un nouveau client, apres un nettoyage si necessaire
+	 * @return le seau, null si la table est pleine (seau commun)
+	 */
+	private Bucket newBucket(InetAddress client, long now) {
+		if (buckets.size() >= maxClients || now - nextSweep >= 0)
+			sweep(now);
+		if (buckets.size() >= maxClients)
+			return null;
+		return buckets.computeIfAbsent(client, c -> new Bucket(now));
+	}
+
+	/**
+	 * Retire les seaux pleins depuis IDLE_NANOS
+	 */
+	private void sweep(long now) {
+		if (!sweeping.compareAndSet(false, true))
+			return;
+		try {
+			nextSweep = now + SWEEP_NANOS;
+			buckets.values().removeIf(b -> {
+				if (now - b.tat.get() < IDLE_NANOS)
+					return false;
+				idle.increment();
+				return true;
+			});
+		} finally {
+			sweeping.set(false);
+		}
+	}
+
+	/**
+	 * @return nombre de clients suivis
+	 */
+	public int size() {
+		return buckets.size();
+	}
+
+	public long getThrottledCount() {
+		return throttled.sum();
+	}
+
+	public long getThrottledClients() {
+		return throttledClients.sum();
+	}
+
+	public long getUntrackedCount() {
+		return untracked.sum();
+	}
+
+	public long getIdleCount() {
+		return idle.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "RateLimiter[clients=" + size() + ", limitees=" + getThrottledCount()
+				+ ", clientsLimites=" + getThrottledClients() + ", nonSuivies=" + getUntrackedCount()
+				+ ", inactifs=" + getIdleCount() + "]";
+	}
+}
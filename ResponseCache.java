@@ -0,0 +1,395 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache des reponses completes (format wire), indexe par les octets bruts
+ * de la question (QNAME + QTYPE + QCLASS, sans tenir compte de la casse).
+ * Un hit recopie la reponse et n'y remet que l'identifiant, le bit RD et
+ * la question (avec sa casse, 0x20) de la requete : ni recherche dans la
+ * zone, ni encodage.
+ *
+ * Deux sortes d'entrees :
+ * 	zone : reponses construites depuis le fichier DNS, invalidees a chaque
+ * 	       rechargement de la zone (invalidateZone)
+ * 	serveur : reponses relayees du serveur DNS, dont les TTL sont decomptes
+ * 	          a chaque hit, retirees a l'expiration du plus petit TTL
+ *
+ * Les hits des reponses du serveur sont comptes pour le rafraichissement
+ * anticipe (voir Prefetcher et claimRefresh).
+ *
+ * La recherche ne fait aucune allocation (cle de recherche par thread).
+ * Lorsque le cache est plein, les entrees expirees sont retirees puis, au
+ * besoin, des entrees au hasard (ordre de la table de hachage).
+ * @author lighta
+ */
+public class ResponseCache {
+
+	/**
+	 * Question (format wire, en minuscule) servant de cle
+	 */
+	private static final class Key {
+		private byte[] data;
+		private int offset, length;
+		private int hash;
+		private Entry lastHit; //dernier hit du thread (cle de recherche seulement)
+
+		/**
+		 * Pointe sur la question d'un message decode (pas de copie)
+		 */
+		Key wrap(DNSMessageDecoder message) {
+			data = message.getData();
+			offset = message.getOffset() + DNSMessageDecoder.HEADER_SIZE;
+			length = message.getQuestionEnd() - DNSMessageDecoder.HEADER_SIZE;
+			return hash();
+		}
+
+		/**
+		 * Encode une question (QNAME + QTYPE + QCLASS)
+		 * @return null si le nom ne peut pas etre encode
+		 */
+		Key of(String name, int type, int clazz) {
+			byte[] nom = name.getBytes(StandardCharsets.ISO_8859_1);
+			byte[] question = new byte[nom.length + (nom.length > 0 ? 2 : 1) + 4];
+			int p = 0;
+			for (int debut = 0; debut < nom.length; ) {
+				int fin = debut;
+				while (fin < nom.length && nom[fin] != '.')
+					fin++;
+				if (fin == debut || fin - debut > 63)
+					return null; //label vide ou trop long
+				question[p++] = (byte) (fin - debut);
+				System.arraycopy(nom, debut, question, p, fin - debut);
+				p += fin - debut;
+				debut = fin + 1;
+			}
+			question[p++] = 0;
+			question[p++] = (byte) (type >>> 8);
+			question[p++] = (byte) type;
+			question[p++] = (byte) (clazz >>> 8);
+			question[p++] = (byte) clazz;
+			data = question;
+			offset = 0;
+			length = p;
+			return hash();
+		}
+
+		private Key hash() {
+			int h = 0x811C9DC5;
+			for (int i = 0; i < length; i++) {
+				h ^= lower(data[offset + i]) & 0xFF;
+				h *= 0x01000193;
+			}
+			hash = h ^ (h >>> 16);
+			return this;
+		}
+
+		/**
+		 * @return copie independante du message, pour etre conservee
+		 */
+		Key copy() {
+			Key key = new Key();
+			key.data = new byte[length];
+			for (int i = 0; i < length; i++) {
+				key.data[i] = lower(data[offset + i]);
+			}
+			key.length = length;
+			key.hash = hash;
+			return key;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			if (k.hash != hash || k.length != length)
+				return false;
+			for (int i = 0; i < length; i++) {
+				if (lower(data[offset + i]) != lower(k.data[k.offset + i]))
+					return false;
+			}
+			return true;
+		}
+
+		private static byte lower(byte b) {
+			return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+		}
+	}
+
+	/**
+	 * Reponse en cache
+	 */
+	private static final class Entry {
+		private final byte[] packet; //reponse complete
+		private final boolean zone; //construite depuis le fichier DNS
+		private final long storedAt; //System.nanoTime() a la mise en cache
+		private final long expiresAt;
+		private final int[] ttlOffsets; //position des TTL a decompter (vide pour la zone)
+		private final long[] ttls; //TTL recus
+		private final AtomicInteger hits = new AtomicInteger();
+		private final AtomicBoolean refreshing = new AtomicBoolean();
+
+		Entry(byte[] packet, boolean zone, long storedAt, long ttlSeconds, int[] ttlOffsets, long[] ttls) {
+			this.packet = packet;
+			this.zone = zone;
+			this.storedAt = storedAt;
+			this.expiresAt = storedAt + TimeUnit.SECONDS.toNanos(ttlSeconds);
+			this.ttlOffsets = ttlOffsets;
+			this.ttls = ttls;
+		}
+	}
+
+	private static final int[] NO_OFFSET = new int[0];
+	private static final long[] NO_TTL = new long[0];
+
+	private final int maxEntries;
+	private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+	private final ThreadLocal<Key> probes = ThreadLocal.withInitial(Key::new);
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+	private Prefetcher prefetcher = null;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param maxEntries : nombre max de reponses en cache
+	 */
+	public ResponseCache(int maxEntries) {
+		this.maxEntries = Math.max(1, maxEntries);
+	}
+
+	/**
+	 * @param prefetcher : politique de rafraichissement anticipe des reponses du serveur
+	 */
+	public void setPrefetcher(Prefetcher prefetcher) {
+		this.prefetcher = prefetcher;
+	}
+
+	/**
+	 * Seules les requetes simples (QUERY, une question) sont servies par le cache
+	 */
+	private static boolean cacheable(DNSMessageDecoder message) {
+		return message.getOpcode() == 0 && message.getQuestionCount() == 1 && message.getQuestionEnd() > 0;
+	}
+
+	/**
+	 * Copie la reponse en cache pour une requete dans le buffer de sortie
+	 * @param query : requete decodee
+	 * @param out : buffer de sortie, le paquet est ecrit a partir de la position
+	 * @return taille du paquet ecrit, -1 si la question n'est pas en cache
+	 */
+	public int get(DNSMessageDecoder query, ByteBuffer out) {
+		if (!cacheable(query))
+			return -1;
+		Key probe = probes.get().wrap(query);
+		Entry entry = entries.get(probe);
+		probe.data = null; //ne pas retenir le buffer du decodeur
+		if (entry == null) {
+			misses.increment();
+			return -1;
+		}
+		long now = System.nanoTime();
+		if (now - entry.expiresAt >= 0) {
+			if (entries.remove(probe.wrap(query), entry))
+				expirations.increment();
+			probe.data = null;
+			misses.increment();
+			return -1;
+		}
+		if (out.remaining() < entry.packet.length) {
+			misses.increment();
+			return -1;
+		}
+
+		int start = out.position();
+		out.put(entry.packet);
+		out.putShort(start, (short) query.getId());
+		//RD de la requete
+		int rd = query.getData()[query.getOffset() + 2] & 0x01;
+		out.put(start + 2, (byte) ((entry.packet[2] & ~0x01) | rd));
+		//question du demandeur (meme longueur, seule la casse peut differer)
+		int question = query.getQuestionEnd() - DNSMessageDecoder.HEADER_SIZE;
+		out.put(start + DNSMessageDecoder.HEADER_SIZE, query.getData(),
+				query.getOffset() + DNSMessageDecoder.HEADER_SIZE, question);
+		if (entry.ttlOffsets.length > 0) {
+			long age = TimeUnit.NANOSECONDS.toSeconds(now - entry.storedAt);
+			for (int i = 0; i < entry.ttlOffsets.length; i++) {
+				out.putInt(start + entry.ttlOffsets[i], (int) Math.max(0, entry.ttls[i] - age));
+			}
+		}
+		hits.increment();
+		probe.lastHit = entry;
+		return entry.packet.length;
+	}
+
+	/**
+	 * Compte le dernier hit de ce thread pour le rafraichissement anticipe
+	 * (a appeler apres un get reussi)
+	 * @return true si la reponse du serveur doit etre rafraichie maintenant
+	 */
+	public boolean claimRefresh() {
+		Key probe = probes.get();
+		Entry entry = probe.lastHit;
+		probe.lastHit = null;
+		return entry != null && !entry.zone && prefetcher != null
+				&& prefetcher.claim(entry.hits, entry.refreshing, entry.storedAt, entry.expiresAt, System.nanoTime());
+	}
+
+	/**
+	 * Ajoute une reponse construite depuis le fichier DNS
+	 * @param query : requete decodee
+	 * @param response : reponse encodee (de position a limit)
+	 * @param ttlSeconds : duree de vie de l'entree
+	 */
+	public void putZone(DNSMessageDecoder query, ByteBuffer response, long ttlSeconds) {
+		if (!cacheable(query) || ttlSeconds <= 0)
+			return;
+		byte[] packet = new byte[response.remaining()];
+		response.duplicate().get(packet);
+		store(query, new Entry(packet, true, System.nanoTime(), ttlSeconds, NO_OFFSET, NO_TTL));
+	}
+
+	/**
+	 * Ajoute une reponse du serveur DNS. Les TTL de tous les records
+	 * seront decomptes a chaque hit. L'OPT (EDNS0) du serveur n'est pas
+	 * garde : il est ajoute a l'envoi si le client en a envoye un.
+	 * @param response : reponse decodee
+	 * @param ttlSeconds : duree de vie de l'entree
+	 */
+	public void put(DNSMessageDecoder response, long ttlSeconds) {
+		if (!cacheable(response) || ttlSeconds <= 0)
+			return;
+		int records = response.getAnswerCount() + response.getAuthorityCount() + response.getAdditionalCount();
+		int[] offsets = new int[records];
+		long[] ttls = new long[records];
+		int n = 0;
+		int position = response.getQuestionEnd();
+		int opt = -1, optLength = 0; //OPT retire du paquet
+		for (int i = 0; i < records; i++) {
+			int debut = position;
+			position = response.readRecord(position);
+			if (position < 0)
+				return; //reponse mal formee
+			if (response.getRecordType() == DNSMessageDecoder.TYPE_OPT) {
+				opt = debut;
+				optLength = position - debut;
+				continue;
+			}
+			offsets[n] = response.getRdataOffset() - 6 - optLength;
+			ttls[n++] = response.getRecordTtl();
+		}
+		byte[] packet = new byte[response.getLength() - optLength];
+		if (opt < 0) {
+			System.arraycopy(response.getData(), response.getOffset(), packet, 0, packet.length);
+		} else {
+			System.arraycopy(response.getData(), response.getOffset(), packet, 0, opt);
+			System.arraycopy(response.getData(), response.getOffset() + opt + optLength, packet, opt, packet.length - opt);
+			int arcount = response.getAdditionalCount() - 1;
+			packet[10] = (byte) (arcount >>> 8);
+			packet[11] = (byte) arcount;
+		}
+		store(response, new Entry(packet, false, System.nanoTime(), ttlSeconds,
+				n == records ? offsets : Arrays.copyOf(offsets, n),
+				n == records ? ttls : Arrays.copyOf(ttls, n)));
+	}
+
+	private void store(DNSMessageDecoder message, Entry entry) {
+		if (entries.size() >= maxEntries)
+			sweep(entry.storedAt);
+		entries.put(probes.get().wrap(message).copy(), entry);
+		probes.get().data = null;
+	}
+
+	/**
+	 * Retire les entrees expirees puis, si le cache est encore plein,
+	 * un huitieme des entrees
+	 */
+	private void sweep(long now) {
+		if (!sweeping.compareAndSet(false, true))
+			return;
+		try {
+			entries.values().removeIf(e -> {
+				if (now - e.expiresAt < 0)
+					return false;
+				expirations.increment();
+				return true;
+			});
+			Iterator<Entry> it = entries.values().iterator();
+			int cible = maxEntries - maxEntries / 8;
+			while (entries.size() >= cible && it.hasNext()) {
+				it.next();
+				it.remove();
+				evictions.increment();
+			}
+		} finally {
+			sweeping.set(false);
+		}
+	}
+
+	/**
+	 * Retire les reponses construites depuis le fichier DNS (rechargement de la zone)
+	 */
+	public void invalidateZone() {
+		entries.values().removeIf(e -> e.zone);
+	}
+
+	/**
+	 * Retire la reponse d'une question (ex : nom ajoute a la zone par --record)
+	 * @param name : nom demande (minuscule, sans point final)
+	 * @param type : QTYPE
+	 * @param clazz : QCLASS
+	 */
+	public void invalidate(String name, int type, int clazz) {
+		Key key = new Key().of(name, type, clazz);
+		if (key != null)
+			entries.remove(key);
+	}
+
+	/**
+	 * Vide le cache
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getExpirations() {
+		return expirations.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "ResponseCache[entries=" + size() + ", hits=" + getHits() + ", misses=" + getMisses()
+				+ ", expirations=" + getExpirations() + ", evictions=" + getEvictions() + "]";
+	}
+}
@@ -0,0 +1,207 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Options du serveur passees sur la ligne de commande sous la forme
+ * --cle=valeur (ou --cle pour un booleen a vrai). Les options peuvent etre
+ * placees n'importe ou, les autres arguments sont laisses a ServeurDNS.
+ *
+ * Chaque option connue est declaree ici avec sa valeur par defaut et une
+ * description affichee dans l'usage.
+ * @author lighta
+ */
+public class ServerConfig {
+	public final static String WORKERS = "workers";
+	public final static String QUEUE = "queue";
+	public final static String VIRTUAL_THREADS = "virtual-threads";
+	public final static String TRANSPORT = "transport";
+	public final static String LISTENERS = "listeners";
+	public final static String TCP = "tcp";
+	public final static String EDNS_MAX = "edns-max";
+	public final static String TCP_MAX_CONNECTIONS = "tcp-max-connections";
+	public final static String TCP_IDLE_MS = "tcp-idle-ms";
+	public final static String CACHE_SIZE = "cache-size";
+	public final static String RESPONSE_CACHE = "response-cache";
+	public final static String CACHE_BYTES = "cache-bytes";
+	public final static String CACHE_MAX_TTL = "cache-max-ttl";
+	public final static String RECORD = "record";
+	public final static String JOURNAL_QUEUE = "journal-queue";
+	public final static String JOURNAL_BATCH = "journal-batch";
+	public final static String JOURNAL_FLUSH_MS = "journal-flush-ms";
+	public final static String UPSTREAM_TIMEOUT_MS = "upstream-timeout-ms";
+	public final static String UPSTREAM_MAX_FAILURES = "upstream-max-failures";
+	public final static String UPSTREAM_CHECK_MS = "upstream-check-ms";
+	public final static String UPSTREAM_RETRIES = "upstream-retries";
+	public final static String TIMER_TICK_MS = "timer-tick-ms";
+	public final static String COALESCE = "coalesce";
+	public final static String PREFETCH = "prefetch";
+	public final static String PREFETCH_MIN_HITS = "prefetch-min-hits";
+	public final static String PREFETCH_FRACTION = "prefetch-fraction";
+	public final static String PREFETCH_MAX_INFLIGHT = "prefetch-max-inflight";
+	public final static String SERVE_STALE = "serve-stale";
+	public final static String STALE_MAX_TTL = "stale-max-ttl";
+	public final static String STALE_TTL = "stale-ttl";
+	public final static String STALE_DEADLINE_MS = "stale-deadline-ms";
+	public final static String RATE_LIMIT = "rate-limit";
+	public final static String RATE_LIMIT_BURST = "rate-limit-burst";
+	public final static String RATE_LIMIT_ACTION = "rate-limit-action";
+	public final static String RATE_LIMIT_CLIENTS = "rate-limit-clients";
+	public final static String METRICS_PORT = "metrics-port";
+	public final static String LOG_LEVEL = "log-level";
+	public final static String ZONE_WATCH = "zone-watch";
+	public final static String ZONE_WATCH_DELAY_MS = "zone-watch-delay-ms";
+	public final static String NEGATIVE_MIN_TTL = "negative-min-ttl";
+	public final static String NEGATIVE_MAX_TTL = "negative-max-ttl";
+
+	private final static Map<String, String[]> OPTIONS = new LinkedHashMap<>(); //cle -> {defaut, description}
+	static {
+		define(WORKERS, String.valueOf(Runtime.getRuntime().availableProcessors()),
+				"threads de traitement des requetes (0 = dans le thread de reception)");
+		define(QUEUE, "4096", "requetes en attente de traitement avant rejet");
+		define(VIRTUAL_THREADS, "false", "un thread virtuel par requete (Java 21+)");
+		define(TRANSPORT, "nio", "transport UDP : nio (DatagramChannel) ou socket (DatagramSocket)");
+		define(LISTENERS, "1", "sockets nio sur le port DNS, SO_REUSEPORT si plus de 1 (un par coeur)");
+		define(EDNS_MAX, String.valueOf(Edns.DEFAULT_MAX_PAYLOAD), "taille max (octets) d'une reponse UDP aux clients EDNS0, annoncee aussi aux serveurs de redirection (0 = sans EDNS)");
+		define(TCP, "true", "repondre aussi en TCP sur le port DNS (reponses de plus de 512 octets, bit TC)");
+		define(TCP_MAX_CONNECTIONS, "1024", "connexions TCP simultanees au maximum");
+		define(TCP_IDLE_MS, "10000", "fermeture d'une connexion TCP inactive (ms)");
+		define(UPSTREAM_TIMEOUT_MS, "1000", "delai de reponse d'un serveur de redirection avant retransmission (ms, double a chaque essai)");
+		define(UPSTREAM_RETRIES, "2", "retransmissions d'une requete sans reponse avant SERVFAIL");
+		define(TIMER_TICK_MS, "10", "precision de la roue de temporisation des retransmissions (ms)");
+		define(UPSTREAM_MAX_FAILURES, "3", "echecs consecutifs avant de retirer un serveur de redirection");
+		define(UPSTREAM_CHECK_MS, "1000", "periode de surveillance des serveurs de redirection (ms)");
+		define(COALESCE, "true", "regrouper les questions identiques en attente du serveur de redirection");
+		define(PREFETCH, "true", "rafraichir en arriere-plan les reponses populaires avant leur expiration");
+		define(PREFETCH_MIN_HITS, "8", "hits d'une reponse en cache avant son rafraichissement anticipe");
+		define(PREFETCH_FRACTION, "0.1", "fraction du TTL restante qui declenche le rafraichissement");
+		define(PREFETCH_MAX_INFLIGHT, "32", "rafraichissements en cours au maximum");
+		define(SERVE_STALE, "true", "servir les reponses expirees du cache si le serveur DNS ne repond pas");
+		define(STALE_MAX_TTL, "86400", "duree (s) pendant laquelle une reponse expiree peut encore etre servie");
+		define(STALE_TTL, "30", "TTL (s) des reponses expirees servies");
+		define(STALE_DEADLINE_MS, "500", "attente du serveur DNS avant de servir une reponse expiree");
+		define(RATE_LIMIT, "0", "requetes UDP par seconde permises a chaque adresse IP (0 = pas de limite, le TCP n'est pas limite)");
+		define(RATE_LIMIT_BURST, "50", "requetes permises d'un coup a chaque adresse IP");
+		define(RATE_LIMIT_ACTION, "drop", "requetes en exces : drop (ignorees), refused ou tc (reessayer en TCP)");
+		define(RATE_LIMIT_CLIENTS, "100000", "adresses IP suivies au maximum par la limitation (au dela : un seau commun)");
+		define(LOG_LEVEL, "info", "niveau de journalisation : debug (detail de chaque paquet), info, warn, error ou off");
+		define(METRICS_PORT, "0", "port local (127.0.0.1) du rapport des mesures, GET /metrics (0 = desactive)");
+		define(ZONE_WATCH, "true", "recharger la zone lorsque le fichier DNS est modifie");
+		define(ZONE_WATCH_DELAY_MS, "500", "delai sans modification avant de recharger la zone (ms)");
+		define(RESPONSE_CACHE, "65536", "nombre max de reponses encodees en cache (0 = desactive)");
+		define(CACHE_SIZE, "100000", "nombre max de reponses dans le cache");
+		define(CACHE_BYTES, String.valueOf(64L * 1024 * 1024), "taille max du cache (octets)");
+		define(CACHE_MAX_TTL, "86400", "TTL max d'une reponse en cache (secondes)");
+		define(NEGATIVE_MIN_TTL, "5", "duree min d'une reponse negative en cache (secondes)");
+		define(NEGATIVE_MAX_TTL, "3600", "duree max d'une reponse negative en cache (secondes)");
+		define(RECORD, "false", "enregistrer les adresses recues dans le fichier DNS (servies ensuite comme la zone)");
+		define(JOURNAL_QUEUE, "8192", "adresses en attente d'ecriture dans le fichier DNS");
+		define(JOURNAL_BATCH, "256", "adresses ecrites par lot dans le fichier DNS");
+		define(JOURNAL_FLUSH_MS, "200", "delai max avant l'ecriture d'un lot (ms)");
+	}
+
+	private final Map<String, String> values = new LinkedHashMap<>();
+	private final List<String> arguments = new ArrayList<>();
+
+	private static void define(String key, String defaut, String description) {
+		OPTIONS.put(key, new String[] { defaut, description });
+	}
+
+	/**
+	 * Extrait les options de la ligne de commande
+	 * @param args : arguments du programme
+	 * @return la configuration, les arguments restants sont dans getArguments()
+	 * @throws IllegalArgumentException si une option est inconnue
+	 */
+	public static ServerConfig parse(String[] args) {
+		ServerConfig config = new ServerConfig();
+		for (String arg : args) {
+			if (!arg.startsWith("--")) {
+				config.arguments.add(arg);
+				continue;
+			}
+			int egal = arg.indexOf('=');
+			String key = egal < 0 ? arg.substring(2) : arg.substring(2, egal);
+			String value = egal < 0 ? "true" : arg.substring(egal + 1);
+			if (!OPTIONS.containsKey(key))
+				throw new IllegalArgumentException("Option inconnue : " + arg);
+			config.values.put(key, value);
+		}
+		return config;
+	}
+
+	/**
+	 * @return les arguments qui ne sont pas des options
+	 */
+	public String[] getArguments() {
+		return arguments.toArray(new String[0]);
+	}
+
+	/**
+	 * Modifie une option (utilise par les valeurs par defaut du programme)
+	 * @param key : nom de l'option
+	 * @param value : valeur
+	 */
+	public void set(String key, String value) {
+		if (!OPTIONS.containsKey(key))
+			throw new IllegalArgumentException("Option inconnue : " + key);
+		values.put(key, value);
+	}
+
+	/**
+	 * @param key : nom de l'option
+	 * @return la valeur de l'option ou sa valeur par defaut
+	 */
+	public String get(String key) {
+		String value = values.get(key);
+		if (value != null)
+			return value;
+		String[] option = OPTIONS.get(key);
+		if (option == null)
+			throw new IllegalArgumentException("Option inconnue : " + key);
+		return option[0];
+	}
+
+	public int getInt(String key) {
+		String value = get(key);
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Valeur invalide pour --" + key + " : " + value);
+		}
+	}
+
+	public long getLong(String key) {
+		String value = get(key);
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Valeur invalide pour --" + key + " : " + value);
+		}
+	}
+
+	public double getDouble(String key) {
+		String value = get(key);
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Valeur invalide pour --" + key + " : " + value);
+		}
+	}
+
+	public boolean getBoolean(String key) {
+		return Boolean.parseBoolean(get(key));
+	}
+
+	/**
+	 * Affiche la liste des options connues
+	 */
+	public static void printUsage() {
+		System.out.println("Options :");
+		for (Map.Entry<String, String[]> option : OPTIONS.entrySet()) {
+			System.out.println("  --" + option.getKey() + "=" + option.getValue()[0]
+					+ " : " + option.getValue()[1]);
+		}
+	}
+}
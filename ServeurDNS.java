@@ -1,6 +1,7 @@
 ﻿
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
  /**
  * Application principale qui lance les autres processus
@@ -12,6 +13,30 @@ public class ServeurDNS {
 	
 	public static void main(String[] args) {
 		
+		// Les benchmarks ont leurs propres options : bench [options] [cas ...]
+		if (args.length > 0 && args[0].equals("bench")) {
+			HotPathBenchmark.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		// Generateur de charge : load [options] [options du serveur]
+		if (args.length > 0 && args[0].equals("load")) {
+			LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		
+		// Les options --cle=valeur sont retirees des arguments
+		ServerConfig config;
+		try {
+			config = ServerConfig.parse(args);
+			Log.setLevel(Log.parseLevel(config.get(ServerConfig.LOG_LEVEL)));
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			ServerConfig.printUsage();
+			System.exit(1);
+			return;
+		}
+		args = config.getArguments();
+		
 		System.out.println("--------------------------------------");
 		System.out.println("Ecole de Technologie Superieures (ETS)");
 		System.out.println("GTI610 - Reseau de telecommunication");
@@ -20,16 +45,24 @@ public class ServeurDNS {
 		
 		if (args.length == 0) {
 			System.out.println("Usage: "
-					+"[addresse DNS] <Fichier DNS> <TrueFalse/Redirection seulement>");
+					+"[addresse DNS[:port],...] <Fichier DNS> <TrueFalse/Redirection seulement>");
 			System.out.println("Pour lister la table: "
 					+"showtable <Fichier DNS>");
+			System.out.println("Pour compiler la table en snapshot binaire: "
+					+"compile <Fichier DNS> <snapshot>");
+			System.out.println("Pour mesurer les chemins critiques: "
+					+"bench [--zones=1000,100000] [--iterations=5] [--time-ms=1000] [decode|lookup|encode|record ...]");
+			System.out.println("Pour un essai de charge: "
+					+"load [--mode=forward|redirect|zone] [--qps=1000] [--duration=10] ...");
 			System.out.println("Pour lancer par defaut, tapper : default");
+			ServerConfig.printUsage();
 			System.exit(1);
 		}
 		
 		UDPReceiver UDPR = new UDPReceiver();
 		File f = null;	
 		UDPR.setport(53);
+		UDPR.setConfig(config);
 		
 		/* cas ou l'argument = default
 		 Le serveur DNS de redirection par defaut est celui de l'ecole "10.162.8.51" 
@@ -61,6 +94,14 @@ public class ServeurDNS {
 				System.out.print("L'�x�cution par d�faut n'a pas d'autres arguments");
 			}
 		}
+		else if(args[0].equals("compile")){ // cas ou les arguments sont: compile [cacheDNS] [snapshot]
+			if (args.length == 3) {
+				ZoneSnapshotCompiler.main(new String[] { args[1], args[2] });
+			}
+			else{
+				System.out.println("Usage: compile <Fichier DNS> <snapshot>");
+			}
+		}
 		else{
 			if(args[0].equals("showtable")){ // cas o� l'argument = showtable cacheDNS
 				if (args.length == 2) {
@@ -0,0 +1,82 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport historique base sur un DatagramSocket bloquant.
+ * Conserve comme mode de repli (--transport=socket) ; les envois passent
+ * par UDPSender.
+ * @author lighta
+ */
+public class SocketUDPTransport implements UDPTransport, PacketChannel {
+	private final int port; //port de reception
+	private final int bufferSize; //taille max d'un paquet recu
+	private DatagramSocket serveur = null;
+	private volatile boolean stop = false;
+
+	/**
+	 * @param port : port de reception
+	 * @param bufferSize : taille max d'un paquet recu
+	 */
+	public SocketUDPTransport(int port, int bufferSize) {
+		this.port = port;
+		this.bufferSize = bufferSize;
+	}
+
+	@Override
+	public void serve(PacketHandler handler) throws IOException {
+		serveur = new DatagramSocket(this.port); // *Creation d'un socket UDP
+		while (!stop) {
+			// Lire le datagramme requete a partir de serverSocket
+			// (un buffer par paquet car il est transmis au worker)
+			byte[] buff = new byte[bufferSize];
+			DatagramPacket paquetRecu = new DatagramPacket(buff, buff.length);
+			if (Log.isDebug())
+				Log.debug("Serveur DNS: "+serveur.getLocalAddress()+"  en attente sur le port: "+ serveur.getLocalPort());
+
+			// *Reception d'un paquet UDP via le socket
+			try {
+				serveur.receive(paquetRecu);
+			} catch (IOException e) {
+				if (stop)
+					break;
+				throw e;
+			}
+			handler.handle(ByteBuffer.wrap(buff, paquetRecu.getOffset(), paquetRecu.getLength()),
+					(InetSocketAddress) paquetRecu.getSocketAddress(), this);
+		}
+	}
+
+	@Override
+	public void send(ByteBuffer packet, InetSocketAddress dest) throws IOException {
+		DatagramPacket paquet;
+		if (packet.hasArray()) {
+			paquet = new DatagramPacket(packet.array(), packet.arrayOffset() + packet.position(), packet.remaining());
+		} else {
+			byte[] copie = new byte[packet.remaining()];
+			packet.duplicate().get(copie);
+			paquet = new DatagramPacket(copie, copie.length);
+		}
+		UDPSender envoi = new UDPSender(dest.getAddress(), dest.getPort(), serveur);
+		envoi.SendPacketNow(paquet);
+	}
+
+	@Override
+	public void release(ByteBuffer packet) {
+		//buffer alloue par paquet, rien a faire
+	}
+
+	@Override
+	public void close() {
+		stop = true;
+		if (serveur != null)
+			serveur.close();
+	}
+
+	@Override
+	public String describe() {
+		return "DatagramSocket sur le port " + port;
+	}
+}
@@ -0,0 +1,168 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serveur DNS de redirection simule, dans le meme processus, pour les
+ * essais de charge sans acces reseau : il tient lieu de SERVER_DNS.
+ *
+ * Toute requete recoit la meme reponse : deux records A (10.0.0.1 et
+ * 10.0.0.2) avec un TTL fixe. Un delai de reponse et un taux de perte
+ * configurables simulent un vrai serveur ; les reponses retardees sont
+ * planifiees dans une TimingWheel, le thread de reception n'attend jamais.
+ * @author lighta
+ */
+public class StubResolver implements Runnable {
+	private final static int MAX_SIZE = 512;
+
+	/**
+	 * Reponse retardee
+	 */
+	private static final class Delayed extends TimingWheel.Timeout {
+		private final byte[] reponse;
+		private final InetSocketAddress client;
+
+		Delayed(byte[] reponse, InetSocketAddress client) {
+			this.reponse = reponse;
+			this.client = client;
+		}
+	}
+
+	private final DatagramChannel channel;
+	private final long delayNanos;
+	private final double loss; //probabilite de ne pas repondre (0 a 1)
+	private final long ttl;
+	private final TimingWheel timers;
+	private final Thread thread;
+	private volatile boolean stop = false;
+
+	private final LongAdder received = new LongAdder();
+	private final LongAdder answered = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	/**
+	 * @param port : port d'ecoute sur 127.0.0.1 (0 = port libre)
+	 * @param delayMs : delai de reponse (ms)
+	 * @param loss : probabilite de ne pas repondre (0 a 1)
+	 * @param ttl : TTL des records
+	 * @throws IOException si le port ne peut etre ouvert
+	 */
+	public StubResolver(int port, long delayMs, double loss, long ttl) throws IOException {
+		this.channel = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		this.delayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs));
+		this.loss = Math.max(0, Math.min(1, loss));
+		this.ttl = ttl;
+		this.timers = delayNanos > 0 ? new TimingWheel(1, 1024, t -> send((Delayed) t)) : null;
+		this.thread = new Thread(this, "dns-stub");
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Demarre la reception
+	 * @return this
+	 */
+	public StubResolver start() {
+		if (timers != null)
+			timers.start();
+		thread.start();
+		return this;
+	}
+
+	/**
+	 * @return adresse d'ecoute (ip:port), a passer comme SERVER_DNS
+	 */
+	public InetSocketAddress getAddress() throws IOException {
+		return (InetSocketAddress) channel.getLocalAddress();
+	}
+
+	@Override
+	public void run() {
+		ByteBuffer reception = ByteBuffer.allocate(MAX_SIZE);
+		try {
+			while (!stop) {
+				reception.clear();
+				InetSocketAddress client = (InetSocketAddress) channel.receive(reception);
+				received.increment();
+				if (loss > 0 && ThreadLocalRandom.current().nextDouble() < loss) {
+					dropped.increment();
+					continue;
+				}
+				byte[] reponse = answer(reception.array(), reception.position());
+				if (reponse == null)
+					continue;
+				if (timers == null)
+					send(new Delayed(reponse, client));
+				else
+					timers.schedule(new Delayed(reponse, client), delayNanos);
+			}
+		} catch (IOException e) {
+			if (!stop)
+				Log.error("Probleme de reception du serveur simule :", e);
+		}
+	}
+
+	/**
+	 * Construit la reponse : en-tete et question de la requete puis deux records A
+	 * @return la reponse, null si la requete est invalide
+	 */
+	private byte[] answer(byte[] requete, int longueur) {
+		int fin = DNSMessageDecoder.HEADER_SIZE;
+		while (fin < longueur && requete[fin] != 0) {
+			fin += (requete[fin] & 0xFF) + 1;
+		}
+		fin += 5; //0 final, QTYPE et QCLASS
+		if (fin > longueur)
+			return null;
+		byte[] reponse = new byte[fin + 2 * AnswerTemplate.RECORD_SIZE];
+		System.arraycopy(requete, 0, reponse, 0, fin);
+		reponse[2] = (byte) (0x80 | (requete[2] & 0x79)); //QR, opcode et RD
+		reponse[3] = (byte) 0x80; //RA
+		reponse[4] = 0;
+		reponse[5] = 1; //QDcount
+		reponse[6] = 0;
+		reponse[7] = 2; //ANcount
+		reponse[8] = reponse[9] = reponse[10] = reponse[11] = 0;
+		int j = fin;
+		for (int i = 1; i <= 2; i++) {
+			reponse[j] = (byte) 0xC0;
+			reponse[j + 1] = (byte) 0x0C;
+			j = UDPAnswerPacketCreator.writeRecord(reponse, j + 2, DNSMessageDecoder.TYPE_A, DNSMessageDecoder.CLASS_IN,
+					ttl, new byte[] { 10, 0, 0, (byte) i });
+		}
+		return reponse;
+	}
+
+	private void send(Delayed d) {
+		try {
+			channel.send(ByteBuffer.wrap(d.reponse), d.client);
+			answered.increment();
+		} catch (IOException e) {
+			Log.warn("Probleme d'envoi du serveur simule : " + e);
+		}
+	}
+
+	/**
+	 * Arrete le serveur simule
+	 */
+	public void close() {
+		stop = true;
+		if (timers != null)
+			timers.close();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			//deja ferme
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "StubResolver[recues=" + received.sum() + ", repondues=" + answered.sum()
+				+ ", perdues=" + dropped.sum() + "]";
+	}
+}
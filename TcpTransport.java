@@ -0,0 +1,549 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport DNS sur TCP (RFC 7766), sur le meme port que l'UDP : chaque
+ * message est precede de sa longueur sur 2 octets.
+ *
+ * Un seul thread ("dns-tcp") et un Selector pour toutes les connexions,
+ * non bloquantes. Une connexion peut envoyer plusieurs requetes a la suite
+ * sans attendre (pipelining) : chaque message complet est transmis au
+ * handler des qu'il est lu, et les reponses sont renvoyees dans l'ordre ou
+ * elles sont pretes (une reponse du cache peut depasser une requete
+ * redirigee). Les reponses des workers sont mises en file par connexion,
+ * puis ecrites par le thread du Selector.
+ *
+ * Les requetes redirigees par une connexion TCP partent en UDP par le
+ * socket de relais du transport ; les reponses du serveur y arrivent et
+ * sont traitees comme les autres, puis renvoyees sur la connexion. Une
+ * reponse UDP tronquee (bit TC) est redemandee au serveur en TCP
+ * (queryUpstream) : la reponse complete est transmise au handler comme
+ * une reponse UDP, ou la reponse tronquee si l'echange TCP echoue.
+ *
+ * Une connexion est bornee : au dela de MAX_INFLIGHT requetes en cours de
+ * traitement, elle n'est plus lue jusqu'a ce que des traitements se
+ * terminent (release, avec ou sans reponse) ; au dela de
+ * MAX_QUEUED octets de reponses non lues par le client, elle est fermee.
+ *
+ * Une connexion sans activite (ni lecture, ni ecriture qui avance) pendant
+ * idleMs est fermee, meme s'il lui reste des reponses en file.
+ * @author lighta
+ */
+public class TcpTransport implements Runnable {
+	public final static int MAX_MESSAGE_SIZE = 0xFFFF; //longueur sur 2 octets
+	private final static int READ_SIZE = 2 + 512; //buffer initial d'une connexion
+	private final static int MAX_INFLIGHT = 64; //requetes sans reponse par connexion
+	private final static int MAX_QUEUED = 256 * 1024; //octets de reponses en file par connexion
+
+	/**
+	 * Connexion d'un client : canal de reponse de ses requetes
+	 */
+	private final class Connection implements PacketChannel {
+		private final SocketChannel channel;
+		private final InetSocketAddress remote;
+		private SelectionKey key;
+		private ByteBuffer lecture = ByteBuffer.allocate(READ_SIZE);
+		private final Queue<ByteBuffer> ecritures = new ConcurrentLinkedQueue<>(); //reponses (avec la longueur)
+		private final AtomicInteger enCours = new AtomicInteger(); //requetes transmises, traitement non termine
+		private final AtomicInteger enFile = new AtomicInteger(); //octets de ecritures
+		private boolean suspendue = false; //lecture arretee (MAX_INFLIGHT), thread du Selector
+		private long lastActivity = System.nanoTime();
+		private volatile boolean closed = false;
+
+		Connection(SocketChannel channel, InetSocketAddress remote) {
+			this.channel = channel;
+			this.remote = remote;
+		}
+
+		/**
+		 * Reponse au client : mise en file pour le thread du Selector. Une
+		 * autre destination (serveur de redirection) passe par le relais UDP.
+		 */
+		@Override
+		public void send(ByteBuffer packet, InetSocketAddress dest) throws IOException {
+			if (!dest.equals(remote)) {
+				relais.send(packet, dest);
+				return;
+			}
+			if (closed)
+				return; //le client est parti avant la reponse
+			ByteBuffer message = ByteBuffer.allocate(2 + packet.remaining());
+			message.putShort((short) packet.remaining()).put(packet).flip();
+			if (enFile.addAndGet(message.capacity()) > MAX_QUEUED) {
+				//le client ne lit pas ses reponses : fermee par le thread du Selector
+				closed = true;
+			} else {
+				ecritures.add(message);
+			}
+			writable.add(this);
+			selector.wakeup();
+		}
+
+		/**
+		 * Fin du traitement d'un message (reponse envoyee ou non) : libere
+		 * sa place, la lecture reprend si elle etait arretee
+		 */
+		@Override
+		public void release(ByteBuffer packet) {
+			//buffer propre a chaque message, rien a rendre
+			if (enCours.getAndDecrement() == MAX_INFLIGHT) {
+				writable.add(this); //reprise par le thread du Selector
+				selector.wakeup();
+			}
+		}
+
+		@Override
+		public int getMaxMessageSize() {
+			return MAX_MESSAGE_SIZE;
+		}
+	}
+
+	/**
+	 * Socket UDP des requetes redirigees pour les clients TCP
+	 */
+	private final class Relay implements PacketChannel {
+		@Override
+		public void send(ByteBuffer packet, InetSocketAddress dest) throws IOException {
+			relay.send(packet, dest);
+		}
+
+		@Override
+		public void release(ByteBuffer packet) {
+		}
+	}
+
+	/**
+	 * Echange TCP avec un serveur de redirection : une requete, une reponse.
+	 * C'est aussi le canal des reponses transmises au handler (taille TCP :
+	 * une reponse qui en vient n'est jamais redemandee).
+	 */
+	private final class Upstream implements PacketChannel {
+		private final InetSocketAddress serveur;
+		private final ByteBuffer requete; //avec la longueur
+		private final byte[] tronquee; //reponse UDP, transmise si l'echange echoue
+		private SocketChannel channel;
+		private SelectionKey key;
+		private ByteBuffer lecture = ByteBuffer.allocate(READ_SIZE);
+		private long lastActivity = System.nanoTime();
+
+		Upstream(InetSocketAddress serveur, byte[] requete, byte[] tronquee) {
+			this.serveur = serveur;
+			this.requete = ByteBuffer.allocate(2 + requete.length);
+			this.requete.putShort((short) requete.length).put(requete).flip();
+			this.tronquee = tronquee;
+		}
+
+		@Override
+		public void send(ByteBuffer packet, InetSocketAddress dest) throws IOException {
+			relais.send(packet, dest);
+		}
+
+		@Override
+		public void release(ByteBuffer packet) {
+		}
+
+		@Override
+		public int getMaxMessageSize() {
+			return MAX_MESSAGE_SIZE;
+		}
+	}
+
+	private final int port;
+	private final int maxConnections;
+	private final long idleNanos;
+	private final Thread thread;
+	private Selector selector;
+	private ServerSocketChannel server;
+	private DatagramChannel relay;
+	private final ByteBuffer reception = ByteBuffer.allocate(MAX_MESSAGE_SIZE); //relais (thread du Selector)
+	private final Relay relais = new Relay();
+	private PacketHandler handler;
+	private final Set<Connection> connections = new HashSet<>(); //thread du Selector seulement
+	private final Queue<Connection> writable = new ConcurrentLinkedQueue<>(); //connexions avec des reponses en file
+	private final Set<Upstream> sortantes = new HashSet<>(); //echanges avec les serveurs, thread du Selector seulement
+	private final Queue<Upstream> aOuvrir = new ConcurrentLinkedQueue<>(); //echanges demandes par les workers
+	private volatile boolean stop = false;
+
+	/**
+	 * @param port : port d'ecoute (le meme que l'UDP)
+	 * @param maxConnections : connexions simultanees au maximum
+	 * @param idleMs : fermeture d'une connexion inactive (ms)
+	 */
+	public TcpTransport(int port, int maxConnections, long idleMs) {
+		this.port = port;
+		this.maxConnections = Math.max(1, maxConnections);
+		this.idleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, idleMs));
+		this.thread = new Thread(this, "dns-tcp");
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Ouvre le port TCP et demarre le thread du Selector
+	 * @param handler : traitement des messages recus
+	 * @return this
+	 * @throws IOException si le port ne peut etre ouvert
+	 */
+	public TcpTransport start(PacketHandler handler) throws IOException {
+		this.handler = handler;
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		server.bind(new InetSocketAddress(port), 128);
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		relay = DatagramChannel.open().bind(null);
+		relay.configureBlocking(false);
+		relay.register(selector, SelectionKey.OP_READ);
+		thread.start();
+		return this;
+	}
+
+	public String describe() {
+		return "TCP sur le port " + port + " (max " + maxConnections + " connexions, inactivite "
+				+ TimeUnit.NANOSECONDS.toMillis(idleNanos) + " ms)";
+	}
+
+	@Override
+	public void run() {
+		long prochainNettoyage = System.nanoTime() + idleNanos;
+		try {
+			while (!stop) {
+				selector.select(1000);
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					try {
+						if (!key.isValid())
+							continue;
+						if (key.isAcceptable())
+							accept();
+						else if (key.channel() == relay)
+							receiveRelay();
+						else if (key.attachment() instanceof Upstream)
+							exchange((Upstream) key.attachment());
+						else if (key.isReadable())
+							read((Connection) key.attachment());
+						if (key.isValid() && key.isWritable() && key.attachment() instanceof Connection)
+							write((Connection) key.attachment());
+					} catch (IOException e) {
+						if (key.attachment() instanceof Upstream)
+							fail((Upstream) key.attachment());
+						else if (key.attachment() != null)
+							close((Connection) key.attachment());
+					}
+				}
+				Upstream u;
+				while ((u = aOuvrir.poll()) != null) {
+					open(u);
+				}
+				Connection c;
+				while ((c = writable.poll()) != null) {
+					if (c.closed) {
+						if (connections.contains(c))
+							Log.warn("Reponses TCP non lues par " + c.remote + ", connexion fermee");
+						close(c);
+						continue;
+					}
+					try {
+						write(c);
+						if (c.suspendue && c.enCours.get() < MAX_INFLIGHT) {
+							//des traitements sont termines : reprendre la lecture
+							c.suspendue = false;
+							interest(c);
+							dispatch(c);
+						}
+					} catch (IOException e) {
+						close(c);
+					}
+				}
+				long now = System.nanoTime();
+				if (now - prochainNettoyage >= 0) {
+					closeIdle(now);
+					prochainNettoyage = now + Math.min(idleNanos, TimeUnit.SECONDS.toNanos(1));
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			if (!stop)
+				Log.error("Probleme du transport TCP :", e);
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel client = server.accept();
+		if (client == null)
+			return;
+		if (connections.size() >= maxConnections) {
+			Log.warn("Trop de connexions TCP, connexion refusee");
+			client.close();
+			return;
+		}
+		client.configureBlocking(false);
+		client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		Connection c = new Connection(client, (InetSocketAddress) client.getRemoteAddress());
+		c.key = client.register(selector, SelectionKey.OP_READ, c);
+		connections.add(c);
+	}
+
+	/**
+	 * Lit les messages complets d'une connexion et les transmet au handler
+	 */
+	private void read(Connection c) throws IOException {
+		if (c.channel.read(c.lecture) < 0) {
+			close(c);
+			return;
+		}
+		c.lastActivity = System.nanoTime();
+		dispatch(c);
+	}
+
+	/**
+	 * Transmet au handler les messages complets deja lus, tant que la
+	 * connexion n'a pas MAX_INFLIGHT requetes en cours de traitement
+	 */
+	private void dispatch(Connection c) {
+		ByteBuffer b = c.lecture;
+		b.flip();
+		while (b.remaining() >= 2) {
+			if (c.enCours.get() >= MAX_INFLIGHT) {
+				c.suspendue = true; //reprise a la fin d'un traitement (release)
+				interest(c);
+				break;
+			}
+			int longueur = b.getShort(b.position()) & 0xFFFF;
+			if (b.remaining() < 2 + longueur) {
+				if (b.capacity() < 2 + longueur) {
+					//message plus grand que le buffer : l'agrandir
+					ByteBuffer plusGrand = ByteBuffer.allocate(2 + longueur);
+					plusGrand.put(b);
+					plusGrand.flip();
+					b = plusGrand;
+				}
+				break;
+			}
+			b.position(b.position() + 2);
+			byte[] message = new byte[longueur];
+			b.get(message);
+			if (longueur >= DNSMessageDecoder.HEADER_SIZE) {
+				c.enCours.incrementAndGet();
+				handler.handle(ByteBuffer.wrap(message), c.remote, c);
+			}
+		}
+		b.compact();
+		c.lecture = b;
+	}
+
+	/**
+	 * Ecrit les reponses en file d'une connexion, sans bloquer
+	 */
+	private void write(Connection c) throws IOException {
+		if (c.closed)
+			return;
+		ByteBuffer b;
+		while ((b = c.ecritures.peek()) != null) {
+			if (c.channel.write(b) > 0)
+				c.lastActivity = System.nanoTime();
+			if (b.hasRemaining()) {
+				interest(c);
+				return;
+			}
+			c.ecritures.poll();
+			c.enFile.addAndGet(-b.capacity());
+		}
+		c.lastActivity = System.nanoTime();
+		interest(c);
+	}
+
+	/**
+	 * Interet du Selector : lecture sauf si suspendue, ecriture s'il reste
+	 * des reponses en file
+	 */
+	private void interest(Connection c) {
+		if (!c.key.isValid())
+			return;
+		c.key.interestOps((c.suspendue ? 0 : SelectionKey.OP_READ)
+				| (c.ecritures.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+	}
+
+	/**
+	 * Reponse d'un serveur de redirection recue par le relais
+	 */
+	private void receiveRelay() throws IOException {
+		InetSocketAddress source;
+		while ((source = (InetSocketAddress) relay.receive(reception.clear())) != null) {
+			//copie de la taille du paquet, transmise au worker
+			handler.handle(ByteBuffer.wrap(Arrays.copyOf(reception.array(), reception.position())), source, relais);
+		}
+	}
+
+	/**
+	 * Redemande au serveur en TCP une requete dont la reponse UDP etait
+	 * tronquee. La reponse sera transmise au handler (thread du Selector).
+	 * @param requete : requete envoyee au serveur (avec son identifiant)
+	 * @param serveur : serveur de redirection
+	 * @param tronquee : reponse UDP tronquee, transmise si l'echange echoue
+	 */
+	public void queryUpstream(byte[] requete, InetSocketAddress serveur, byte[] tronquee) {
+		aOuvrir.add(new Upstream(serveur, requete, tronquee));
+		selector.wakeup();
+	}
+
+	private void open(Upstream u) {
+		if (sortantes.size() >= maxConnections) {
+			Log.warn("Trop d'echanges TCP avec les serveurs, reponse tronquee relayee");
+			fail(u);
+			return;
+		}
+		try {
+			u.channel = SocketChannel.open();
+			u.channel.configureBlocking(false);
+			u.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			boolean connecte = u.channel.connect(u.serveur);
+			u.key = u.channel.register(selector, connecte ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, u);
+			sortantes.add(u);
+		} catch (IOException e) {
+			fail(u);
+		}
+	}
+
+	/**
+	 * Avance un echange avec un serveur : connexion, envoi de la requete,
+	 * lecture de la reponse
+	 */
+	private void exchange(Upstream u) throws IOException {
+		if (u.key.isConnectable()) {
+			u.channel.finishConnect();
+			u.key.interestOps(SelectionKey.OP_WRITE);
+			return;
+		}
+		if (u.key.isWritable()) {
+			u.channel.write(u.requete);
+			if (!u.requete.hasRemaining())
+				u.key.interestOps(SelectionKey.OP_READ);
+			u.lastActivity = System.nanoTime();
+			return;
+		}
+		if (!u.key.isReadable())
+			return;
+		if (u.channel.read(u.lecture) < 0)
+			throw new IOException("connexion fermee par " + u.serveur);
+		u.lastActivity = System.nanoTime();
+		ByteBuffer b = u.lecture;
+		if (b.position() < 2)
+			return;
+		int longueur = b.getShort(0) & 0xFFFF;
+		if (b.capacity() < 2 + longueur) {
+			ByteBuffer plusGrand = ByteBuffer.allocate(2 + longueur);
+			b.flip();
+			plusGrand.put(b);
+			u.lecture = plusGrand;
+			return;
+		}
+		if (b.position() < 2 + longueur)
+			return;
+		finish(u);
+		if (longueur >= DNSMessageDecoder.HEADER_SIZE)
+			handler.handle(ByteBuffer.wrap(Arrays.copyOfRange(b.array(), 2, 2 + longueur)), u.serveur, u);
+	}
+
+	/**
+	 * Echange echoue : la reponse tronquee est transmise telle quelle
+	 */
+	private void fail(Upstream u) {
+		finish(u);
+		handler.handle(ByteBuffer.wrap(u.tronquee), u.serveur, u);
+	}
+
+	private void finish(Upstream u) {
+		sortantes.remove(u);
+		if (u.key != null)
+			u.key.cancel();
+		try {
+			if (u.channel != null)
+				u.channel.close();
+		} catch (IOException e) {
+			//deja fermee
+		}
+	}
+
+	/**
+	 * Ferme les connexions inactives, y compris celles dont les reponses
+	 * en file n'avancent plus (client qui ne lit pas), et les echanges
+	 * avec les serveurs sans reponse
+	 */
+	private void closeIdle(long now) {
+		List<Connection> inactives = new ArrayList<>();
+		for (Connection c : connections) {
+			if (now - c.lastActivity >= idleNanos)
+				inactives.add(c);
+		}
+		for (Connection c : inactives) {
+			close(c);
+		}
+		List<Upstream> bloques = new ArrayList<>();
+		for (Upstream u : sortantes) {
+			if (now - u.lastActivity >= idleNanos)
+				bloques.add(u);
+		}
+		for (Upstream u : bloques) {
+			fail(u);
+		}
+	}
+
+	private void close(Connection c) {
+		c.closed = true;
+		connections.remove(c);
+		if (c.key != null)
+			c.key.cancel();
+		try {
+			c.channel.close();
+		} catch (IOException e) {
+			//deja fermee
+		}
+	}
+
+	/**
+	 * @return nombre de connexions ouvertes
+	 */
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	/**
+	 * Ferme le port, les connexions et le relais
+	 */
+	public void close() {
+		stop = true;
+		try {
+			selector.close();
+			server.close();
+			relay.close();
+		} catch (IOException e) {
+			//deja ferme
+		}
+		for (Connection c : new ArrayList<>(connections)) {
+			close(c);
+		}
+		for (Upstream u : new ArrayList<>(sortantes)) {
+			finish(u);
+		}
+	}
+}
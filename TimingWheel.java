@@ -0,0 +1,176 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Roue de temporisation hachee (hashed timing wheel) : un seul thread gere
+ * toutes les echeances, quel que soit leur nombre.
+ *
+ * La roue est un tableau circulaire de cases ; chaque case couvre une
+ * duree (tick). Une echeance est placee dans la case de son tick, avec le
+ * nombre de tours de roue restant avant qu'elle n'expire. A chaque tick le
+ * thread parcourt une seule case : planifier, annuler et expirer coutent
+ * O(1), sans thread ni ScheduledFuture par echeance.
+ *
+ * Les echeances (Timeout) sont des objets de l'appelant, chaines entre eux
+ * dans les cases : la roue n'alloue rien par echeance. Une annulation ne
+ * fait que marquer l'echeance, elle est retiree lorsque la case est visitee.
+ * La precision est d'un tick.
+ * @author lighta
+ */
+public class TimingWheel implements Runnable {
+
+	/**
+	 * Echeance planifiable dans la roue. Un Timeout ne doit etre planifie
+	 * qu'une seule fois a la fois (on peut le replanifier depuis le traitement
+	 * de son expiration). Une echeance annulee le reste : planifiee ensuite,
+	 * elle n'expirera pas.
+	 */
+	public static abstract class Timeout {
+		private long deadline; //System.nanoTime() d'expiration
+		private long rounds; //tours de roue restants
+		private Timeout next; //case de la roue
+		private volatile boolean cancelled = false;
+
+		/**
+		 * Annule l'echeance (sans effet si elle a deja expire)
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	private final long tickNanos;
+	private final Timeout[] wheel; //tete de liste de chaque case
+	private final int mask;
+	private final Consumer<Timeout> handler; //appele a l'expiration, dans le thread de la roue
+	private final Thread worker;
+	private final long startTime;
+	private long tick = 0; //prochain tick a traiter
+
+	private final Object lock = new Object();
+	private List<Timeout> incoming = new ArrayList<>(); //echeances planifiees depuis le dernier tick
+	private List<Timeout> drained = new ArrayList<>();
+	private volatile boolean stop = false;
+
+	/**
+	 * @param tickMs : duree d'une case (precision)
+	 * @param wheelSize : nombre de cases (arrondi a une puissance de 2)
+	 * @param handler : appele pour chaque echeance expiree
+	 */
+	public TimingWheel(long tickMs, int wheelSize, Consumer<Timeout> handler) {
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMs));
+		int taille = Integer.highestOneBit(Math.max(2, wheelSize) * 2 - 1);
+		this.wheel = new Timeout[taille];
+		this.mask = taille - 1;
+		this.handler = handler;
+		this.startTime = System.nanoTime();
+		this.worker = new Thread(this, "dns-timer");
+		this.worker.setDaemon(true);
+	}
+
+	/**
+	 * Demarre le thread de la roue
+	 * @return this
+	 */
+	public TimingWheel start() {
+		worker.start();
+		return this;
+	}
+
+	/**
+	 * Planifie une echeance
+	 * @param timeout : echeance (non planifiee)
+	 * @param delayNanos : delai avant expiration
+	 */
+	public void schedule(Timeout timeout, long delayNanos) {
+		timeout.deadline = System.nanoTime() + Math.max(0, delayNanos);
+		synchronized (lock) {
+			incoming.add(timeout);
+		}
+	}
+
+	@Override
+	public void run() {
+		while (!stop) {
+			long prochain = startTime + (tick + 1) * tickNanos;
+			long attente = prochain - System.nanoTime();
+			if (attente > 0) {
+				LockSupport.parkNanos(this, attente);
+				continue;
+			}
+			transfer();
+			expire(wheel[(int) (tick & mask)], (int) (tick & mask));
+			tick++;
+		}
+	}
+
+	/**
+	 * Place les nouvelles echeances dans leur case
+	 */
+	private void transfer() {
+		synchronized (lock) {
+			List<Timeout> l = incoming;
+			incoming = drained;
+			drained = l;
+		}
+		for (int i = 0; i < drained.size(); i++) {
+			Timeout t = drained.get(i);
+			if (t.cancelled)
+				continue;
+			long cible = Math.max(tick, (t.deadline - startTime + tickNanos - 1) / tickNanos - 1);
+			t.rounds = (cible - tick) / wheel.length;
+			int index = (int) (cible & mask);
+			t.next = wheel[index];
+			wheel[index] = t;
+		}
+		drained.clear();
+	}
+
+	/**
+	 * Parcourt une case : retire les echeances annulees ou expirees
+	 */
+	private void expire(Timeout t, int index) {
+		wheel[index] = null;
+		Timeout garde = null; //echeances des tours suivants
+		while (t != null) {
+			Timeout suivant = t.next;
+			t.next = null;
+			if (t.cancelled) {
+				//retiree
+			} else if (t.rounds > 0) {
+				t.rounds--;
+				t.next = garde;
+				garde = t;
+			} else {
+				try {
+					handler.accept(t);
+				} catch (RuntimeException e) {
+					Log.error("Probleme du traitement d'une echeance :", e);
+				}
+			}
+			t = suivant;
+		}
+		//les echeances replanifiees par le handler sont dans incoming
+		while (garde != null) {
+			Timeout suivant = garde.next;
+			garde.next = wheel[index];
+			wheel[index] = garde;
+			garde = suivant;
+		}
+	}
+
+	/**
+	 * Arrete le thread de la roue (les echeances en attente n'expireront pas)
+	 */
+	public void close() {
+		stop = true;
+		LockSupport.unpark(worker);
+	}
+}
@@ -0,0 +1,565 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Table des requetes redirigees vers le serveur DNS en attente de reponse.
+ * Chaque requete sortante recoit un nouvel identifiant unique (16 bits) ;
+ * la reponse du serveur est ensuite associee au client d'origine (adresse,
+ * port et identifiant original) grace a cet identifiant.
+ *
+ * La table est un tableau de 65536 cases indexe par l'identifiant sortant,
+ * l'enregistrement et la recherche sont donc en O(1). Les entrees expirent
+ * apres un delai configurable ; un observateur peut etre averti de chaque
+ * requete expiree (ex : statistiques du serveur qui n'a pas repondu).
+ *
+ * Les requetes identiques (meme nom, type et classe) sont regroupees : tant
+ * qu'une question est en attente du serveur, les demandes suivantes
+ * s'y attachent comme demandeurs supplementaires au lieu d'etre envoyees
+ * a nouveau. La reponse unique du serveur est ensuite relayee a chacun.
+ * @author lighta
+ */
+public class TransactionTable {
+	public final static int MAX_TRANSACTIONS = 0x10000; //identifiants sur 16 bits
+	public final static long DEFAULT_TIMEOUT_MS = 5000;
+	public final static int MAX_WAITERS = 1024; //demandeurs attaches a une meme requete
+	public final static int FULL = -1; //register : table pleine
+	public final static int JOINED = -2; //register : attache a une requete en attente
+
+	/**
+	 * Demandeur attache a une requete deja envoyee au serveur
+	 */
+	public static class Waiter {
+		private final InetAddress clientAddress;
+		private final int clientPort;
+		private final int clientId;
+		private final byte[] question; //question du demandeur si sa casse differe, sinon null
+		private final PacketChannel channel; //canal de reception de sa requete (UDP ou connexion TCP)
+		private final int payload; //taille UDP annoncee par son OPT, 0 sans EDNS
+
+		Waiter(InetAddress clientAddress, int clientPort, int clientId, byte[] question, PacketChannel channel,
+				int payload) {
+			this.clientAddress = clientAddress;
+			this.clientPort = clientPort;
+			this.clientId = clientId;
+			this.question = question;
+			this.channel = channel;
+			this.payload = payload;
+		}
+
+		public InetAddress getClientAddress() {
+			return clientAddress;
+		}
+
+		public int getClientPort() {
+			return clientPort;
+		}
+
+		public int getClientId() {
+			return clientId;
+		}
+
+		/**
+		 * @return section question du demandeur (format wire) a remettre dans
+		 * la reponse, null si identique a celle de la requete envoyee
+		 */
+		public byte[] getQuestion() {
+			return question;
+		}
+
+		/**
+		 * @return canal par lequel repondre, null pour celui de la requete envoyee
+		 */
+		public PacketChannel getChannel() {
+			return channel;
+		}
+
+		/**
+		 * @return taille UDP annoncee par le demandeur (EDNS0), 0 sans OPT
+		 */
+		public int getPayload() {
+			return payload;
+		}
+	}
+
+	/**
+	 * Question d'une requete : cle de regroupement des requetes identiques,
+	 * comparee a celle de la reponse du serveur
+	 */
+	private static final class Question {
+		private final String name;
+		private final int type, clazz;
+
+		Question(String name, int type, int clazz) {
+			this.name = name;
+			this.type = type;
+			this.clazz = clazz;
+		}
+
+		@Override
+		public int hashCode() {
+			return name.hashCode() * 31 + type * 7 + clazz;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Question))
+				return false;
+			Question q = (Question) o;
+			return q.type == type && q.clazz == clazz && q.name.equals(name);
+		}
+	}
+
+	/**
+	 * Requete en attente d'une reponse du serveur DNS. C'est aussi son
+	 * echeance de retransmission dans la roue de temporisation.
+	 */
+	public static class Transaction extends TimingWheel.Timeout {
+		private final int upstreamId; //identifiant envoye au serveur
+		private final InetAddress clientAddress; //demandeur original
+		private final int clientPort;
+		private final int clientId; //identifiant original du demandeur
+		private InetSocketAddress upstreamAddress; //serveur interroge (dernier envoi)
+		private final long createdAt; //System.nanoTime() a l'envoi
+		private long expiresAt;
+		private long sentAt; //System.nanoTime() du dernier envoi
+		private int attempts = 1; //nombre d'envois
+		private byte[] query = null; //requete envoyee, pour la retransmission
+		private PacketChannel channel = null; //canal d'envoi de la requete
+		private int clientPayload = 0; //taille UDP annoncee par le demandeur (EDNS0), 0 sans OPT
+		private Question question = null; //question envoyee (cle de regroupement si regroupable)
+		private byte[] questionBytes = null; //section question envoyee (format wire)
+		private List<Waiter> waiters = null; //demandeurs supplementaires
+		private boolean clientAnswered = false; //le demandeur original a deja recu une reponse
+		private boolean tcpRetry = false; //reponse tronquee deja redemandee en TCP
+
+		Transaction(int upstreamId, InetAddress clientAddress, int clientPort, int clientId,
+				InetSocketAddress upstreamAddress, long createdAt, long expiresAt) {
+			this.upstreamId = upstreamId;
+			this.clientAddress = clientAddress;
+			this.clientPort = clientPort;
+			this.clientId = clientId;
+			this.upstreamAddress = upstreamAddress;
+			this.createdAt = createdAt;
+			this.sentAt = createdAt;
+			this.expiresAt = expiresAt;
+		}
+
+		public int getUpstreamId() {
+			return upstreamId;
+		}
+
+		public InetAddress getClientAddress() {
+			return clientAddress;
+		}
+
+		public int getClientPort() {
+			return clientPort;
+		}
+
+		public int getClientId() {
+			return clientId;
+		}
+
+		public synchronized InetSocketAddress getUpstreamAddress() {
+			return upstreamAddress;
+		}
+
+		public long getCreatedAt() {
+			return createdAt;
+		}
+
+		/**
+		 * @return System.nanoTime() du dernier envoi (retransmission comprise)
+		 */
+		public synchronized long getSentAt() {
+			return sentAt;
+		}
+
+		/**
+		 * @return nombre d'envois de la requete
+		 */
+		public synchronized int getAttempts() {
+			return attempts;
+		}
+
+		/**
+		 * Conserve la requete envoyee pour pouvoir la retransmettre
+		 * @param query : requete (avec l'identifiant sortant)
+		 * @param channel : canal d'envoi
+		 */
+		public synchronized void setRetransmission(byte[] query, PacketChannel channel) {
+			this.query = query;
+			this.channel = channel;
+		}
+
+		public synchronized byte[] getQuery() {
+			return query;
+		}
+
+		public synchronized PacketChannel getChannel() {
+			return channel;
+		}
+
+		/**
+		 * @param payload : taille UDP annoncee par l'OPT du demandeur, 0 sans EDNS
+		 */
+		public synchronized void setClientPayload(int payload) {
+			this.clientPayload = payload;
+		}
+
+		public synchronized int getClientPayload() {
+			return clientPayload;
+		}
+
+		/**
+		 * @return nom demande au serveur (minuscule, sans point final)
+		 */
+		public String getQName() {
+			return question.name;
+		}
+
+		public int getQType() {
+			return question.type;
+		}
+
+		public int getQClass() {
+			return question.clazz;
+		}
+
+		/**
+		 * @return section question envoyee au serveur (format wire)
+		 */
+		public byte[] getQuestion() {
+			return questionBytes;
+		}
+
+		/**
+		 * @return demandeurs attaches a cette requete (en plus du demandeur original)
+		 */
+		public List<Waiter> getWaiters() {
+			return waiters == null ? Collections.emptyList() : waiters;
+		}
+
+		/**
+		 * Reserve la reponse au demandeur original : une reponse perimee
+		 * (serve-stale) et celle du serveur ne sont pas envoyees toutes les deux
+		 * @return true si le demandeur n'a pas encore recu de reponse
+		 */
+		public synchronized boolean claimClientAnswer() {
+			if (clientAnswered)
+				return false;
+			clientAnswered = true;
+			return true;
+		}
+
+		/**
+		 * Reserve la nouvelle demande en TCP d'une reponse tronquee
+		 * @return true si la requete n'a pas encore ete redemandee en TCP
+		 */
+		public synchronized boolean claimTcpRetry() {
+			if (tcpRetry)
+				return false;
+			tcpRetry = true;
+			return true;
+		}
+
+		boolean isExpired(long now) {
+			return now - expiresAt >= 0;
+		}
+	}
+
+	private final Transaction[] slots = new Transaction[MAX_TRANSACTIONS];
+	private final long timeoutNanos;
+	private int size = 0;
+	private final Map<Question, Transaction> pending = new HashMap<>(); //requetes regroupables en attente
+	private long expired = 0; //nombre d'entrees expirees sans reponse
+	private long coalesced = 0; //nombre de demandes attachees a une requete en attente
+	private Consumer<Transaction> expiredListener = null;
+
+	/**
+	 * Constructeur, delai d'expiration par defaut
+	 */
+	public TransactionTable() {
+		this(DEFAULT_TIMEOUT_MS);
+	}
+
+	/**
+	 * @param timeoutMs : delai apres lequel une requete sans reponse est oubliee
+	 */
+	public TransactionTable(long timeoutMs) {
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+	}
+
+	/**
+	 * Enregistre une requete a rediriger et lui attribue un identifiant unique.
+	 * L'identifiant est choisi au hasard (protection contre l'empoisonnement
+	 * de cache) puis on sonde lineairement jusqu'a une case libre ou expiree.
+	 * @param clientAddress : adresse du demandeur
+	 * @param clientPort : port du demandeur
+	 * @param query : requete du demandeur decodee (identifiant et question)
+	 * @param upstreamAddress : serveur DNS (et port) qui va recevoir la requete
+	 * @return l'identifiant a utiliser vers le serveur, -1 si la table est pleine
+	 */
+	public synchronized int register(InetAddress clientAddress, int clientPort, DNSMessageDecoder query,
+			InetSocketAddress upstreamAddress) {
+		Transaction t = allocate(clientAddress, clientPort, query.getId(), upstreamAddress);
+		if (t == null)
+			return FULL;
+		t.question = new Question(query.getQName(), query.getQType(), query.getQClass());
+		int debut = query.getOffset() + DNSMessageDecoder.HEADER_SIZE;
+		t.questionBytes = Arrays.copyOfRange(query.getData(), debut, query.getOffset() + query.getQuestionEnd());
+		return t.upstreamId;
+	}
+
+	/**
+	 * Enregistre une requete a rediriger, ou l'attache a une requete identique
+	 * (meme nom, type et classe) deja en attente du serveur.
+	 * Un rafraichissement (sans demandeur) n'est pas attache : la requete en
+	 * attente mettra le cache a jour.
+	 * @param clientAddress : adresse du demandeur, null pour un rafraichissement
+	 * @param clientPort : port du demandeur
+	 * @param query : requete du demandeur decodee
+	 * @param upstreamAddress : serveur DNS (et port) qui recevra la requete
+	 * @param channel : canal de reception de la requete du demandeur
+	 * @return l'identifiant a utiliser vers le serveur, JOINED si la demande a
+	 * ete attachee a une requete en attente (rien a envoyer), FULL si la table est pleine
+	 */
+	public synchronized int register(InetAddress clientAddress, int clientPort, DNSMessageDecoder query,
+			InetSocketAddress upstreamAddress, PacketChannel channel) {
+		Question question = new Question(query.getQName(), query.getQType(), query.getQClass());
+		int debut = query.getOffset() + DNSMessageDecoder.HEADER_SIZE;
+		int fin = query.getOffset() + query.getQuestionEnd();
+		Transaction enAttente = pending.get(question);
+		if (enAttente != null && !enAttente.isExpired(System.nanoTime())
+				&& (enAttente.waiters == null || enAttente.waiters.size() < MAX_WAITERS)) {
+			if (clientAddress == null)
+				return JOINED; //rien a renvoyer
+			//la question du demandeur n'est gardee que si sa casse differe
+			byte[] octets = Arrays.equals(enAttente.questionBytes, 0, enAttente.questionBytes.length,
+					query.getData(), debut, fin) ? null : Arrays.copyOfRange(query.getData(), debut, fin);
+			if (enAttente.waiters == null)
+				enAttente.waiters = new ArrayList<>(4);
+			enAttente.waiters.add(new Waiter(clientAddress, clientPort, query.getId(), octets, channel,
+					query.getUdpPayloadSize()));
+			coalesced++;
+			return JOINED;
+		}
+		Transaction t = allocate(clientAddress, clientPort, query.getId(), upstreamAddress);
+		if (t == null)
+			return FULL;
+		t.question = question;
+		t.questionBytes = Arrays.copyOfRange(query.getData(), debut, fin);
+		pending.put(question, t);
+		return t.upstreamId;
+	}
+
+	private Transaction allocate(InetAddress clientAddress, int clientPort, int clientId,
+			InetSocketAddress upstreamAddress) {
+		long now = System.nanoTime();
+		int start = ThreadLocalRandom.current().nextInt(MAX_TRANSACTIONS);
+		for (int i = 0; i < MAX_TRANSACTIONS; i++) {
+			int id = (start + i) & (MAX_TRANSACTIONS - 1);
+			Transaction t = slots[id];
+			if (t != null) {
+				if (!t.isExpired(now))
+					continue;
+				remove(t);
+				expire(t);
+			}
+			slots[id] = new Transaction(id, clientAddress, clientPort, clientId,
+					upstreamAddress, now, now + timeoutNanos);
+			size++;
+			return slots[id];
+		}
+		return null;
+	}
+
+	/**
+	 * Retire la requete associee a une reponse du serveur. L'identifiant ne
+	 * fait que 16 bits : la reponse doit aussi venir du serveur interroge et
+	 * porter la meme question (nom sans tenir compte de la casse, type et
+	 * classe), sinon elle est ignoree et la requete reste en attente.
+	 * @param upstreamId : identifiant de la reponse recue
+	 * @param from : adresse et port qui ont envoye la reponse
+	 * @param reply : reponse recue decodee
+	 * @return la requete d'origine, null si inconnue, expiree, d'une autre
+	 * source ou pour une autre question
+	 */
+	public synchronized Transaction complete(int upstreamId, InetSocketAddress from, DNSMessageDecoder reply) {
+		Transaction t = match(upstreamId, from, reply);
+		if (t == null)
+			return null;
+		remove(t);
+		t.cancel(); //plus de retransmission
+		if (t.isExpired(System.nanoTime())) {
+			expire(t);
+			return null;
+		}
+		return t;
+	}
+
+	/**
+	 * Requete en attente a laquelle correspond une reponse, sans la retirer
+	 * (reponse tronquee redemandee en TCP : la requete reste en attente)
+	 * @param upstreamId : identifiant de la reponse recue
+	 * @param from : adresse et port qui ont envoye la reponse
+	 * @param reply : reponse recue decodee
+	 * @return la requete d'origine, null si inconnue, expiree, d'une autre
+	 * source ou pour une autre question
+	 */
+	public synchronized Transaction peek(int upstreamId, InetSocketAddress from, DNSMessageDecoder reply) {
+		Transaction t = match(upstreamId, from, reply);
+		return t == null || t.isExpired(System.nanoTime()) ? null : t;
+	}
+
+	private Transaction match(int upstreamId, InetSocketAddress from, DNSMessageDecoder reply) {
+		Transaction t = slots[upstreamId & (MAX_TRANSACTIONS - 1)];
+		if (t == null)
+			return null;
+		if (t.upstreamAddress != null && from != null && !t.upstreamAddress.equals(from))
+			return null; //reponse d'un autre serveur, on garde la requete
+		if (reply.getQuestionCount() < 1 || reply.getQType() != t.question.type
+				|| reply.getQClass() != t.question.clazz || !reply.getQName().equals(t.question.name))
+			return null; //reponse a une autre question, on garde la requete
+		return t;
+	}
+
+	/**
+	 * Retire toutes les requetes expirees
+	 * @return nombre d'entrees retirees
+	 */
+	public synchronized int purge() {
+		long now = System.nanoTime();
+		int retirees = 0;
+		for (int id = 0; id < MAX_TRANSACTIONS && size > 0; id++) {
+			Transaction t = slots[id];
+			if (t != null && t.isExpired(now)) {
+				remove(t);
+				retirees++;
+				expire(t);
+			}
+		}
+		return retirees;
+	}
+
+	/**
+	 * @param upstreamId : identifiant sortant
+	 * @return la requete en attente, null si inconnue
+	 */
+	public synchronized Transaction get(int upstreamId) {
+		return slots[upstreamId & (MAX_TRANSACTIONS - 1)];
+	}
+
+	/**
+	 * Prepare la retransmission d'une requete toujours en attente
+	 * @param t : requete sans reponse
+	 * @param upstreamAddress : serveur qui recevra la retransmission
+	 * @param timeoutNanos : delai avant l'expiration de la table
+	 * @return false si la requete n'est plus en attente (reponse recue entre temps)
+	 */
+	public synchronized boolean retry(Transaction t, InetSocketAddress upstreamAddress, long timeoutNanos) {
+		if (slots[t.upstreamId] != t)
+			return false;
+		long now = System.nanoTime();
+		synchronized (t) {
+			t.upstreamAddress = upstreamAddress;
+			t.attempts++;
+			t.sentAt = now;
+		}
+		t.expiresAt = now + timeoutNanos;
+		return true;
+	}
+
+	/**
+	 * Retire une requete qui n'a pas pu etre envoyee au serveur
+	 * @param t : requete a retirer
+	 * @return false si la requete n'est plus en attente
+	 */
+	public synchronized boolean cancel(Transaction t) {
+		if (slots[t.upstreamId] != t)
+			return false;
+		remove(t);
+		t.cancel(); //plus de retransmission
+		return true;
+	}
+
+	/**
+	 * Abandonne une requete restee sans reponse (sans avertir l'observateur)
+	 * @param t : requete sans reponse
+	 * @return false si la requete n'est plus en attente
+	 */
+	public synchronized boolean abandon(Transaction t) {
+		if (slots[t.upstreamId] != t)
+			return false;
+		remove(t);
+		expired++;
+		return true;
+	}
+
+	private void remove(Transaction t) {
+		slots[t.upstreamId] = null;
+		size--;
+		if (t.question != null)
+			pending.remove(t.question, t);
+	}
+
+	private void expire(Transaction t) {
+		expired++;
+		if (expiredListener != null)
+			expiredListener.accept(t);
+	}
+
+	/**
+	 * @param listener : averti de chaque requete expiree sans reponse
+	 * (appele en tenant le verrou de la table, doit etre rapide)
+	 */
+	public synchronized void setExpiredListener(Consumer<Transaction> listener) {
+		this.expiredListener = listener;
+	}
+
+	/**
+	 * @return nombre de requetes en attente
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return nombre de demandes attachees a une requete deja en attente
+	 */
+	public synchronized long getCoalescedCount() {
+		return coalesced;
+	}
+
+	/**
+	 * @return nombre de requetes expirees sans reponse
+	 */
+	public synchronized long getExpiredCount() {
+		return expired;
+	}
+
+	/**
+	 * Ecrit un identifiant dans l'en-tete d'un message DNS
+	 * @param data : message
+	 * @param offset : debut du message
+	 * @param id : identifiant (16 bits)
+	 */
+	public static void writeId(byte[] data, int offset, int id) {
+		data[offset] = (byte) (id >>> 8);
+		data[offset + 1] = (byte) id;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "TransactionTable[en attente=" + size + ", regroupees=" + coalesced + ", expirees=" + expired + "]";
+	}
+}
@@ -1,3 +1,4 @@
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -50,156 +51,165 @@ public class UDPAnswerPacketCreator {
 	 * @return tableau de bytes donnant un packet de reponse DNS
 	 */
 	public byte[] CreateAnswerPacket(byte[] Qpacket,List<String> listadrr){
-		Answerpacket answer = new Answerpacket();
 		int ancount = listadrr.size();
 		if(ancount == 0){
-			System.out.println("No adresse to search exiting");
+			Log.debug("No adresse to search exiting");
 			return null;
 		}
-		System.out.println("Preparing packet for len="+ancount);
-		
-		//System.out.println("Le packet QUERY recu");
-		
-		for(int i = 0;i < Qpacket.length;i++){
-			if(i%16 == 0){
-				//System.out.println("\r");
-			}
-			//System.out.print(Integer.toHexString(Qpacket[i] & 0xff).toString() + " ");
+		DNSMessageDecoder query = new DNSMessageDecoder();
+		if(!query.decode(Qpacket, 0, Qpacket.length))
+			return null;
+		int[] adresses = new int[ancount];
+		for(int i = 0; i < ancount; i++){
+			adresses[i] = ZoneStore.parseIPv4(listadrr.get(i));
 		}
-		//System.out.println("\r");
-		
-		//copie les informations dans un tableau qui est utilise de buffer
-		//durant la modification du packet
-		byte[] tmp_packet = new byte[1024];
-		System.arraycopy(Qpacket, 0, tmp_packet, 0, Qpacket.length);
-		
-		//copie de l'identifiant
-		tmp_packet[0] = (byte)Qpacket[0];
-		tmp_packet[1] = (byte)Qpacket[1];
-		
-		//modification des parametres
-		//Active le champ reponse dans l'en-tete
-		tmp_packet[2] = (byte) 0x81; //QR+opcode+AA+TC+RD
-		tmp_packet[3] = (byte) 0x80; //RA+Z+RCODE
-		tmp_packet[4] = (byte) 0x00; //Qcount & 0xFF00
-		tmp_packet[5] = (byte) 0x01; //Qcount & 0x00FF
-		
-		tmp_packet[6] = ((byte) ((ancount&(0xFF00)) >>8) ); //Ancount & 0xFF00
-		tmp_packet[7] = (byte) ((ancount&(0x00FF)) ); //Ancount & 0x00FF
-		
-		//Serveur authority --> 0 il n'y a pas de serveur d'autorite
-		tmp_packet[8] = (byte) 0x00; //NScount & 0xFF00
-		tmp_packet[9] = (byte) 0x00; //NScount & 0x00FF
-		
-		tmp_packet[10] = (byte) 0x00; //ARCOUNT & 0xFF00
-		tmp_packet[11] = (byte) 0x00; //ARcount & 0x00FF
-
-		//Lecture de l'hostname
-		//ici comme on ne connait pas la grandeur que occupe le nom de domaine
-		//nous devons rechercher l'index pour pouvoir placer l'adresse IP au bon endroit
-		//dans le packet
-		
-		String hostName = "";
-		int index = 12, len;
-		
-		//lire qname
-		while ((len = (int)tmp_packet[index]) != 0) {
-			//System.out.println("len=" + len);
-			for (int i = 1; i <= len; i++) {
-				hostName += (char)(tmp_packet[index+i]);
+		AnswerTemplate template = AnswerTemplate.forAddresses(adresses);
+		ByteBuffer packet = ByteBuffer.allocate(query.getQuestionEnd() + template.getLength());
+		CreateAnswerPacket(query, template, packet);
+		return packet.array();
+	}
+	
+	/**
+	 * Encode la reponse a une requete directement dans le buffer de
+	 * l'appelant, sans allocation : en-tete, question recopiee de la requete
+	 * puis la section reponse pre-encodee du nom (TTL du template).
+	 * @see #CreateAnswerPacket(DNSMessageDecoder, AnswerTemplate, long, ByteBuffer)
+	 */
+	public int CreateAnswerPacket(DNSMessageDecoder query, AnswerTemplate template, ByteBuffer out){
+		return CreateAnswerPacket(query, template, -1, out);
+	}
+	
+	/**
+	 * Encode la reponse a une requete directement dans le buffer de
+	 * l'appelant, sans allocation. Seuls l'en-tete (identifiant de la requete)
+	 * et, si demande, les TTL sont modifies par rapport au template.
+	 * Les records qui ne tiennent pas dans le buffer sont omis et le bit TC est leve.
+	 * @param query : requete DNS decodee
+	 * @param template : section reponse pre-encodee du nom
+	 * @param ttl : TTL des records, ou -1 pour garder celui du template
+	 * @param out : buffer de sortie, le paquet est ecrit a partir de la position
+	 * @return taille du paquet ecrit, ou -1 si la question ne tient pas dans le buffer
+	 */
+	public int CreateAnswerPacket(DNSMessageDecoder query, AnswerTemplate template, long ttl, ByteBuffer out){
+		int start = out.position();
+		int questionEnd = query.getQuestionEnd();
+		if(questionEnd < 0 || out.remaining() < questionEnd)
+			return -1;
+		int ancount = Math.min(template.getCount(), (out.remaining() - questionEnd) / AnswerTemplate.RECORD_SIZE);
+		byte[] q = query.getData();
+		int qOff = query.getOffset();
+		
+		//en-tete et question de la requete (meme identifiant)
+		out.put(q, qOff, questionEnd);
+		//QR + opcode et RD de la requete, TC si tronque, RA
+		out.put(start + 2, (byte) (0x80 | (q[qOff + 2] & 0x79) | (ancount < template.getCount() ? 0x02 : 0)));
+		out.put(start + 3, (byte) 0x80);
+		out.putShort(start + 4, (short) 1); //Qcount
+		out.putShort(start + 6, (short) ancount); //Ancount
+		out.putInt(start + 8, 0); //NScount, ARcount
+		
+		//section reponse
+		int debut = out.position();
+		out.put(template.getRecords(), 0, ancount * AnswerTemplate.RECORD_SIZE);
+		if(ttl >= 0){
+			for(int i = 0; i < ancount; i++){
+				out.putInt(debut + i * AnswerTemplate.RECORD_SIZE + AnswerTemplate.TTL_OFFSET, (int) ttl);
 			}
-			hostName = hostName + ".";
-			index += len+1;
 		}
-		//System.out.println("hostname found="+hostName);
-		//tmp_packet[index] = 0; //last index is 0 and mark end of qname
-
-		//Identification de la class
-		//type
-		tmp_packet[index + 1] = (byte)0x00; //Qtype  & 0xFF00
-		tmp_packet[index + 2] = (byte)0x01; //Qtype  & 0x00FF
-		//class
-		tmp_packet[index + 3] = (byte)0x00; //Qclass  & 0xFF00
-		tmp_packet[index + 4] = (byte)0x01; //Qclass  & 0x00FF
-		
-		
-		//Champ reponse
-		int i, lenanswer=16;
-		int j=index + 5;
-		for(i=0; i<ancount; i++){
-			//name offset !TODO whaaaat ?
-			tmp_packet[j] = (byte) (0xC0); //name  & 0xFF00
-			tmp_packet[j + 1] = (byte) (0x0C); //name  & 0x00FF
-			
-			tmp_packet[j + 2] = (byte) (0x00); //type  & 0xFF00
-			tmp_packet[j + 3] = (byte) 0x01;	//type  & 0x00FF
-			
-			
-			tmp_packet[j + 4] = (byte) 0x00; //class  & 0xFF00
-			tmp_packet[j + 5] = (byte) 0x01; //class & 0x00FF
-			
-			//TTL
-			tmp_packet[j + 6] = (byte) 0x00;
-			tmp_packet[j + 7] = (byte) 0x01;
-			tmp_packet[j + 8] = (byte) 0x1a;
-			tmp_packet[j + 9] = (byte) (0x6c);
-			
-			
-			//Grace a l'index de position, nous somme en mesure
-			//de faire l'injection de l'adresse IP dans le packet
-			//et ce au bon endroit
-			tmp_packet[j + 10] = (byte) (0x00); //RDLENGHT & 0xFF00
-			tmp_packet[j + 11] = (byte) 0x04;//taille RDLENGHT 0x00FF
-			
-			//Conversion de l'adresse IP de String en byte
-			String adrr = listadrr.get(i);
-			//System.out.println("Adr to transmit="+adrr);
-			adrr = adrr.replace("."," ");
-			String[] adr = adrr.split(" ");
-			byte part1 = (byte)(Integer.parseInt(adr[0]) & 0xff);
-			byte part2 = (byte)(Integer.parseInt(adr[1]) & 0xff);
-			byte part3 = (byte)(Integer.parseInt(adr[2]) & 0xff);
-			byte part4 = (byte)(Integer.parseInt(adr[3]) & 0xff);
-			
-			//IP RDATA
-			tmp_packet[j + 12] = (byte) unsignedIP(part1);
-			tmp_packet[j + 13] = (byte) unsignedIP(part2);
-			tmp_packet[j + 14] = (byte) unsignedIP(part3);
-			tmp_packet[j + 15] = (byte) unsignedIP(part4);
-			j+=lenanswer;
+		return out.position() - start;
+	}
+	
+	/**
+	 * Cree la reponse a une requete a partir d'une reponse en cache.
+	 * Les TTL sont decomptes depuis la mise en cache.
+	 * @param query : requete DNS decodee
+	 * @param entry : reponse en cache pour la question
+	 * @return tableau de bytes donnant un packet de reponse DNS
+	 */
+	public byte[] CreateCachedAnswerPacket(DNSMessageDecoder query, AnswerCache.Entry entry){
+		return CreateCachedAnswerPacket(query, entry, -1);
+	}
+	
+	/**
+	 * Cree la reponse a une requete a partir d'une reponse en cache
+	 * @param query : requete DNS decodee
+	 * @param entry : reponse en cache pour la question
+	 * @param ttl : TTL de tous les records, ou -1 pour les TTL decomptes
+	 * (ex : TTL court d'une reponse perimee)
+	 * @return tableau de bytes donnant un packet de reponse DNS
+	 */
+	public byte[] CreateCachedAnswerPacket(DNSMessageDecoder query, AnswerCache.Entry entry, long ttl){
+		AnswerCache.Record[] records = entry.getAnswers();
+		long now = System.nanoTime();
+		byte[] q = query.getData();
+		int qOff = query.getOffset();
+		int questionEnd = query.getQuestionEnd();
+		int qnameLen = questionEnd - 4 - DNSMessageDecoder.HEADER_SIZE;
+		
+		//taille du paquet : en-tete + question + records
+		int longueur = questionEnd;
+		for (AnswerCache.Record r : records) {
+			boolean pointeur = sameName(r.getOwner(), q, qOff + DNSMessageDecoder.HEADER_SIZE, qnameLen);
+			longueur += (pointeur ? 2 : r.getOwner().length) + 10 + r.getRdata().length;
 		}
 		
-		answer.longueur = j; 
-		answer.bytes = new byte[answer.longueur];
-		for(i = 0; i < answer.longueur; i++){ //remply le reste de merde
-			answer.bytes[i] = (byte) tmp_packet[i];
+		byte[] packet = new byte[longueur];
+		System.arraycopy(q, qOff, packet, 0, questionEnd);
+		//QR + opcode et RD de la requete, RA
+		packet[2] = (byte) (0x80 | (q[qOff + 2] & 0x79));
+		packet[3] = (byte) 0x80;
+		packet[6] = (byte) (records.length >>> 8); //Ancount
+		packet[7] = (byte) records.length;
+		packet[8] = packet[9] = packet[10] = packet[11] = 0; //NScount, ARcount
+		
+		int j = questionEnd;
+		for (AnswerCache.Record r : records) {
+			if (sameName(r.getOwner(), q, qOff + DNSMessageDecoder.HEADER_SIZE, qnameLen)) {
+				packet[j++] = (byte) 0xC0; //pointeur vers le nom de la question
+				packet[j++] = (byte) 0x0C;
+			} else {
+				System.arraycopy(r.getOwner(), 0, packet, j, r.getOwner().length);
+				j += r.getOwner().length;
+			}
+			j = writeRecord(packet, j, r.getType(), r.getClazz(), ttl >= 0 ? ttl : entry.getRemainingTtl(r, now), r.getRdata());
 		}
-		
-//		System.out.println("Identifiant: 0x" + Integer.toHexString(answer.bytes[0] & 0xff) + Integer.toHexString(answer.bytes[1] & 0xff));
-//		System.out.println("parametre: 0x" + Integer.toHexString(answer.bytes[2] & 0xff) + Integer.toHexString(answer.bytes[3] & 0xff));
-//		System.out.println("question: 0x" + Integer.toHexString(answer.bytes[4] & 0xff) + Integer.toHexString(answer.bytes[5] & 0xff));
-//		System.out.println("reponse: 0x" + Integer.toHexString(answer.bytes[6] & 0xff) + Integer.toHexString(answer.bytes[7] & 0xff));
-//		System.out.println("autorite: 0x" + Integer.toHexString(answer.bytes[8] & 0xff) + Integer.toHexString(answer.bytes[9] & 0xff));
-//		System.out.println("info complementaire: 0x" + Integer.toHexString(answer.bytes[10] & 0xff) + Integer.toHexString(answer.bytes[11] & 0xff));
-		
-		
-//		for(i = 0;i < answer.longueur;i++){
-//			if(i%16 == 0){
-//				System.out.println("\r");
-//			}
-//			System.out.print(Integer.toHexString(answer.bytes[i] & 0xff).toString() + " ");
-//		}
-//		System.out.println("\r");
-		
-		return answer.bytes;
+		return packet;
 	}
 	
-	int unsignedIP(int data){
-		int tmp=0;
-		if( (data&(0x80))==(0x80) )
-			tmp=(data&(0x7F))+128;
-		else
-			tmp=data;
-		return tmp;
+	/**
+	 * Ecrit type, classe, TTL, RDLENGTH et RDATA d'un record (apres le nom)
+	 * @return position apres le record
+	 */
+	static int writeRecord(byte[] packet, int j, int type, int clazz, long ttl, byte[] rdata) {
+		packet[j] = (byte) (type >>> 8);
+		packet[j + 1] = (byte) type;
+		packet[j + 2] = (byte) (clazz >>> 8);
+		packet[j + 3] = (byte) clazz;
+		packet[j + 4] = (byte) (ttl >>> 24);
+		packet[j + 5] = (byte) (ttl >>> 16);
+		packet[j + 6] = (byte) (ttl >>> 8);
+		packet[j + 7] = (byte) ttl;
+		packet[j + 8] = (byte) (rdata.length >>> 8);
+		packet[j + 9] = (byte) rdata.length;
+		System.arraycopy(rdata, 0, packet, j + 10, rdata.length);
+		return j + 10 + rdata.length;
+	}
+	
+	/**
+	 * Compare un nom (format wire) a celui d'un paquet, sans tenir compte de la casse
+	 */
+	static boolean sameName(byte[] name, byte[] b, int bOff, int bLen) {
+		if (name.length != bLen)
+			return false;
+		for (int i = 0; i < bLen; i++) {
+			int x = name[i], y = b[bOff + i];
+			if (x >= 'A' && x <= 'Z')
+				x += 'a' - 'A';
+			if (y >= 'A' && y <= 'Z')
+				y += 'a' - 'A';
+			if (x != y)
+				return false;
+		}
+		return true;
 	}
 }
\ No newline at end of file
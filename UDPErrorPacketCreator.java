@@ -0,0 +1,121 @@
+/**
+ * Class utilitaire pour creer un packet de reponse DNS sans reponse :
+ * erreur (RCODE) ou reponse negative en cache (NXDOMAIN / NODATA avec le
+ * SOA de la zone dans la section autorite).
+ * Pendant de UDPAnswerPacketCreator pour les reponses en erreur.
+ * @author lighta
+ */
+public class UDPErrorPacketCreator {
+	public final static int RCODE_NOERROR = 0;
+	public final static int RCODE_FORMERR = 1;
+	public final static int RCODE_SERVFAIL = 2;
+	public final static int RCODE_NXDOMAIN = 3;
+	public final static int RCODE_NOTIMP = 4;
+	public final static int RCODE_REFUSED = 5;
+
+	/**
+	 * Constructeur de notre class utilitaire
+	 */
+	private UDPErrorPacketCreator(){
+
+	}
+
+	/** Holder (thread safe) */
+	private static class SingletonHolder
+	{
+		/** Instance unique non preinitialisee */
+		private final static UDPErrorPacketCreator instance = new UDPErrorPacketCreator();
+	}
+
+	/** Point d'acces pour l'instance unique du singleton */
+	public static UDPErrorPacketCreator getInstance()
+	{
+		return SingletonHolder.instance;
+	}
+
+	/**
+	 * Cree une reponse d'erreur : en-tete et question de la requete, sans record
+	 * @param query : requete DNS decodee
+	 * @param rcode : code de retour (RCODE_*)
+	 * @return tableau de bytes donnant un packet de reponse DNS
+	 */
+	public byte[] CreateErrorPacket(DNSMessageDecoder query, int rcode){
+		byte[] packet = new byte[query.getQuestionEnd()];
+		writeHeader(packet, query, rcode, 0);
+		return packet;
+	}
+
+	/**
+	 * Cree une reponse vide tronquee (bit TC) : le client doit reessayer en TCP
+	 * @param query : requete DNS decodee
+	 * @return tableau de bytes donnant un packet de reponse DNS
+	 */
+	public byte[] CreateTruncatedPacket(DNSMessageDecoder query){
+		byte[] packet = CreateErrorPacket(query, RCODE_NOERROR);
+		packet[2] |= 0x02; //TC
+		return packet;
+	}
+
+	/**
+	 * Cree la reponse a une requete a partir d'une reponse negative en cache.
+	 * Le SOA est place dans la section autorite avec son TTL decompte.
+	 * @param query : requete DNS decodee
+	 * @param entry : reponse negative en cache
+	 * @return tableau de bytes donnant un packet de reponse DNS
+	 */
+	public byte[] CreateNegativePacket(DNSMessageDecoder query, AnswerCache.Entry entry){
+		return CreateNegativePacket(query, entry, -1);
+	}
+
+	/**
+	 * Cree la reponse a une requete a partir d'une reponse negative en cache
+	 * @param query : requete DNS decodee
+	 * @param entry : reponse negative en cache
+	 * @param ttl : TTL du SOA, ou -1 pour le TTL decompte (ex : TTL court d'une reponse perimee)
+	 * @return tableau de bytes donnant un packet de reponse DNS
+	 */
+	public byte[] CreateNegativePacket(DNSMessageDecoder query, AnswerCache.Entry entry, long ttl){
+		AnswerCache.Record[] autorite = entry.getAuthority();
+		long now = System.nanoTime();
+		byte[] q = query.getData();
+		int qnameOff = query.getOffset() + DNSMessageDecoder.HEADER_SIZE;
+		int qnameLen = query.getQuestionEnd() - 4 - DNSMessageDecoder.HEADER_SIZE;
+		int longueur = query.getQuestionEnd();
+		for (AnswerCache.Record r : autorite) {
+			boolean pointeur = UDPAnswerPacketCreator.sameName(r.getOwner(), q, qnameOff, qnameLen);
+			longueur += (pointeur ? 2 : r.getOwner().length) + 10 + r.getRdata().length;
+		}
+
+		byte[] packet = new byte[longueur];
+		writeHeader(packet, query, entry.getRcode(), autorite.length);
+		int j = query.getQuestionEnd();
+		for (AnswerCache.Record r : autorite) {
+			if (UDPAnswerPacketCreator.sameName(r.getOwner(), q, qnameOff, qnameLen)) {
+				packet[j++] = (byte) 0xC0; //pointeur vers le nom de la question
+				packet[j++] = (byte) 0x0C;
+			} else {
+				System.arraycopy(r.getOwner(), 0, packet, j, r.getOwner().length);
+				j += r.getOwner().length;
+			}
+			//le TTL du SOA ne doit pas depasser la duree de vie restante de l'entree
+			long ttlSoa = ttl >= 0 ? ttl : Math.min(entry.getRemainingTtl(r, now), entry.getRemainingTtl(now));
+			j = UDPAnswerPacketCreator.writeRecord(packet, j, r.getType(), r.getClazz(), ttlSoa, r.getRdata());
+		}
+		return packet;
+	}
+
+	/**
+	 * Copie l'en-tete et la question de la requete puis positionne les
+	 * champs de la reponse
+	 */
+	private static void writeHeader(byte[] packet, DNSMessageDecoder query, int rcode, int nscount) {
+		System.arraycopy(query.getData(), query.getOffset(), packet, 0, query.getQuestionEnd());
+		//QR + opcode et RD de la requete ; RA + RCODE
+		packet[2] = (byte) (0x80 | (packet[2] & 0x79));
+		packet[3] = (byte) (0x80 | (rcode & 0x0F));
+		packet[6] = packet[7] = 0; //Ancount
+		packet[8] = (byte) (nscount >>> 8); //NScount
+		packet[9] = (byte) nscount;
+		packet[10] = packet[11] = 0; //ARcount
+	}
+}
@@ -1,17 +1,13 @@
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Scanner;
-
-import javax.print.attribute.standard.PrinterLocation;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Cette classe permet la reception d'un paquet UDP sur le port de reception
@@ -63,7 +59,8 @@ public class UDPReceiver extends Thread {
 	 */
 
 	protected final static int BUF_SIZE = 1024;
-	protected String SERVER_DNS = null;//serveur de redirection (ip)
+	protected final static int MAX_UDP_SIZE = 512; //taille max d'une reponse UDP (RFC 1035)
+	protected String SERVER_DNS = null;//serveur(s) de redirection (ip[:port], separes par des virgules)
 	protected int portRedirect = 53; // port  de redirection (par defaut)
 	protected int port; // port de reception
 	private String adrIP = null; //bind ip d'ecoute
@@ -71,11 +68,38 @@ public class UDPReceiver extends Thread {
 	private String DNSFile = null;
 	private boolean RedirectionSeulement = false;
 	
-	private class ClientInfo { //quick container
-		public String client_ip = null;
-		public int client_port = 0;
-	};
-	private HashMap<Integer, ClientInfo> Clients = new HashMap<>();
+	// *Requetes redirigees en attente de reponse (identifiant sortant -> client)
+	private TransactionTable Clients = new TransactionTable();
+	private boolean coalesce = true; //regrouper les questions identiques en attente du serveur
+	private Prefetcher prefetcher = null; //rafraichissement anticipe des reponses populaires (null = desactive)
+	private TimingWheel timers = null; //retransmission des requetes sans reponse
+	private long tentativeNanos; //delai de reponse du premier envoi
+	private int retries; //retransmissions avant SERVFAIL
+	private final DNSMessageDecoder decodeurTimers = new DNSMessageDecoder(); //utilise par le thread de la roue
+	private UpstreamPool upstreams = null; //SERVER_DNS resolu une seule fois, avec les statistiques de chaque serveur
+	private long staleTtl = -1; //TTL des reponses perimees (-1 = serve-stale desactive)
+	private int ednsMax = Edns.DEFAULT_MAX_PAYLOAD; //taille max d'une reponse UDP aux clients EDNS0 (0 = sans EDNS)
+	private long staleDeadlineNanos; //attente du serveur avant de servir une reponse perimee
+	private final static long STALE_RECHECK_NANOS = TimeUnit.SECONDS.toNanos(30); //apres un echec, reponse perimee immediate
+	private final AtomicInteger redirections = new AtomicInteger(); //nombre de requetes redirigees
+	private RateLimiter limiteur = null; //debit permis par adresse IP (null = pas de limite)
+	private final Metrics metrics = new Metrics(); //compteurs et latences, exposes par --metrics-port
+	
+	private ServerConfig config = ServerConfig.parse(new String[0]); //options de la ligne de commande
+	private QueryFinder finder = null; //index partage par les workers
+	private AnswerRecorder enregistrement = null;
+	private boolean record = false; //enregistrer les reponses du serveur dans DNSFile
+	private AnswerCache cache = null; //reponses du serveur DNS, avec leur TTL
+	private ResponseCache responses = null; //reponses encodees, par question (null = desactive)
+	private TcpTransport tcp = null; //DNS sur TCP (null = desactive)
+	private volatile UDPTransport transport = null; //transport UDP en service (pour les mesures)
+	// *Decodeur et buffer d'envoi UDP par worker ; avec un thread virtuel par
+	// requete, un ThreadLocal serait alloue a chaque requete : reserves partagees
+	private ThreadLocal<DNSMessageDecoder> decoders = null; //null en mode thread virtuel
+	private final ConcurrentLinkedQueue<DNSMessageDecoder> decodeursLibres = new ConcurrentLinkedQueue<>();
+	private ThreadLocal<ByteBuffer> sorties = null; //null en mode thread virtuel
+	private BufferPool sortiesUdp = null; //reponses UDP, taille max(512, --edns-max)
+	private BufferPool sortiesTcp = null; //reponses TCP, jusqu'a 64 Ko
 	
 	private boolean stop = false;
 
@@ -119,321 +143,943 @@ public class UDPReceiver extends Thread {
 	public void setDNSFile(String filename) {
 		DNSFile = filename;
 	}
+	
+	public void setConfig(ServerConfig config) {
+		this.config = config;
+	}
+	
+	/**
+	 * Redirige une requete vers un des serveurs de SERVER_DNS (le plus rapide
+	 * des serveurs disponibles). L'identifiant de la requete est
+	 * remplace par un identifiant unique afin de pouvoir retrouver le
+	 * demandeur original lorsque la reponse arrivera, meme si plusieurs
+	 * clients interrogent le serveur en meme temps.
+	 * @param canal : canal de reception, utilise pour l'envoi
+	 * @param decodeur : requete du client decodee
+	 * @param client : adresse et port du demandeur
+	 */
+	private void redirect(PacketChannel canal, DNSMessageDecoder decodeur, InetSocketAddress client)
+			throws IOException {
+		// *Reponse expiree encore dans la fenetre de grace (serve-stale) : elle
+		// sera servie si le serveur ne repond pas avant l'echeance
+		AnswerCache.Entry perimee = staleTtl < 0 ? null
+				: cache.getStale(decodeur.getQName(), decodeur.getQType(), decodeur.getQClass());
+		if (perimee == null) {
+			forward(canal, decodeur, client, decodeur.getData(), decodeur.getOffset(), decodeur.getLength());
+			return;
+		}
+		byte[] reponse = fitResponse(createStalePacket(decodeur, perimee), decodeur, clientPayload(decodeur), canal); //avant que l'identifiant soit remplace
+		if (perimee.hasRecentUpstreamFailure(System.nanoTime(), STALE_RECHECK_NANOS)) {
+			Log.debug("Serveur DNS indisponible, reponse perimee servie");
+			cache.recordStaleServed();
+			metrics.count(Metrics.STALE);
+			canal.send(ByteBuffer.wrap(reponse), client);
+			return;
+		}
+		TransactionTable.Transaction transaction = forward(canal, decodeur, client,
+				decodeur.getData(), decodeur.getOffset(), decodeur.getLength());
+		if (transaction != null)
+			timers.schedule(new StaleAnswer(transaction, perimee, reponse), staleDeadlineNanos);
+	}
+	
+	/**
+	 * Echeance serve-stale : le demandeur recoit la reponse perimee si la
+	 * requete est encore en attente du serveur lorsqu'elle expire
+	 */
+	private static final class StaleAnswer extends TimingWheel.Timeout {
+		private final TransactionTable.Transaction transaction;
+		private final AnswerCache.Entry entree;
+		private final byte[] reponse; //reponse perimee, avec l'identifiant du demandeur
 
-	public void run() {
+		StaleAnswer(TransactionTable.Transaction transaction, AnswerCache.Entry entree, byte[] reponse) {
+			this.transaction = transaction;
+			this.entree = entree;
+			this.reponse = reponse;
+		}
+	}
+	
+	/**
+	 * @return reponse (ou reponse negative) perimee, avec le TTL court --stale-ttl
+	 */
+	private byte[] createStalePacket(DNSMessageDecoder decodeur, AnswerCache.Entry entree) {
+		return entree.isNegative()
+				? UDPErrorPacketCreator.getInstance().CreateNegativePacket(decodeur, entree, staleTtl)
+				: UDPAnswerPacketCreator.getInstance().CreateCachedAnswerPacket(decodeur, entree, staleTtl);
+	}
+	
+	/**
+	 * @return taille UDP annoncee par l'OPT du client, 0 sans OPT ou si EDNS est desactive
+	 */
+	private int clientPayload(DNSMessageDecoder requete) {
+		return ednsMax > 0 ? requete.getUdpPayloadSize() : 0;
+	}
+	
+	/**
+	 * @return taille max de la reponse a un client (EDNS0 en UDP, 65535 en TCP)
+	 */
+	private int responseLimit(int payload, PacketChannel canal) {
+		return Edns.responseLimit(payload, ednsMax, canal.getMaxMessageSize());
+	}
+	
+	/**
+	 * Adapte une reponse construite par le serveur au demandeur : tronquee
+	 * (bit TC) si elle depasse la taille permise, suivie de notre OPT si la
+	 * requete en avait un
+	 * @param reponse : reponse complete, sans OPT
+	 * @param requete : requete decodee (en-tete et question de la reponse tronquee)
+	 * @param payload : taille UDP annoncee par le demandeur, 0 sans OPT
+	 * @param canal : canal de la reponse
+	 * @return reponse a envoyer (le meme tableau si rien n'est modifie)
+	 */
+	private byte[] fitResponse(byte[] reponse, DNSMessageDecoder requete, int payload, PacketChannel canal) {
+		int opt = ednsMax > 0 && payload > 0 ? Edns.OPT_SIZE : 0;
+		if (reponse.length + opt > responseLimit(payload, canal))
+			reponse = UDPErrorPacketCreator.getInstance().CreateTruncatedPacket(requete); //le client reessaiera en TCP
+		return opt == 0 ? reponse : Edns.appendOpt(reponse, ednsMax);
+	}
+	
+	/**
+	 * Reponse du serveur de redirection a relayer a un demandeur (OPT et
+	 * taille selon sa requete)
+	 */
+	private ByteBuffer relayed(DNSMessageDecoder reponse, int payload, PacketChannel canal) {
+		if (ednsMax == 0)
+			return ByteBuffer.wrap(reponse.getData(), reponse.getOffset(), reponse.getLength());
+		return Edns.forClient(reponse, payload, ednsMax, responseLimit(payload, canal));
+	}
+	
+	/**
+	 * Expiration d'une echeance de la roue (thread de la roue)
+	 */
+	private void onTimer(TimingWheel.Timeout t) {
+		if (t instanceof StaleAnswer)
+			onStaleDeadline((StaleAnswer) t);
+		else
+			onUpstreamTimeout((TransactionTable.Transaction) t);
+	}
+	
+	/**
+	 * Le serveur n'a pas repondu a temps : le demandeur original recoit la
+	 * reponse perimee, la requete continue pour rafraichir le cache (les
+	 * demandeurs attaches recevront la reponse du serveur, ou la reponse
+	 * perimee apres le dernier essai)
+	 */
+	private void onStaleDeadline(StaleAnswer s) {
+		TransactionTable.Transaction t = s.transaction;
+		if (Clients.get(t.getUpstreamId()) != t || !t.claimClientAnswer())
+			return; //reponse recue entre temps
+		s.entree.markUpstreamFailure(System.nanoTime());
+		cache.recordStaleServed();
+		metrics.count(Metrics.STALE);
+		try {
+			t.getChannel().send(ByteBuffer.wrap(s.reponse), new InetSocketAddress(t.getClientAddress(), t.getClientPort()));
+		} catch (IOException e) {
+			Log.warn("Probleme d'envoi de la reponse perimee : " + e);
+		}
+	}
+	
+	/**
+	 * Rafraichit en arriere-plan la reponse en cache d'une question populaire :
+	 * la question est envoyee au serveur sans demandeur, sa reponse ne fait
+	 * que remplacer les entrees du cache (et servir les demandes attachees).
+	 * @param canal : canal de reception, utilise pour l'envoi
+	 * @param decodeur : requete du client qui a declenche le rafraichissement
+	 */
+	private void prefetch(PacketChannel canal, DNSMessageDecoder decodeur) {
+		byte[] requete = Arrays.copyOfRange(decodeur.getData(), decodeur.getOffset(),
+				decodeur.getOffset() + decodeur.getQuestionEnd());
+		requete[2] = 0x01; //requete standard, RD
+		requete[3] = 0x00;
+		Arrays.fill(requete, 6, DNSMessageDecoder.HEADER_SIZE, (byte) 0); //question seulement
+		// *Sans requete envoyee (question deja en attente du serveur, table
+		// pleine ou erreur), le rafraichissement est termine : une requete
+		// deja en attente mettra de toute facon le cache a jour
 		try {
-			DatagramSocket serveur = new DatagramSocket(this.port); // *Creation d'un socket UDP
+			if (forward(canal, decodeur, null, requete, 0, requete.length) != null)
+				return;
+		} catch (IOException e) {
+			Log.warn("Probleme d'envoi du rafraichissement : " + e);
+		}
+		prefetcher.release();
+	}
+	
+	/**
+	 * Enregistre une requete dans la table puis l'envoie au serveur choisi.
+	 * Seules les requetes de clients envoyees ou attachees a une requete en
+	 * attente sont comptees comme redirigees
+	 * @param decodeur : requete du client decodee (question et identifiant)
+	 * @param client : demandeur, null pour un rafraichissement
+	 * @param requete : message a envoyer, son identifiant sera remplace
+	 * @return la requete envoyee (null : attachee a une requete en attente,
+	 * table pleine ou pas de serveur)
+	 */
+	private TransactionTable.Transaction forward(PacketChannel canal, DNSMessageDecoder decodeur, InetSocketAddress client,
+			byte[] requete, int offset, int longueur) throws IOException {
+		if (upstreams == null) {
+			Log.debug("Aucun serveur DNS de redirection, requete ignoree");
+			return null;
+		}
+		InetAddress adresse = client == null ? null : client.getAddress();
+		int port = client == null ? 0 : client.getPort();
+		UpstreamPool.Upstream serveur = upstreams.select();
+		int nouvelId = coalesce
+				? Clients.register(adresse, port, decodeur, serveur.getAddress(), canal)
+				: Clients.register(adresse, port, decodeur, serveur.getAddress());
+		if (nouvelId == TransactionTable.JOINED) {
+			if (client != null)
+				metrics.count(Metrics.FORWARDED);
+			Log.debug(client == null ? "Question deja en attente du serveur, rafraichissement inutile"
+					: "Question deja en attente du serveur, le client attendra la meme reponse");
+			return null;
+		}
+		if (nouvelId < 0) {
+			Log.warn("Trop de requetes en attente, requete ignoree");
+			return null;
+		}
+		if ((redirections.incrementAndGet() & 0xFFF) == 0)
+			Clients.purge();
 		
-			int qr = 0;
-			String paquetRecuString = "";
+		// *Requete envoyee avec notre OPT (EDNS0) : le serveur peut repondre
+		// jusqu'a --edns-max en UDP, la reponse est adaptee a chaque demandeur
+		if (ednsMax > 0) {
+			requete = Edns.upstreamQuery(requete, offset, decodeur.getQuestionEnd(), ednsMax);
+			offset = 0;
+			longueur = requete.length;
+		}
+		TransactionTable.writeId(requete, offset, nouvelId);
+		// *Echeance de retransmission dans la roue (une seule roue pour toutes les requetes)
+		TransactionTable.Transaction transaction = Clients.get(nouvelId);
+		if (transaction != null) {
+			transaction.setClientPayload(client == null ? 0 : clientPayload(decodeur));
+			transaction.setRetransmission(ednsMax > 0 ? requete : Arrays.copyOfRange(requete, offset, offset + longueur), canal);
+			timers.schedule(transaction, tentativeNanos);
+		}
+		upstreams.recordSent(serveur);
+		try {
+			canal.send(ByteBuffer.wrap(requete, offset, longueur), serveur.getAddress());
+		} catch (IOException e) {
+			if (transaction != null && Clients.cancel(transaction))
+				upstreams.recordError(serveur);
+			throw e;
+		}
+		if (client != null)
+			metrics.count(Metrics.FORWARDED);
+		return transaction;
+	}
+	
+	/**
+	 * @return true si le demandeur original ou un demandeur attache est venu en TCP
+	 */
+	private boolean hasTcpRequester(TransactionTable.Transaction t) {
+		if (t.getClientAddress() != null && t.getChannel() != null && t.getChannel().getMaxMessageSize() > MAX_UDP_SIZE)
+			return true;
+		TransactionTable table = Clients;
+		synchronized (table) { //la requete est encore en attente, des demandeurs peuvent s'y attacher
+			for (TransactionTable.Waiter attente : t.getWaiters()) {
+				if (attente.getChannel() != null && attente.getChannel().getMaxMessageSize() > MAX_UDP_SIZE)
+					return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Fin d'une requete de rafraichissement (reponse, abandon ou expiration)
+	 */
+	private void finished(TransactionTable.Transaction t) {
+		if (t.getClientAddress() == null && prefetcher != null)
+			prefetcher.release();
+	}
+	
+	/**
+	 * Expiration d'une requete redirigee sans reponse (thread de la roue) :
+	 * elle est retransmise, de preference a un autre serveur, avec un delai
+	 * double a chaque essai. Apres le dernier essai, le client recoit la
+	 * reponse perimee du cache s'il y en a une (serve-stale), sinon SERVFAIL.
+	 * @param t : requete sans reponse
+	 */
+	private void onUpstreamTimeout(TransactionTable.Transaction t) {
+		UpstreamPool.Upstream ancien = upstreams.find(t.getUpstreamAddress());
+		if (t.getAttempts() > retries) {
+			if (!Clients.abandon(t))
+				return; //reponse recue entre temps
+			finished(t);
+			if (ancien != null)
+				upstreams.recordTimeout(ancien);
+			metrics.count(Metrics.UPSTREAM_FAILURES);
+			if (Log.isEnabled(Log.WARN))
+				Log.warn("Aucune reponse apres " + t.getAttempts() + " essais");
+			sendFailure(t);
+			return;
+		}
+		UpstreamPool.Upstream serveur = upstreams.select(ancien);
+		long delai = tentativeNanos << Math.min(t.getAttempts(), 16);
+		if (!Clients.retry(t, serveur.getAddress(), 2 * delai))
+			return;
+		if (ancien != null)
+			upstreams.recordTimeout(ancien);
+		upstreams.recordSent(serveur);
+		timers.schedule(t, delai);
+		try {
+			t.getChannel().send(ByteBuffer.wrap(t.getQuery()), serveur.getAddress());
+		} catch (IOException e) {
+			Log.warn("Probleme de retransmission vers " + serveur.getAddress() + " : " + e);
+		}
+	}
+	
+	/**
+	 * Envoie la reponse perimee (ou SERVFAIL) au demandeur d'une requete
+	 * abandonnee et a ceux qui y sont attaches
+	 */
+	private void sendFailure(TransactionTable.Transaction t) {
+		byte[] requete = t.getQuery();
+		if (requete == null || !decodeurTimers.decode(requete, 0, requete.length))
+			return;
+		AnswerCache.Entry perimee = staleTtl < 0 ? null
+				: cache.getStale(decodeurTimers.getQName(), decodeurTimers.getQType(), decodeurTimers.getQClass());
+		byte[] reponse;
+		if (perimee != null) {
+			perimee.markUpstreamFailure(System.nanoTime());
+			cache.recordStaleServed();
+			metrics.count(Metrics.STALE);
+			reponse = createStalePacket(decodeurTimers, perimee);
+		} else {
+			reponse = UDPErrorPacketCreator.getInstance().CreateErrorPacket(decodeurTimers,
+					UDPErrorPacketCreator.RCODE_SERVFAIL);
+		}
+		try {
+			if (t.getClientAddress() != null && t.claimClientAnswer()) {
+				byte[] envoi = fitResponse(reponse, decodeurTimers, t.getClientPayload(), t.getChannel());
+				TransactionTable.writeId(envoi, 0, t.getClientId());
+				t.getChannel().send(ByteBuffer.wrap(envoi), new InetSocketAddress(t.getClientAddress(), t.getClientPort()));
+			}
+			for (TransactionTable.Waiter attente : t.getWaiters()) {
+				PacketChannel retour = attente.getChannel() != null ? attente.getChannel() : t.getChannel();
+				byte[] envoi = fitResponse(reponse, decodeurTimers, attente.getPayload(), retour);
+				TransactionTable.writeId(envoi, 0, attente.getClientId());
+				byte[] question = attente.getQuestion() != null ? attente.getQuestion() : t.getQuestion();
+				if (question != null)
+					System.arraycopy(question, 0, envoi, DNSMessageDecoder.HEADER_SIZE, question.length);
+				retour.send(ByteBuffer.wrap(envoi), new InetSocketAddress(attente.getClientAddress(), attente.getClientPort()));
+			}
+		} catch (IOException e) {
+			Log.warn("Probleme d'envoi de la reponse d'echec : " + e);
+		}
+	}
+
+	/**
+	 * Repond a une requete a partir du cache des reponses du serveur DNS
+	 * @param canal : canal de reception, utilise pour l'envoi
+	 * @param decodeur : requete du client decodee
+	 * @param client : adresse et port du demandeur
+	 * @param recu : System.nanoTime() de la reception du paquet
+	 * @return false si la question n'est pas dans le cache
+	 */
+	private boolean answerFromCache(PacketChannel canal, DNSMessageDecoder decodeur, InetSocketAddress client, long recu)
+			throws IOException {
+		long t0 = System.nanoTime();
+		AnswerCache.Entry entree = cache.get(decodeur.getQName(), decodeur.getQType(), decodeur.getQClass());
+		long t1 = System.nanoTime();
+		metrics.record(Metrics.LOOKUP, t1 - t0);
+		if (entree == null)
+			return false;
+		byte[] reponse = entree.isNegative()
+				? UDPErrorPacketCreator.getInstance().CreateNegativePacket(decodeur, entree)
+				: UDPAnswerPacketCreator.getInstance().CreateCachedAnswerPacket(decodeur, entree);
+		reponse = fitResponse(reponse, decodeur, clientPayload(decodeur), canal);
+		long t2 = System.nanoTime();
+		metrics.record(Metrics.ENCODE, t2 - t1);
+		canal.send(ByteBuffer.wrap(reponse), client);
+		long t3 = System.nanoTime();
+		metrics.record(Metrics.SEND, t3 - t2);
+		metrics.record(Metrics.TOTAL, t3 - recu);
+		metrics.count(Metrics.ANSWER_CACHE);
+		if (prefetcher != null && !entree.isNegative() && entree.claimRefresh(prefetcher, System.nanoTime()))
+			prefetch(canal, decodeur);
+		return true;
+	}
+
+	/**
+	 * Cherche le SOA dans la section autorite d'une reponse
+	 * @param decodeur : reponse decodee
+	 * @param position : debut de la section autorite
+	 * @return le SOA, null s'il n'y en a pas
+	 */
+	private static AnswerCache.Record readSoa(DNSMessageDecoder decodeur, int position) {
+		for (int i = 0; i < decodeur.getAuthorityCount() && position > 0; i++) {
+			int debut = position;
+			position = decodeur.readRecord(position);
+			if (position > 0 && decodeur.getRecordType() == DNSMessageDecoder.TYPE_SOA) {
+				byte[] nom = new byte[DNSMessageDecoder.MAX_NAME_LENGTH];
+				int longueurNom = decodeur.copyName(debut, nom, 0);
+				byte[] rdata = decodeur.copyRdata();
+				if (longueurNom < 0 || rdata == null)
+					return null;
+				return new AnswerCache.Record(Arrays.copyOf(nom, longueurNom), decodeur.getRecordType(),
+						decodeur.getRecordClass(), decodeur.getRecordTtl(), rdata);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Rapport des mesures : compteurs et latences, puis l'etat des caches,
+	 * des serveurs de redirection (erreurs et expirations de chacun) et de
+	 * la limitation du debit
+	 */
+	private String metricsReport() {
+		StringBuilder sb = new StringBuilder(metrics.report());
+		if (responses != null)
+			sb.append(responses).append('\n');
+		if (cache != null)
+			sb.append(cache).append('\n');
+		if (upstreams != null)
+			sb.append(upstreams).append('\n').append(Clients).append('\n');
+		if (prefetcher != null)
+			sb.append(prefetcher).append('\n');
+		if (limiteur != null)
+			sb.append(limiteur).append('\n');
+		if (transport instanceof NioUDPTransport)
+			sb.append("udp.send_dropped ").append(((NioUDPTransport) transport).getSendDrops()).append('\n');
+		sb.append("log.dropped ").append(Log.getDroppedCount()).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * Retire des caches les questions auxquelles la zone repond pour un nom
+	 * qui vient d'y etre ajoute (records A, classe IN)
+	 * @param nom : nom ajoute (minuscule, sans point final)
+	 */
+	private void invalidateRecorded(String nom) {
+		for (int type : new int[] { DNSMessageDecoder.TYPE_A, DNSMessageDecoder.TYPE_ANY }) {
+			cache.invalidate(nom, type, DNSMessageDecoder.CLASS_IN);
+			ResponseCache encodees = responses;
+			if (encodees != null)
+				encodees.invalidate(nom, type, DNSMessageDecoder.CLASS_IN);
+		}
+	}
+
+	/**
+	 * Choisi le transport UDP selon la configuration (--transport)
+	 */
+	private UDPTransport createTransport() {
+		String type = config.get(ServerConfig.TRANSPORT);
+		if (type.equals("socket"))
+			return new SocketUDPTransport(this.port, Math.max(BUF_SIZE, ednsMax));
+		if (!type.equals("nio"))
+			throw new IllegalArgumentException("Transport inconnu : " + type);
+		return new NioUDPTransport(this.port, config.getInt(ServerConfig.LISTENERS), Math.max(BUF_SIZE, ednsMax));
+	}
+
+	public void run() {
+		try {
+			finder = new QueryFinder(DNSFile); // charge l'index une seule fois
+			record = config.getBoolean(ServerConfig.RECORD);
+			if (record && !(finder.getZone() instanceof ZoneStore)) {
+				Log.info("Le fichier DNS est un snapshot en lecture seule, --record ignore");
+				record = false;
+			}
+			if (record) {
+				enregistrement = new AnswerRecorder(DNSFile, (ZoneStore) finder.getZone(),
+						new AnswerJournal(DNSFile, config.getInt(ServerConfig.JOURNAL_QUEUE),
+								config.getInt(ServerConfig.JOURNAL_BATCH), config.getLong(ServerConfig.JOURNAL_FLUSH_MS)));
+				finder.addReloadListener(zone -> {
+					if (zone instanceof ZoneStore)
+						enregistrement.setIndex((ZoneStore) zone);
+				});
+			}
 			
-			String qName = "";
-			int finDeQname = 0;
+			// *EDNS0 : reponses UDP jusqu'a la taille annoncee par le client
+			// (--edns-max au plus), sinon 512 octets
+			int edns = config.getInt(ServerConfig.EDNS_MAX);
+			ednsMax = edns <= 0 ? 0 : Math.min(Math.max(edns, Edns.MIN_PAYLOAD), TcpTransport.MAX_MESSAGE_SIZE);
 			
-			int identifiant = 0;
+			// *Rechargement a chaud du fichier de zone lorsqu'il est modifie
+			// (les ajouts de --record sont ignores, ils sont deja dans l'index)
+			if (config.getBoolean(ServerConfig.ZONE_WATCH))
+				new ZoneWatcher(finder, config.getLong(ServerConfig.ZONE_WATCH_DELAY_MS))
+						.ignore(record ? enregistrement : null).start();
+			cache = new AnswerCache(config.getInt(ServerConfig.CACHE_SIZE), config.getLong(ServerConfig.CACHE_BYTES),
+					config.getLong(ServerConfig.CACHE_MAX_TTL));
+			cache.setNegativeTtl(config.getLong(ServerConfig.NEGATIVE_MIN_TTL), config.getLong(ServerConfig.NEGATIVE_MAX_TTL));
+			if (config.getBoolean(ServerConfig.SERVE_STALE))
+				cache.setStaleWindow(config.getLong(ServerConfig.STALE_MAX_TTL));
+			if (config.getInt(ServerConfig.RESPONSE_CACHE) > 0) {
+				ResponseCache reponsesEncodees = new ResponseCache(config.getInt(ServerConfig.RESPONSE_CACHE));
+				finder.addReloadListener(zone -> reponsesEncodees.invalidateZone());
+				responses = reponsesEncodees;
+			}
+			// *Un nom ajoute a la zone par --record ne doit plus etre servi
+			// depuis les caches (reponse du serveur ou reponse negative)
+			if (record)
+				enregistrement.addRecordListener(this::invalidateRecorded);
 			
-			UDPSender redirection;
+			// *Limitation du debit de chaque client
+			if (config.getDouble(ServerConfig.RATE_LIMIT) > 0) {
+				limiteur = new RateLimiter(config.getDouble(ServerConfig.RATE_LIMIT), config.getInt(ServerConfig.RATE_LIMIT_BURST),
+						config.getInt(ServerConfig.RATE_LIMIT_CLIENTS), RateLimiter.parseAction(config.get(ServerConfig.RATE_LIMIT_ACTION)));
+				Log.info("Limitation du debit : " + config.get(ServerConfig.RATE_LIMIT) + " requetes/s par client");
+			}
 			
-			String adresseIPDuFichierDNS = null;			
-
-			QueryFinder finder = new QueryFinder(DNSFile);
+			// *Serveurs de redirection : latence et disponibilite de chacun,
+			// les requetes expirees comptent comme des echecs du serveur
+			if (SERVER_DNS != null) {
+				UpstreamPool serveurs = new UpstreamPool(UpstreamPool.parse(SERVER_DNS, portRedirect),
+						config.getInt(ServerConfig.UPSTREAM_MAX_FAILURES), config.getLong(ServerConfig.UPSTREAM_CHECK_MS));
+				// *La table garde les requetes jusqu'au double du delai de chaque
+				// essai : c'est la roue qui decide des retransmissions et du SERVFAIL
+				long delai = config.getLong(ServerConfig.UPSTREAM_TIMEOUT_MS);
+				tentativeNanos = TimeUnit.MILLISECONDS.toNanos(delai);
+				retries = config.getInt(ServerConfig.UPSTREAM_RETRIES);
+				Clients = new TransactionTable(2 * delai);
+				timers = new TimingWheel(config.getLong(ServerConfig.TIMER_TICK_MS), 512,
+						this::onTimer).start();
+				Clients.setExpiredListener(t -> {
+					UpstreamPool.Upstream serveur = serveurs.find(t.getUpstreamAddress());
+					if (serveur != null)
+						serveurs.recordTimeout(serveur);
+					finished(t);
+				});
+				serveurs.setMaintenance(Clients::purge);
+				coalesce = config.getBoolean(ServerConfig.COALESCE);
+				if (config.getBoolean(ServerConfig.SERVE_STALE)) {
+					staleTtl = config.getLong(ServerConfig.STALE_TTL);
+					staleDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong(ServerConfig.STALE_DEADLINE_MS));
+				}
+				if (config.getBoolean(ServerConfig.PREFETCH)) {
+					prefetcher = new Prefetcher(config.getInt(ServerConfig.PREFETCH_MIN_HITS),
+							config.getDouble(ServerConfig.PREFETCH_FRACTION), config.getInt(ServerConfig.PREFETCH_MAX_INFLIGHT));
+					if (responses != null)
+						responses.setPrefetcher(prefetcher);
+				}
+				upstreams = serveurs.start();
+				Log.info("Serveurs DNS de redirection : " + upstreams);
+			}
 			
-			UDPSender envoieReponse;
+			// *Mesures du serveur en texte sur http://127.0.0.1:port/metrics
+			if (config.getInt(ServerConfig.METRICS_PORT) > 0) {
+				MetricsServer mesures = new MetricsServer(config.getInt(ServerConfig.METRICS_PORT), this::metricsReport).start();
+				Log.info("Mesures du serveur : http://" + mesures.getAddress().getHostString() + ":"
+						+ mesures.getAddress().getPort() + "/metrics");
+			}
 			
-			int reponseType = 0;
-			int reponseClasse = 0;
+			// *Les paquets sont traites par un pool de workers, les reponses
+			// repartent par le socket qui a recu la requete
+			QueryExecutor workers = new QueryExecutor(config.getInt(ServerConfig.WORKERS),
+					config.getInt(ServerConfig.QUEUE), config.getBoolean(ServerConfig.VIRTUAL_THREADS));
+			Log.info("Traitement des requetes : " + workers.getMode());
+			int tailleUdp = Math.max(MAX_UDP_SIZE, ednsMax);
+			if (!workers.isVirtual()) {
+				decoders = ThreadLocal.withInitial(DNSMessageDecoder::new);
+				sorties = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(tailleUdp));
+			}
+			sortiesUdp = new BufferPool(tailleUdp, 256);
+			sortiesTcp = new BufferPool(TcpTransport.MAX_MESSAGE_SIZE, 16);
 			
-			int reponseIP = 0;
+			PacketHandler reception = (paquet, source, canal) -> {
+				if(!workers.submit(() -> handlePacket(paquet, source, canal)))
+				{
+					canal.release(paquet);
+					if(Log.isEnabled(Log.WARN))
+						Log.warn("File de traitement pleine, paquet du " + source + " ignore");
+				}
+			};
+			
+			// *TCP sur le meme port (RFC 7766) : les requetes sont traitees
+			// par les memes workers, les reponses repartent sur la connexion
+			if(config.getBoolean(ServerConfig.TCP))
+			{
+				tcp = new TcpTransport(this.port, config.getInt(ServerConfig.TCP_MAX_CONNECTIONS),
+						config.getInt(ServerConfig.TCP_IDLE_MS)).start(reception);
+				Log.info("Serveur DNS en attente : " + tcp.describe());
+			}
+			
+			transport = createTransport();
+			Log.info("Serveur DNS en attente : " + transport.describe());
+			
+			// *Boucle infinie de reception
+			transport.serve(reception);
+		} catch (Exception e) {
+			Log.error("Probleme de l'execution :", e);
+		}
+	}
+	
+	/**
+	 * Buffer d'envoi d'une reponse encodee : 64 Ko seulement en TCP
+	 * @param canal : canal de la reponse
+	 * @return buffer vide, a rendre par releaseOutput
+	 */
+	private ByteBuffer acquireOutput(PacketChannel canal) {
+		if (canal.getMaxMessageSize() > MAX_UDP_SIZE)
+			return sortiesTcp.acquire();
+		return sorties != null ? sorties.get() : sortiesUdp.acquire();
+	}
+	
+	private void releaseOutput(PacketChannel canal, ByteBuffer sortie) {
+		if (canal.getMaxMessageSize() > MAX_UDP_SIZE)
+			sortiesTcp.release(sortie);
+		else if (sorties == null)
+			sortiesUdp.release(sortie);
+	}
+	
+	/**
+	 * Traitement d'un paquet recu (requete d'un client ou reponse du serveur DNS).
+	 * Execute par un worker, plusieurs paquets peuvent etre traites en parallele.
+	 * @param paquet : paquet a traiter, rendu au canal a la fin
+	 * @param source : adresse et port de l'emetteur
+	 * @param canal : canal de reception, utilise aussi pour les envois
+	 */
+	private void handlePacket(ByteBuffer paquet, InetSocketAddress source, PacketChannel canal) {
+		try {
+			// *Decodeur reutilise pour chaque paquet traite par ce thread.
+			// Il garde sa propre copie des buffers directs, on peut donc
+			// rendre le buffer de reception tout de suite
+			long recu = System.nanoTime();
+			DNSMessageDecoder decodeur = decoders != null ? decoders.get() : decodeursLibres.poll();
+			if (decodeur == null)
+				decodeur = new DNSMessageDecoder();
+			boolean valide = decodeur.decode(paquet);
+			metrics.record(Metrics.PARSE, System.nanoTime() - recu);
+			if (!paquet.hasArray()) {
+				canal.release(paquet);
+				paquet = null;
+			}
+			handleMessage(decodeur, valide, source, canal, recu);
+			if (decoders == null)
+				decodeursLibres.offer(decodeur);
+		} finally {
+			if (paquet != null)
+				canal.release(paquet);
+		}
+	}
+	
+	private void handleMessage(DNSMessageDecoder decodeur, boolean valide, InetSocketAddress source, PacketChannel canal,
+			long recu) {
+		try {
+			// *Le nom demande n'est construit en String que par les chemins
+			// qui en ont besoin (zone, cache des reponses, journal, debug) :
+			// un hit du cache des reponses encodees travaille sur les octets
+			String qName = null;
+			int finDeQname = 0;
 			
-			String anCount = "";
+			int identifiant = 0;
 			
-			ArrayList<String> listeAdresse = new ArrayList();
+			InetAddress clientIP = source.getAddress();
+			int clientPort = source.getPort();
 			
-			AnswerRecorder enregistrement = new AnswerRecorder(DNSFile);
+			if(Log.isDebug())
+				Log.debug("paquet recu du : "+clientIP+"  du port: "+ clientPort);
 			
-			Scanner scanner;
+			// *Decodage de l'en-tete et de la question directement dans les bytes
+			if(!valide)
+			{
+				Log.debug("Paquet DNS invalide, ignore");
+				metrics.count(Metrics.INVALID);
+				return;
+			}
 			
-			ArrayList<String> listeDNS = new ArrayList();
+			finDeQname = decodeur.getQuestionEnd();
 			
-			// *Boucle infinie de reception
-			while (!this.stop) {
-				
-				// Lire le datagramme requte  partir de serverSocket
-				byte[] buff = new byte[0xFF];
-				DatagramPacket paquetRecu = new DatagramPacket(buff,buff.length);
-				System.out.println("Serveur DNS: "+serveur.getLocalAddress()+"  en attente sur le port: "+ serveur.getLocalPort());
-
-				// *Reception d'un paquet UDP via le socket
-				serveur.receive(paquetRecu);
-				
-				InetAddress clientIP = paquetRecu.getAddress();
-				int clientPort = paquetRecu.getPort();
-				
-				System.out.println("paquet recu du : "+clientIP+"  du port: "+ clientPort);
-				
-				// *Creation d'un DataInputStream ou ByteArrayInputStream pour
-				// manipuler les bytes du paquet
-
-				ByteArrayInputStream tabInputStream = new ByteArrayInputStream (paquetRecu.getData() );
-				System.out.println(buff.toString() );
-				
-				// Pour trouver le QR.
-				// https://docs.oracle.com/javase/7/docs/api/java/util/Formatter.html#syntax
-				for (byte octet : paquetRecu.getData()) 
+			// ****** Dans le cas d'un paquet requete *****
+			if(!decodeur.isResponse())
+			{
+				metrics.count(Metrics.QUERIES);
+				// *Client au dela de son debit : requete ignoree ou refusee.
+				// Le TCP n'est pas limite : sa source ne peut etre usurpee, il
+				// est borne par connexion, et c'est la que TC renvoie le client
+				if(limiteur != null && canal.getMaxMessageSize() <= MAX_UDP_SIZE && !limiteur.allow(clientIP))
 				{
-					// Remplace les espaces par des 0 car il prend certain 0 pour des espaces
-					String ligneBinaire = String.format("%8s", Integer.toBinaryString(octet & 0xFF) ).replaceAll(" ", "0");
-					paquetRecuString += ligneBinaire;
+					metrics.count(Metrics.THROTTLED);
+					if(Log.isDebug())
+						Log.debug("Debit du client " + clientIP + " depasse, requete limitee");
+					if(limiteur.getAction() == RateLimiter.REFUSED)
+						canal.send(ByteBuffer.wrap(UDPErrorPacketCreator.getInstance().CreateErrorPacket(decodeur,
+								UDPErrorPacketCreator.RCODE_REFUSED)), source);
+					else if(limiteur.getAction() == RateLimiter.TRUNCATE)
+						canal.send(ByteBuffer.wrap(UDPErrorPacketCreator.getInstance().CreateTruncatedPacket(decodeur)), source);
+					return;
 				}
 				
-				System.out.println("String de bits du paquet recu : " + paquetRecuString);
-				
-				//https://docs.oracle.com/javase/7/docs/api/java/lang/Integer.html#parseInt(java.lang.String,%20int)
-				qr = Integer.parseInt(paquetRecuString.substring(16, 17), 2);
+				identifiant = decodeur.getId();
 				
-				// ****** Dans le cas d'un paquet requete *****
-				if(qr == 0)
+				// *Diagnostic de la requete (niveau debug seulement)
+				if(Log.isDebug())
 				{
-					// *Lecture du Query Domain name, a partir du 13 bytes
-					// On trouve aussi la fin de QNAME
-					// pour trouver les adresses IP plus tard
-					for(int i = 13; i <= buff.length; i++)
-					{
-						if(buff[i] != 0)
-						{
-//							System.out.println((int)Character.toChars( buff[i] )[0]);
+					Log.debug("QNAME : " + decodeur.getQName());
+					Log.debug("La fin de QNAME : " + finDeQname);
+					
+					Log.debug("L'adresse IP : " + clientIP );
+					Log.debug("Le port : " + clientPort);
+					
+					Log.debug("L'identifiant est : " + identifiant);
+				}
 
-							// *Sauvegarde du Query Domain name
-							if( (int)Character.toChars( buff[i] )[0] > 20)
-							{
-								qName += Character.toChars( buff[i] )[0];
-							}
-							else
-							{
-								qName += ".";
-								finDeQname++;
-							}						
-						}
-						else
+				// *Reponse deja encodee pour cette question : copie avec le bon identifiant
+				if(responses != null)
+				{
+					// (les reponses en cache n'ont pas d'OPT : place reservee pour le notre)
+					int payload = clientPayload(decodeur);
+					int opt = payload > 0 ? Edns.OPT_SIZE : 0;
+					ByteBuffer reponse = acquireOutput(canal);
+					reponse.clear().limit(Math.min(reponse.capacity(), responseLimit(payload, canal)) - opt);
+					long t0 = System.nanoTime();
+					int longueur = responses.get(decodeur, reponse);
+					long t1 = System.nanoTime();
+					metrics.record(Metrics.LOOKUP, t1 - t0);
+					if(longueur <= 0)
+						releaseOutput(canal, reponse);
+					else
+					{
+						reponse.flip();
+						if(opt > 0)
+							Edns.appendOpt(reponse, ednsMax);
+						try
 						{
-							finDeQname += i;
-							break;
+							canal.send(reponse, source);
+						} finally {
+							releaseOutput(canal, reponse);
 						}
+						long t2 = System.nanoTime();
+						metrics.record(Metrics.SEND, t2 - t1);
+						metrics.record(Metrics.TOTAL, t2 - recu);
+						metrics.count(Metrics.RESPONSE_CACHE);
+						// *Question populaire proche de l'expiration : rafraichir en arriere-plan
+						if(responses.claimRefresh())
+							prefetch(canal, decodeur);
+						return;
 					}
-					System.out.println("QNAME : " + qName);
-					System.out.println("La fin de QNAME : " + finDeQname);
-					
-					// *Sauvegarde de l'adresse, du port et de l'identifiant de la requete
-					// http://download.java.net/jdk7/archive/b123/docs/api/java/net/InetAddress.html
-					this.setAdrIP(clientIP.toString() );
-					this.setport(clientPort);
-					
-					System.out.println("L'adresse IP : " + getAdrIP() );
-					System.out.println("Le port : " + this.port);
-					
-					identifiant = Integer.parseInt(paquetRecuString.substring(0, 16), 2);
-					
-					System.out.println("L'identifiant est : " + identifiant);
+				}
 
-					// *Si le mode est redirection seulement
-					if(RedirectionSeulement)
+				// *Si le mode est redirection seulement
+				if(RedirectionSeulement)
+				{
+					// *Repondre depuis le cache, sinon rediriger le paquet vers le serveur DNS
+					if(!answerFromCache(canal, decodeur, source, recu))
+						redirect(canal, decodeur, source);
+				}
+				else   // *Sinon
+				{
+					// *Rechercher l'adresse IP associe au Query Domain name					
+					// dans le fichier de correspondance de ce serveur
+					// (la zone ne contient que des records A)
+					// *Une seule recherche dans l'index en memoire, qui
+					// retourne la section reponse deja encodee
+					AnswerTemplate template = null;
+					long t0 = System.nanoTime();
+					if(decodeur.getQClass() == DNSMessageDecoder.CLASS_IN
+							&& (decodeur.getQType() == DNSMessageDecoder.TYPE_A || decodeur.getQType() == DNSMessageDecoder.TYPE_ANY))
+					{
+						qName = decodeur.getQName();
+						template = finder.getZone().template(qName);
+					}
+					long t1 = System.nanoTime();
+					metrics.record(Metrics.LOOKUP, t1 - t0);
+						
+					// *Si la correspondance n'est pas trouvee
+					if( template == null )
 					{
-						// *Rediriger le paquet vers le serveur DNS
-						redirection = new UDPSender(SERVER_DNS, portRedirect, serveur);
-						redirection.SendPacketNow(paquetRecu);						
+						Log.debug("Aucune correspondance dans le fichier DNS");
+						// *Repondre depuis le cache, sinon rediriger le paquet vers le serveur DNS
+						if(!answerFromCache(canal, decodeur, source, recu))
+							redirect(canal, decodeur, source);
 					}
-					else   // *Sinon
+					else	// *Sinon
 					{
-						// *Rechercher l'adresse IP associe au Query Domain name					
-						// dans le fichier de correspondance de ce serveur
-//						try
-//						{
-						if(finder.StartResearch(qName).size() != 0)
+						if(Log.isDebug())
+							Log.debug("Correspondance(s) dans le fichier DNS : " + template.getCount());
+						// *Encoder le paquet de reponse a l'aide du UDPAnswerPaquetCreator,
+						// directement dans le buffer d'envoi de ce thread
+						int payload = clientPayload(decodeur);
+						int opt = payload > 0 ? Edns.OPT_SIZE : 0;
+						ByteBuffer reponse = acquireOutput(canal);
+						reponse.clear().limit(Math.min(reponse.capacity(), responseLimit(payload, canal)) - opt);
+						if(UDPAnswerPacketCreator.getInstance().CreateAnswerPacket(decodeur, template, reponse) < 0)
 						{
-							adresseIPDuFichierDNS = finder.StartResearch(qName).get(0);
-							System.out.println("Ajout de l'adresse IP : " + adresseIPDuFichierDNS);
+							releaseOutput(canal, reponse);
+							return;
 						}
-						else
+						reponse.flip();
+						long t2 = System.nanoTime();
+						metrics.record(Metrics.ENCODE, t2 - t1);
+						// *Une reponse tronquee (bit TC) n'est pas gardee : le
+						// client la redemandera en TCP, sans limite de taille
+						if(responses != null && (reponse.get(reponse.position() + 2) & 0x02) == 0)
+							responses.putZone(decodeur, reponse, AnswerTemplate.DEFAULT_TTL);
+						if(opt > 0)
+							Edns.appendOpt(reponse, ednsMax);
+						
+						// *Envoyer le paquet par le socket de reception
+						long t3 = System.nanoTime();
+						try
 						{
-							System.out.println("Le fichier est vide!");
+							canal.send(reponse, source);
+						} finally {
+							releaseOutput(canal, reponse);
 						}
-							
-							// *Si la correspondance n'est pas trouvee
-							if( adresseIPDuFichierDNS == null )
-							{
-								// *Rediriger le paquet vers le serveur DNS
-								redirection = new UDPSender(SERVER_DNS, portRedirect, serveur);
-								redirection.SendPacketNow(paquetRecu);
-							}
-							else	// *Sinon
-							{
-								if( listeAdresse != null)
-								{
-									// *Creer le paquet de reponse a l'aide du UDPAnswerPaquetCreator
-									UDPAnswerPacketCreator reponseInstance = UDPAnswerPacketCreator.getInstance();
-									byte[] reponseByte = reponseInstance.CreateAnswerPacket(paquetRecu.getData(), finder.StartResearch(qName));
-									
-									// *Placer ce paquet dans le socket
-									DatagramPacket paquetDeReponse = new DatagramPacket(reponseByte, reponseByte.length);
-									
-									// *Envoyer le paquet
-									envoieReponse = new UDPSender(getAdrIP().substring(1, getAdrIP().length() ), this.port, serveur);
-									envoieReponse.SendPacketNow(paquetDeReponse);
-								}
-								else
-								{
-									System.out.println("L'adresse IP cherche n'est pas dans le fichier DNSFile");
-								}
-								
-							}
-//						}
-//						catch(IndexOutOfBoundsException e)
-//						{
-//							System.out.println("Le fichier est vide!");
-//						}						
+						long t4 = System.nanoTime();
+						metrics.record(Metrics.SEND, t4 - t3);
+						metrics.record(Metrics.TOTAL, t4 - recu);
+						metrics.count(Metrics.ZONE);
 					}
 				}
-				else if (qr == 1)	// ****** Dans le cas d'un paquet reponse *****
+			}
+			else	// ****** Dans le cas d'un paquet reponse *****
+			{
+				// *Reponse UDP tronquee alors qu'un demandeur est venu en TCP :
+				// la requete reste en attente et est redemandee au serveur en
+				// TCP, la reponse complete sera traitee a son arrivee
+				if(decodeur.isTruncated() && tcp != null && canal.getMaxMessageSize() <= MAX_UDP_SIZE)
 				{
-					// *Lecture du Query Domain name, a partir du 13ieme octet
-					for(int i = 13; i <= buff.length; i++)
+					TransactionTable.Transaction tronquee = Clients.peek(decodeur.getId(), source, decodeur);
+					if(tronquee != null && tronquee.getQuery() != null && hasTcpRequester(tronquee))
 					{
-						if(buff[i] != 0)
+						if(tronquee.claimTcpRetry())
 						{
-//							System.out.println((int)Character.toChars( buff[i] )[0]);
-
-							if( (int)Character.toChars( buff[i] )[0] > 20)
-							{
-								qName += Character.toChars( buff[i] )[0];
-							}
-							else
-							{
-								qName += ".";
-								finDeQname++;
-							}						
-						}
-						else
-						{
-							finDeQname += i;
-							break;
+							Log.debug("Reponse tronquee, requete redemandee au serveur en TCP");
+							tcp.queryUpstream(tronquee.getQuery(), source, Arrays.copyOfRange(decodeur.getData(),
+									decodeur.getOffset(), decodeur.getOffset() + decodeur.getLength()));
 						}
+						return;
 					}
-					
-					System.out.println("QNAME : " + qName);
-					System.out.println("Fin de QUNAME : " + finDeQname);
-					
-					// *Passe par dessus Type et Class
-					// TODO si on en a de besoin
-//					int bitReponseType = (finDeQname * 8) + (6 * 8);
-//					reponseType = Integer.parseInt(paquetRecuString.substring(bitReponseType, bitReponseType + 16), 2);
-//					System.out.println("Type de la rponse : " + reponseType);
-//					
-//					int bitReponseClasse = (finDeQname * 8) + (8 * 8);
-//					reponseClasse = Integer.parseInt(paquetRecuString.substring(bitReponseClasse, bitReponseClasse + 16), 2);
-//					System.out.println("Classe de la rponse : " + reponseClasse);
-					
-					// *Passe par dessus les premiers champs du ressource record
-					// pour arriver au ressource data qui contient l'adresse IP associe
-					//  au hostname (dans le fond saut de 16 bytes)
-					int bitReponseIP = finDeQname + (16 * 8);
-					
-					// *Capture de ou des adresse(s) IP (ANCOUNT est le nombre
-					// de reponses retournees)
-					anCount = paquetRecuString.substring(48, 64);
-					System.out.println("ANCOUNT de la rponse : "+ Integer.parseInt(anCount, 2));
-					
-					
-					
-					for(int i = 0 ; i < Integer.parseInt(anCount, 2); i++)
+				}
+				
+				// *Retrouver le demandeur original a partir de l'identifiant
+				TransactionTable.Transaction demande = Clients.complete(decodeur.getId(), source, decodeur);
+				if(demande == null)
+				{
+					if(Log.isDebug())
+						Log.debug("Reponse inconnue ou expiree (id=" + decodeur.getId() + "), ignoree");
+					return;
+				}
+				finished(demande);
+				// *Temps de reponse du serveur
+				UpstreamPool.Upstream serveur = upstreams.find(demande.getUpstreamAddress());
+				long rtt = System.nanoTime() - demande.getSentAt();
+				if(serveur != null)
+					upstreams.recordAnswer(serveur, rtt, decodeur.getRcode());
+				metrics.record(Metrics.UPSTREAM, rtt);
+				metrics.count(Metrics.UPSTREAM_ANSWERS);
+				// *Remettre l'identifiant original de la requete
+				TransactionTable.writeId(decodeur.getData(), decodeur.getOffset(), demande.getClientId());
+				// *La mise en cache se fait sous la question envoyee, pas sous
+				// celle de la reponse (complete a verifie qu'elles sont identiques)
+				qName = demande.getQName();
+				List<String> listeAdresse = record || Log.isDebug() ? new ArrayList<>() : null;
+				
+				// *Lecture des ressources records de la section reponse
+				// (ANCOUNT est le nombre de reponses retournees)
+				int anCount = decodeur.getAnswerCount();
+				if(Log.isDebug())
+				{
+					Log.debug("QNAME : " + qName);
+					Log.debug("Fin de QUNAME : " + finDeQname);
+					Log.debug("Type de la reponse : " + decodeur.getQType());
+					Log.debug("Classe de la reponse : " + decodeur.getQClass());
+					Log.debug("ANCOUNT de la reponse : "+ anCount);
+				}
+				
+				List<AnswerCache.Record> reponses = new ArrayList<>(anCount);
+				int position = finDeQname;
+				for(int i = 0 ; i < anCount && position > 0; i++)
+				{
+					int debut = position;
+					position = decodeur.readRecord(position);
+					if(position < 0)
+						break;
+					byte[] nom = new byte[DNSMessageDecoder.MAX_NAME_LENGTH];
+					int longueurNom = decodeur.copyName(debut, nom, 0);
+					byte[] rdata = decodeur.copyRdata();
+					if(longueurNom < 0 || rdata == null)
 					{
-						String adresseIP = "";
-						
-						// (16 * 8) = position en bits du dbut de l'adresse IP
-						// (4 * 8) = position en bit de la fin de l'adresse IP
-						// (i * 8 * 4) = c'est pour indiquer qu'on saute  la prochaine adresse IP ds que le ANCOUNT augmente
-						for(int j = finDeQname + 16 + (i * 4); j < finDeQname + 16 + 4 + (i * 4); j++)							
-						{
-							System.out.println("J : " + j);
-							
-//							System.out.println( (int)Character.toChars( buff[j] )[0] );
-							
-//							adresseIP += Integer.parseInt(Byte.toString(buff[j]));
-							byte[] bytes = Byte.toString(buff[j]).getBytes();
-							adresseIP += Integer.parseInt(paquetRecuString.substring(j * 8, (j + 1) * 8), 2);
-							if( j != ( finDeQname + 16 + 3 + (i * 4) ) )
-							{
-								adresseIP += ".";
-							}
-							
-							System.out.println("Adresse IP : " + adresseIP);							
-						}
-						
-						listeAdresse.add(adresseIP);
-						System.out.println("Adresse IP dans la liste : " + listeAdresse.get(i));
+						position = -1;
+						break;
 					}
-
-					// *Ajouter la ou les correspondance(s) dans le fichier DNS
-					// si elles ne y sont pas deja
-					scanner = new Scanner(new FileReader(DNSFile));
+					reponses.add(new AnswerCache.Record(Arrays.copyOf(nom, longueurNom), decodeur.getRecordType(),
+							decodeur.getRecordClass(), decodeur.getRecordTtl(), rdata));
 					
-					for (int i = 0; i < Integer.parseInt(anCount, 2); i++) 
+					// *Adresses texte pour --record (et le diagnostic) seulement
+					if((record || Log.isDebug()) && decodeur.getRecordType() == DNSMessageDecoder.TYPE_A
+							&& decodeur.getRdLength() == 4)
 					{
-						System.out.println("Dmarrage du scan...");
-						
-						if(!scanner.hasNextLine())
-						{
-							enregistrement.StartRecord(qName, listeAdresse.get(i).toString());
-							System.out.println("L'adresse IP " + listeAdresse.get(i).toString() + " a ete ajoute.");
-						}
-						else
-						{
-							int compteur = 0;
-							while(scanner.hasNextLine())
-							{
-								if(scanner.nextLine().contains(listeAdresse.get(i).toString()) )
-								{
-									System.out.println("L'adresse IP existe a cette ligne.");
-									compteur++;
-								}								
-							}
-							if(compteur == 0)
-							{
-								enregistrement.StartRecord(qName, listeAdresse.get(i).toString());
-								System.out.println("L'adresse IP " + listeAdresse.get(i).toString() + " a ete ajoute.");
-							}
-						}
+						String adresseIP = ZoneStore.formatIPv4(decodeur.readInt(decodeur.getRdataOffset()));
+						listeAdresse.add(adresseIP);
+						Log.debug("Adresse IP dans la liste : " + adresseIP);
 					}
-					
-					// *Faire parvenir le paquet reponse au demandeur original,
-					// ayant emis une requete avec cet identifiant					
-					UDPAnswerPacketCreator reponseInstance = UDPAnswerPacketCreator.getInstance();
-					
-					if( listeAdresse != null)
+				}
+				
+				// *Mise en cache avec le TTL des records (reponses completes seulement)
+				AnswerCache.Entry entree = null;
+				if(position > 0 && decodeur.getRcode() == 0 && !decodeur.isTruncated() && anCount > 0)
+				{
+					entree = cache.put(qName, demande.getQType(), demande.getQClass(), reponses);
+				}
+				// *Reponse negative (NXDOMAIN ou NOERROR sans reponse) : mise en cache
+				// avec la duree de vie du SOA de la section autorite
+				else if(position > 0 && !decodeur.isTruncated()
+						&& (decodeur.getRcode() == UDPErrorPacketCreator.RCODE_NXDOMAIN
+						|| (decodeur.getRcode() == UDPErrorPacketCreator.RCODE_NOERROR && anCount == 0)))
+				{
+					AnswerCache.Record soa = readSoa(decodeur, position);
+					if(soa != null)
 					{
-						byte[] reponseByte = reponseInstance.CreateAnswerPacket(paquetRecu.getData(), listeAdresse );
-						System.out.println("Reponse Byte : " + reponseByte);
-						
-						// *Placer ce paquet dans le socket
-						DatagramPacket paquetDeReponse = new DatagramPacket(reponseByte, reponseByte.length);
-						
-						// *Envoyer le paquet
-						envoieReponse = new UDPSender(getAdrIP().substring(1, getAdrIP().length()), this.port, serveur);
-						envoieReponse.SendPacketNow(paquetDeReponse);
+						entree = cache.putNegative(qName, demande.getQType(), demande.getQClass(), decodeur.getRcode(), soa);
 					}
-					else
+				}
+				// *La reponse encodee est gardee pour la meme duree (sa question,
+				// cle du cache, est celle de la requete a la casse pres)
+				if(entree != null && responses != null)
+				{
+					responses.put(decodeur, entree.getRemainingTtl(System.nanoTime()));
+				}
+
+				// *Ajouter la ou les correspondance(s) dans le fichier DNS
+				// si elles ne y sont pas deja (optionnel, --record).
+				// L'ecriture est faite en arriere-plan par le journal
+				if(record)
+				{
+					for (int i = 0; i < listeAdresse.size(); i++) 
 					{
-						System.out.println("L'adresse IP cherche n'est pas dans le fichier DNSFile");
+						enregistrement.StartRecord(qName, listeAdresse.get(i));
 					}
 				}
 				
-				qName = "";
-				finDeQname = 0;
-				paquetRecuString = "";
+				// *Faire parvenir le paquet reponse au demandeur original,
+				// ayant emis une requete avec cet identifiant : la reponse du
+				// serveur est relayee telle quelle (tous les types de records)
+				// (un rafraichissement n'a pas de demandeur original, et le
+				// demandeur a peut-etre deja recu la reponse perimee)
+				if(demande.getClientAddress() != null && demande.claimClientAnswer())
+				{
+					long t0 = System.nanoTime();
+					PacketChannel retour = demande.getChannel() != null ? demande.getChannel() : canal;
+					retour.send(relayed(decodeur, demande.getClientPayload(), retour),
+							new InetSocketAddress(demande.getClientAddress(), demande.getClientPort()));
+					long t1 = System.nanoTime();
+					metrics.record(Metrics.SEND, t1 - t0);
+					metrics.record(Metrics.TOTAL, t1 - demande.getCreatedAt());
+				}
+				
+				// *Meme reponse pour les demandeurs de la meme question,
+				// chacun avec son identifiant (et la casse de sa question)
+				for (TransactionTable.Waiter attente : demande.getWaiters())
+				{
+					TransactionTable.writeId(decodeur.getData(), decodeur.getOffset(), attente.getClientId());
+					byte[] question = attente.getQuestion() != null ? attente.getQuestion() : demande.getQuestion();
+					System.arraycopy(question, 0, decodeur.getData(),
+							decodeur.getOffset() + DNSMessageDecoder.HEADER_SIZE, question.length);
+					PacketChannel retour = attente.getChannel() != null ? attente.getChannel() : canal;
+					try
+					{
+						retour.send(relayed(decodeur, attente.getPayload(), retour),
+								new InetSocketAddress(attente.getClientAddress(), attente.getClientPort()));
+					} catch (IOException e) {
+						//un demandeur injoignable ne prive pas les suivants de la reponse
+						Log.warn("Probleme d'envoi a " + attente.getClientAddress() + " : " + e);
+					}
+				}
 			}
-//			serveur.close(); //closing server
 		} catch (Exception e) {
-			System.err.println("Probleme de l'execution :");
-			e.printStackTrace(System.err);
+			Log.error("Probleme du traitement :", e);
 		}
 	}
-}
+}
\ No newline at end of file
@@ -31,7 +31,8 @@ import java.net.UnknownHostException;
 		try {
 			if(sendsocket == null) SendSocket = new DatagramSocket();
 			else SendSocket = sendsocket;
-			System.out.println("Construction d'un socket d'envoi sur port="+SendSocket.getLocalPort());
+			if(Log.isDebug())
+				Log.debug("Construction d'un socket d'envoi sur port="+SendSocket.getLocalPort());
 	
 			this.dest_port = destport;
 			this.dest_ip = destip;
@@ -56,7 +57,8 @@ import java.net.UnknownHostException;
 		try {
 			if(sendsocket == null) SendSocket = new DatagramSocket();
 			else SendSocket = sendsocket;
-			System.out.println("Construction d'un socket d'envoi sur port="+SendSocket.getLocalPort());
+			if(Log.isDebug())
+				Log.debug("Construction d'un socket d'envoi sur port="+SendSocket.getLocalPort());
 
 			this.dest_port = port;
 			this.addr = address;
@@ -106,11 +108,11 @@ import java.net.UnknownHostException;
 			packet.setAddress(addr);
 			packet.setPort(dest_port);
 			//Envoi le packet
-			System.out.println("Sending packet to adr="+dest_ip+" port="+dest_port+ "srcport="+SendSocket.getLocalPort());
+			if(Log.isDebug())
+				Log.debug("Sending packet to adr="+dest_ip+" port="+dest_port+ "srcport="+SendSocket.getLocalPort());
 			SendSocket.send(packet);
 		} catch (Exception e) {
-			System.err.println("Probleme a l'execution :");
-			e.printStackTrace(System.err);
+			Log.error("Probleme a l'execution :", e);
 		}
 	}
 }
@@ -0,0 +1,25 @@
+import java.io.IOException;
+
+/**
+ * Transport UDP du serveur : ecoute sur le port DNS et transmet chaque
+ * paquet recu a un PacketHandler.
+ * @author lighta
+ */
+public interface UDPTransport {
+	/**
+	 * Boucle de reception, bloque jusqu'a close()
+	 * @param handler : traitement des paquets recus
+	 * @throws IOException si le port ne peut etre ouvert
+	 */
+	void serve(PacketHandler handler) throws IOException;
+
+	/**
+	 * Ferme les sockets et arrete la reception
+	 */
+	void close();
+
+	/**
+	 * @return description du transport pour les traces
+	 */
+	String describe();
+}
@@ -0,0 +1,417 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ensemble des serveurs DNS de redirection.
+ *
+ * Pour chaque serveur on garde une moyenne mobile exponentielle (EWMA) du
+ * temps de reponse, le nombre de requetes en cours et des compteurs
+ * d'envois, de reponses, d'expirations et d'erreurs. Le serveur d'une
+ * requete est choisi parmi les serveurs disponibles par la regle des deux
+ * choix : on en tire deux au hasard et on garde celui dont la latence
+ * ponderee par les requetes en cours est la plus faible.
+ *
+ * Un serveur est retire apres plusieurs echecs consecutifs (expiration ou
+ * erreur d'envoi). Un thread de surveillance l'interroge ensuite
+ * periodiquement (requete NS de la racine) et le remet en service des
+ * qu'il repond. Si aucun serveur n'est disponible, on choisit quand meme
+ * parmi tous les serveurs.
+ * @author lighta
+ */
+public class UpstreamPool implements Runnable {
+	private final static double EWMA_ALPHA = 0.3; //poids de la nouvelle mesure
+
+	/**
+	 * Serveur DNS de redirection et ses statistiques
+	 */
+	public static class Upstream {
+		private final InetSocketAddress address;
+		private final AtomicLong ewmaNanos = new AtomicLong(); //0 = pas encore mesure
+		private final AtomicInteger inflight = new AtomicInteger();
+		private final AtomicInteger failures = new AtomicInteger(); //echecs consecutifs
+		private volatile boolean healthy = true;
+		private volatile long lastAnswer = System.nanoTime();
+
+		private final LongAdder sent = new LongAdder();
+		private final LongAdder answers = new LongAdder();
+		private final LongAdder timeouts = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+
+		Upstream(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		public InetSocketAddress getAddress() {
+			return address;
+		}
+
+		public boolean isHealthy() {
+			return healthy;
+		}
+
+		/**
+		 * @return latence moyenne (EWMA) en millisecondes
+		 */
+		public double getRttMillis() {
+			return ewmaNanos.get() / 1e6;
+		}
+
+		public int getInflight() {
+			return inflight.get();
+		}
+
+		public long getSentCount() {
+			return sent.sum();
+		}
+
+		public long getAnswerCount() {
+			return answers.sum();
+		}
+
+		public long getTimeoutCount() {
+			return timeouts.sum();
+		}
+
+		public long getErrorCount() {
+			return errors.sum();
+		}
+
+		/**
+		 * Cout utilise pour la selection : latence x (requetes en cours + 1)
+		 */
+		private double cost() {
+			return (double) ewmaNanos.get() * (inflight.get() + 1);
+		}
+
+		private void sample(long rttNanos) {
+			ewmaNanos.updateAndGet(ancien -> ancien == 0 ? rttNanos
+					: (long) (ancien + EWMA_ALPHA * (rttNanos - ancien)));
+		}
+
+		@Override
+		public String toString() {
+			return address.getAddress().getHostAddress() + ":" + address.getPort()
+					+ (healthy ? " up" : " down") + String.format(" rtt=%.1fms", getRttMillis())
+					+ " inflight=" + getInflight() + " sent=" + getSentCount() + " answers=" + getAnswerCount()
+					+ " timeouts=" + getTimeoutCount() + " errors=" + getErrorCount();
+		}
+	}
+
+	private final Upstream[] upstreams;
+	private final int maxFailures;
+	private final long intervalMs; //periode de surveillance
+	private final Thread checker;
+	private volatile Runnable maintenance = null; //tache periodique supplementaire
+	private volatile boolean stop = false;
+
+	/**
+	 * @param addresses : serveurs DNS de redirection
+	 * @param maxFailures : nombre d'echecs consecutifs avant le retrait d'un serveur
+	 * @param intervalMs : periode de surveillance des serveurs (ms)
+	 */
+	public UpstreamPool(List<InetSocketAddress> addresses, int maxFailures, long intervalMs) {
+		if (addresses.isEmpty())
+			throw new IllegalArgumentException("Aucun serveur DNS de redirection");
+		this.upstreams = new Upstream[addresses.size()];
+		for (int i = 0; i < upstreams.length; i++) {
+			upstreams[i] = new Upstream(addresses.get(i));
+		}
+		this.maxFailures = Math.max(1, maxFailures);
+		this.intervalMs = Math.max(10, intervalMs);
+		this.checker = new Thread(this, "dns-upstream-health");
+		this.checker.setDaemon(true);
+	}
+
+	/**
+	 * Lit une liste de serveurs "ip[:port],ip[:port],..."
+	 * @param liste : serveurs separes par des virgules
+	 * @param defaultPort : port utilise lorsqu'il n'est pas precise
+	 * @return les adresses des serveurs
+	 * @throws IOException si un serveur ne peut etre resolu
+	 */
+	public static List<InetSocketAddress> parse(String liste, int defaultPort) throws IOException {
+		List<InetSocketAddress> adresses = new ArrayList<>();
+		for (String serveur : liste.split(",")) {
+			serveur = serveur.trim();
+			if (serveur.isEmpty())
+				continue;
+			int port = defaultPort;
+			int deuxPoints = serveur.lastIndexOf(':');
+			if (deuxPoints > 0 && serveur.indexOf(':') == deuxPoints) { //pas d'IPv6 sans port
+				try {
+					port = Integer.parseInt(serveur.substring(deuxPoints + 1));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Port invalide pour le serveur DNS " + serveur);
+				}
+				serveur = serveur.substring(0, deuxPoints);
+			}
+			adresses.add(new InetSocketAddress(InetAddress.getByName(serveur), port));
+		}
+		return adresses;
+	}
+
+	/**
+	 * Demarre la surveillance des serveurs
+	 * @return this
+	 */
+	public UpstreamPool start() {
+		checker.start();
+		return this;
+	}
+
+	/**
+	 * @param maintenance : tache executee a chaque periode de surveillance
+	 * (ex : retrait des requetes expirees)
+	 */
+	public void setMaintenance(Runnable maintenance) {
+		this.maintenance = maintenance;
+	}
+
+	/**
+	 * Choisi le serveur d'une requete (deux choix parmi les serveurs disponibles)
+	 * @return le serveur
+	 */
+	public Upstream select() {
+		return select(null);
+	}
+
+	/**
+	 * Choisi le serveur d'une requete en evitant si possible un serveur
+	 * @param eviter : serveur a eviter (ex : celui qui n'a pas repondu), peut etre null
+	 * @return le serveur
+	 */
+	public Upstream select(Upstream eviter) {
+		if (upstreams.length == 1)
+			return upstreams[0];
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int candidats = 0;
+		for (Upstream u : upstreams) {
+			if (u.healthy && u != eviter)
+				candidats++;
+		}
+		if (candidats == 0) { //aucun serveur disponible : tous les serveurs sauf eviter
+			if (eviter == null)
+				return upstreams[random.nextInt(upstreams.length)];
+			return upstreams[(indexOf(eviter) + 1 + random.nextInt(upstreams.length - 1)) % upstreams.length];
+		}
+		//deux candidats distincts tires au hasard, sans allocation
+		int i = random.nextInt(candidats);
+		int j = candidats > 1 ? random.nextInt(candidats - 1) : -1;
+		if (j >= i)
+			j++;
+		Upstream a = null, b = null;
+		int n = 0;
+		for (Upstream u : upstreams) {
+			if (!u.healthy || u == eviter)
+				continue;
+			if (n == i)
+				a = u;
+			else if (n == j)
+				b = u;
+			n++;
+		}
+		if (b == null)
+			return a;
+		return a.cost() <= b.cost() ? a : b;
+	}
+
+	private int indexOf(Upstream u) {
+		for (int i = 0; i < upstreams.length; i++) {
+			if (upstreams[i] == u)
+				return i;
+		}
+		return 0;
+	}
+
+	/**
+	 * @param address : adresse d'un serveur
+	 * @return le serveur, null s'il ne fait pas partie de l'ensemble
+	 */
+	public Upstream find(InetSocketAddress address) {
+		for (Upstream u : upstreams) {
+			if (u.address.equals(address))
+				return u;
+		}
+		return null;
+	}
+
+	/**
+	 * Une requete a ete envoyee au serveur
+	 */
+	public void recordSent(Upstream u) {
+		u.sent.increment();
+		u.inflight.incrementAndGet();
+	}
+
+	/**
+	 * Le serveur a repondu
+	 * @param rttNanos : temps de reponse
+	 * @param rcode : code de retour de la reponse
+	 */
+	public void recordAnswer(Upstream u, long rttNanos, int rcode) {
+		u.inflight.decrementAndGet();
+		u.answers.increment();
+		u.sample(rttNanos);
+		u.lastAnswer = System.nanoTime();
+		if (rcode == UDPErrorPacketCreator.RCODE_SERVFAIL || rcode == UDPErrorPacketCreator.RCODE_REFUSED)
+			u.errors.increment(); //le serveur repond, il reste disponible
+		success(u);
+	}
+
+	/**
+	 * Une requete envoyee au serveur a expire sans reponse
+	 */
+	public void recordTimeout(Upstream u) {
+		u.inflight.decrementAndGet();
+		u.timeouts.increment();
+		failure(u);
+	}
+
+	/**
+	 * L'envoi vers le serveur a echoue
+	 */
+	public void recordError(Upstream u) {
+		u.inflight.decrementAndGet();
+		u.errors.increment();
+		failure(u);
+	}
+
+	private void success(Upstream u) {
+		u.failures.set(0);
+		if (!u.healthy) {
+			u.healthy = true;
+			Log.info("Serveur DNS de nouveau disponible : " + u);
+		}
+	}
+
+	private void failure(Upstream u) {
+		if (u.failures.incrementAndGet() >= maxFailures && u.healthy) {
+			u.healthy = false;
+			Log.warn("Serveur DNS retire apres " + maxFailures + " echecs : " + u);
+		}
+	}
+
+	/**
+	 * Surveillance : interroge les serveurs retires, et ceux sans reponse
+	 * depuis une periode, pour mesurer leur latence et les remettre en service
+	 */
+	@Override
+	public void run() {
+		try (DatagramSocket sonde = new DatagramSocket()) {
+			byte[] reception = new byte[512];
+			int[] ids = new int[upstreams.length];
+			long[] envois = new long[upstreams.length];
+			while (!stop) {
+				Thread.sleep(intervalMs);
+				Runnable tache = maintenance;
+				if (tache != null)
+					tache.run();
+				probe(sonde, reception, ids, envois);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			Log.error("Probleme de surveillance des serveurs DNS :", e);
+		}
+	}
+
+	/**
+	 * Envoie une requete NS de la racine a chaque serveur a surveiller puis
+	 * attend leurs reponses jusqu'a une echeance commune (une periode) :
+	 * un serveur muet ne retarde pas les autres ni la maintenance
+	 * @param ids : identifiant de la sonde de chaque serveur (-1 = pas de sonde en cours)
+	 * @param envois : instant d'envoi de chaque sonde
+	 */
+	private void probe(DatagramSocket sonde, byte[] reception, int[] ids, long[] envois) throws IOException {
+		long debut = System.nanoTime();
+		int enAttente = 0;
+		for (int i = 0; i < upstreams.length; i++) {
+			Upstream u = upstreams[i];
+			ids[i] = -1;
+			if (u.healthy && debut - u.lastAnswer < TimeUnit.MILLISECONDS.toNanos(intervalMs))
+				continue;
+			int id = ThreadLocalRandom.current().nextInt(0x10000);
+			byte[] requete = { (byte) (id >>> 8), (byte) id, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, //en-tete, RD = 0
+					0, 0, (byte) DNSMessageDecoder.TYPE_NS, 0, (byte) DNSMessageDecoder.CLASS_IN }; //". NS IN"
+			envois[i] = System.nanoTime();
+			try {
+				sonde.send(new DatagramPacket(requete, requete.length, u.address));
+			} catch (IOException e) {
+				u.errors.increment();
+				failure(u);
+				continue;
+			}
+			ids[i] = id;
+			enAttente++;
+		}
+		long echeance = debut + TimeUnit.MILLISECONDS.toNanos(intervalMs);
+		DatagramPacket paquet = new DatagramPacket(reception, reception.length);
+		while (enAttente > 0) {
+			long reste = TimeUnit.NANOSECONDS.toMillis(echeance - System.nanoTime());
+			if (reste <= 0)
+				break;
+			sonde.setSoTimeout((int) reste);
+			try {
+				sonde.receive(paquet);
+			} catch (SocketTimeoutException e) {
+				break;
+			}
+			if (paquet.getLength() < 2)
+				continue;
+			int id = (reception[0] & 0xFF) << 8 | (reception[1] & 0xFF);
+			for (int i = 0; i < upstreams.length; i++) {
+				Upstream u = upstreams[i];
+				if (ids[i] != id || !u.address.equals(paquet.getSocketAddress()))
+					continue;
+				ids[i] = -1;
+				enAttente--;
+				u.sample(System.nanoTime() - envois[i]);
+				u.lastAnswer = System.nanoTime();
+				success(u);
+				break;
+			}
+		}
+		// *Serveurs sans reponse a l'echeance
+		for (int i = 0; i < upstreams.length; i++) {
+			if (ids[i] < 0)
+				continue;
+			upstreams[i].timeouts.increment();
+			failure(upstreams[i]);
+		}
+	}
+
+	/**
+	 * Arrete la surveillance
+	 */
+	public void close() {
+		stop = true;
+		checker.interrupt();
+	}
+
+	/**
+	 * @return les serveurs
+	 */
+	public Upstream[] getUpstreams() {
+		return upstreams.clone();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("UpstreamPool[");
+		for (int i = 0; i < upstreams.length; i++) {
+			sb.append(i == 0 ? "" : ", ").append(upstreams[i]);
+		}
+		return sb.append(']').toString();
+	}
+}
@@ -0,0 +1,43 @@
+import java.util.function.BiConsumer;
+
+/**
+ * Source des correspondances hostname -> adresses IPv4 de la zone locale.
+ * Implementee par l'index en memoire (ZoneStore) et par le snapshot binaire
+ * projete en memoire (ZoneSnapshot).
+ * @author lighta
+ */
+public interface ZoneLookup {
+	/**
+	 * Recherche toutes les adresses d'un hostname.
+	 * NB : le tableau retourne peut etre partage, il ne doit pas etre modifie
+	 * @param hostname : adresse dns a chercher
+	 * @return les adresses (ip v4 sous forme d'entier), tableau vide si absent
+	 */
+	int[] lookup(String hostname);
+
+	/**
+	 * Retourne la section reponse pre-encodee d'un hostname
+	 * (construite a chaque appel par defaut)
+	 * @param hostname : adresse dns a chercher
+	 * @return le template, ou null si le nom est absent
+	 */
+	default AnswerTemplate template(String hostname) {
+		return AnswerTemplate.forAddresses(lookup(hostname));
+	}
+
+	/**
+	 * @return nombre de hostnames dans la zone
+	 */
+	int size();
+
+	/**
+	 * Parcours l'ensemble de la zone
+	 * @param visitor : appele pour chaque hostname
+	 */
+	void forEach(BiConsumer<String, int[]> visitor);
+
+	/**
+	 * @return fichier source de la zone
+	 */
+	String getFilename();
+}
@@ -0,0 +1,174 @@
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BiConsumer;
+
+/**
+ * Zone lue directement dans un snapshot binaire projete en memoire (mmap,
+ * lecture seule). Rien n'est deserialise au demarrage : l'ouverture est
+ * immediate quelle que soit la taille de la zone, les pages sont chargees
+ * par le systeme a la demande et partagees entre les processus via le
+ * cache de pages.
+ *
+ * Format du fichier (big endian), produit par ZoneSnapshotCompiler :
+ * 	en-tete (32 octets) : MAGIC, VERSION, nombre de noms, nombre d'adresses,
+ * 	                      taille de la table, offset de la table, des noms, des adresses
+ * 	table de hachage : tableSize entiers, offset du nom dans la section noms + 1
+ * 	                   (0 = case vide), sondage lineaire, hachage FNV-1a du nom
+ * 	section noms : pour chaque nom, longueur (1 octet), nom en minuscule,
+ * 	               nombre d'adresses (2 octets), indice de la premiere adresse (4 octets)
+ * 	section adresses : adresses IPv4 de 4 octets, regroupees par nom
+ *
+ * Un mapping Java est limite a 2 Go, ce qui suffit pour plusieurs dizaines
+ * de millions de noms.
+ * @author lighta
+ */
+public class ZoneSnapshot implements ZoneLookup {
+	public final static int MAGIC = 0x444E535A; //"DNSZ"
+	public final static int VERSION = 1;
+	public final static int HEADER_SIZE = 32;
+
+	private final String filename;
+	private final MappedByteBuffer map;
+	private final int names; //nombre de noms
+	private final int tableSize; //puissance de 2
+	private final int tableOffset, namesOffset, addrsOffset;
+
+	private ZoneSnapshot(String filename, MappedByteBuffer map) throws IOException {
+		this.filename = filename;
+		this.map = map;
+		if (map.capacity() < HEADER_SIZE || map.getInt(0) != MAGIC || map.getInt(4) != VERSION)
+			throw new IOException("Snapshot de zone invalide : " + filename);
+		names = map.getInt(8);
+		tableSize = map.getInt(16);
+		tableOffset = map.getInt(20);
+		namesOffset = map.getInt(24);
+		addrsOffset = map.getInt(28);
+		if (Integer.bitCount(tableSize) != 1 || tableOffset + 4L * tableSize > map.capacity())
+			throw new IOException("Snapshot de zone invalide : " + filename);
+	}
+
+	/**
+	 * Projette un snapshot en memoire
+	 * @param filename : fichier produit par ZoneSnapshotCompiler
+	 * @return la zone
+	 * @throws IOException si le fichier est illisible ou invalide
+	 */
+	public static ZoneSnapshot open(String filename) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Snapshot de zone trop grand (> 2 Go) : " + filename);
+			//le mapping reste valide apres la fermeture du canal
+			return new ZoneSnapshot(filename, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * @param filename : fichier a tester
+	 * @return true si le fichier commence par l'en-tete d'un snapshot
+	 */
+	public static boolean isSnapshot(String filename) {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(filename))) {
+			return in.readInt() == MAGIC;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public int[] lookup(String hostname) {
+		int len = hostname.length();
+		if (len > 0 && hostname.charAt(len - 1) == '.')
+			len--;
+		if (len == 0 || len > 255)
+			return NO_ADDRESS;
+
+		int masque = tableSize - 1;
+		int slot = hash(hostname, len) & masque;
+		for (int i = 0; i < tableSize; i++) {
+			int ref = map.getInt(tableOffset + 4 * ((slot + i) & masque));
+			if (ref == 0)
+				return NO_ADDRESS; //case vide : absent
+			int pos = namesOffset + ref - 1;
+			if (matches(pos, hostname, len))
+				return addresses(pos + 1 + len);
+		}
+		return NO_ADDRESS;
+	}
+
+	/**
+	 * Lit les adresses qui suivent un nom
+	 * @param pos : position du nombre d'adresses
+	 */
+	private int[] addresses(int pos) {
+		int count = map.getShort(pos) & 0xFFFF;
+		int first = map.getInt(pos + 2);
+		int[] adresses = new int[count];
+		for (int i = 0; i < count; i++) {
+			adresses[i] = map.getInt(addrsOffset + 4 * (first + i));
+		}
+		return adresses;
+	}
+
+	/**
+	 * Compare le nom a la position pos avec hostname, sans allocation
+	 */
+	private boolean matches(int pos, String hostname, int len) {
+		if ((map.get(pos) & 0xFF) != len)
+			return false;
+		for (int i = 0; i < len; i++) {
+			if ((map.get(pos + 1 + i) & 0xFF) != (lower(hostname.charAt(i)) & 0xFF))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int size() {
+		return names;
+	}
+
+	@Override
+	public void forEach(BiConsumer<String, int[]> visitor) {
+		int pos = namesOffset;
+		char[] nom = new char[255];
+		for (int n = 0; n < names; n++) {
+			int len = map.get(pos) & 0xFF;
+			for (int i = 0; i < len; i++) {
+				nom[i] = (char) (map.get(pos + 1 + i) & 0xFF);
+			}
+			visitor.accept(new String(nom, 0, len), addresses(pos + 1 + len));
+			pos += 1 + len + 6;
+		}
+	}
+
+	@Override
+	public String getFilename() {
+		return filename;
+	}
+
+	private static final int[] NO_ADDRESS = new int[0];
+
+	static char lower(char c) {
+		return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+	}
+
+	/**
+	 * Hachage FNV-1a (32 bits) du nom en minuscule, un octet par caractere.
+	 * Doit rester identique a celui utilise par ZoneSnapshotCompiler.
+	 */
+	static int hash(String name, int len) {
+		int h = 0x811C9DC5;
+		for (int i = 0; i < len; i++) {
+			h ^= lower(name.charAt(i)) & 0xFF;
+			h *= 0x01000193;
+		}
+		//melange final pour mieux repartir les bits faibles utilises par le masque
+		h ^= h >>> 16;
+		return h;
+	}
+}
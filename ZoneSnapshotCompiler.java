@@ -0,0 +1,120 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compile un fichier de zone texte ("hostname ip" par ligne) en snapshot
+ * binaire compact, lisible directement par ZoneSnapshot sans
+ * deserialisation (voir ZoneSnapshot pour le format).
+ *
+ * Le snapshot ne fait que des recherches exactes : une zone avec des jokers
+ * ("*.svc.internal") est refusee plutot que de ne repondre qu'au nom "*."
+ * litteral une fois compilee.
+ *
+ * Usage : java ZoneSnapshotCompiler <zone texte> <snapshot>
+ * (ou ServeurDNS compile <zone texte> <snapshot>)
+ * @author lighta
+ */
+public class ZoneSnapshotCompiler {
+
+	public static void main(String[] args) {
+		if (args.length != 2) {
+			System.out.println("Usage: ZoneSnapshotCompiler <Fichier DNS> <snapshot>");
+			System.exit(1);
+		}
+		try {
+			long debut = System.currentTimeMillis();
+			int noms = compile(args[0], args[1]);
+			System.out.println(noms + " noms compiles dans " + args[1] + " en "
+					+ (System.currentTimeMillis() - debut) + " ms");
+		} catch (IOException e) {
+			Log.error("Compilation de " + args[0] + " impossible :", e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Compile un fichier de zone texte en snapshot
+	 * @param zoneFile : fichier de zone texte
+	 * @param snapshotFile : snapshot a ecrire
+	 * @return nombre de noms ecrits
+	 * @throws IOException
+	 */
+	public static int compile(String zoneFile, String snapshotFile) throws IOException {
+		ZoneStore zone = ZoneStore.load(zoneFile);
+
+		//noms et adresses, dans l'ordre d'ecriture
+		List<String> noms = new ArrayList<>(zone.size());
+		List<int[]> adresses = new ArrayList<>(zone.size());
+		List<String> jokers = new ArrayList<>();
+		zone.forEach((nom, adrs) -> {
+			if (nom.equals(ZoneStore.WILDCARD) || nom.startsWith(ZoneStore.WILDCARD + "."))
+				jokers.add(nom);
+			if (nom.length() > 0 && nom.length() <= 255) {
+				noms.add(nom);
+				adresses.add(adrs.length > 0xFFFF ? Arrays.copyOf(adrs, 0xFFFF) : adrs);
+			}
+		});
+		zone = null; //libere l'index texte avant de construire la table
+		if (!jokers.isEmpty())
+			throw new IOException("Les jokers ne sont pas supportes par le snapshot (" + jokers.size()
+					+ " noms, ex. " + jokers.get(0) + "), garder la zone texte");
+
+		//table de hachage a au plus 50% de remplissage
+		int tableSize = Integer.highestOneBit(Math.max(1, noms.size()) * 2 - 1) << 1;
+		int[] table = new int[tableSize];
+		long namesSize = 0;
+		long addrCount = 0;
+		for (int n = 0; n < noms.size(); n++) {
+			String nom = noms.get(n);
+			int slot = ZoneSnapshot.hash(nom, nom.length()) & (tableSize - 1);
+			while (table[slot] != 0)
+				slot = (slot + 1) & (tableSize - 1);
+			table[slot] = (int) namesSize + 1;
+			namesSize += 1 + nom.length() + 6;
+			addrCount += adresses.get(n).length;
+		}
+
+		long tableOffset = ZoneSnapshot.HEADER_SIZE;
+		long namesOffset = tableOffset + 4L * tableSize;
+		long addrsOffset = namesOffset + namesSize;
+		if (addrsOffset + 4 * addrCount > Integer.MAX_VALUE)
+			throw new IOException("Zone trop grande pour un snapshot (> 2 Go)");
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(snapshotFile), 1 << 16))) {
+			out.writeInt(ZoneSnapshot.MAGIC);
+			out.writeInt(ZoneSnapshot.VERSION);
+			out.writeInt(noms.size());
+			out.writeInt((int) addrCount);
+			out.writeInt(tableSize);
+			out.writeInt((int) tableOffset);
+			out.writeInt((int) namesOffset);
+			out.writeInt((int) addrsOffset);
+			for (int ref : table) {
+				out.writeInt(ref);
+			}
+			int premiere = 0;
+			for (int n = 0; n < noms.size(); n++) {
+				String nom = noms.get(n);
+				out.writeByte(nom.length());
+				for (int i = 0; i < nom.length(); i++) {
+					out.writeByte(nom.charAt(i)); //deja en minuscule (ZoneStore)
+				}
+				out.writeShort(adresses.get(n).length);
+				out.writeInt(premiere);
+				premiere += adresses.get(n).length;
+			}
+			for (int[] adrs : adresses) {
+				for (int adr : adrs) {
+					out.writeInt(adr);
+				}
+			}
+		}
+		return noms.size();
+	}
+}
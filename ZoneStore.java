@@ -0,0 +1,391 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Index en memoire du fichier de correspondance (hostname -> adresses IPv4).
+ * Le fichier est lu une seule fois au chargement.
+ *
+ * Les noms sont ranges dans un arbre de labels inverses (com -> example ->
+ * www) : une recherche descend un label a la fois, son cout depend du
+ * nombre de labels du nom et non de la taille de la zone. Chaque noeud
+ * garde ses fils dans une petite table de hachage ouverte, parcourue
+ * directement sur les caracteres du nom demande (sans sous-chaine ni
+ * allocation). Les labels identiques sont partages entre les noeuds.
+ *
+ * Le fichier peut contenir des jokers : "*.svc.internal 10.0.0.5" repond
+ * pour tout nom sous svc.internal qui n'est pas dans la zone. Comme dans
+ * la RFC 4592, seul le joker du plus proche englobant (le plus long suffixe
+ * present dans l'arbre) est utilise, et un nom present sans adresse ne
+ * recoit pas celles du joker. Le snapshot binaire ne gere pas les jokers
+ * (ZoneSnapshotCompiler les refuse).
+ *
+ * Les ajouts (chargement, --record) sont serialises ; les recherches ne
+ * prennent aucun verrou. Les adresses sont conservees sous forme d'entier
+ * (4 octets, big endian) pour eviter de reparser les chaines a chaque
+ * requete. La section reponse de chaque nom est encodee a la premiere
+ * demande puis reutilisee.
+ * @author lighta
+ */
+public class ZoneStore implements ZoneLookup {
+	private static final int[] NO_ADDRESS = new int[0];
+	public static final String WILDCARD = "*";
+	private static final int WILDCARD_HASH = hash(WILDCARD, 0, 1);
+
+	/**
+	 * Noeud de l'arbre : un label et, si le nom existe dans la zone, ses adresses
+	 */
+	private static final class Node {
+		private final String label; //minuscule, partage entre les noeuds ("" pour la racine)
+		private final int hash;
+		private volatile Node[] children = null; //table ouverte (sondage lineaire), null sans fils
+		private int childCount = 0; //modifie sous le verrou de la zone
+		private volatile int[] adresses = null; //null si le nom n'a pas d'adresse
+		private volatile AnswerTemplate template = null; //section reponse encodee a la premiere demande
+
+		Node(String label, int hash) {
+			this.label = label;
+			this.hash = hash;
+		}
+
+		/**
+		 * Fils dont le label est name[start, end[ (casse ignoree)
+		 * @return le fils, null s'il n'existe pas
+		 */
+		Node child(String name, int start, int end, int h) {
+			Node[] table = children;
+			if (table == null)
+				return null;
+			int masque = table.length - 1;
+			for (int i = h & masque;; i = (i + 1) & masque) {
+				Node n = table[i];
+				if (n == null)
+					return null; //la table n'est jamais pleine
+				if (n.hash == h && n.matches(name, start, end))
+					return n;
+			}
+		}
+
+		private boolean matches(String name, int start, int end) {
+			if (label.length() != end - start)
+				return false;
+			for (int i = 0; i < label.length(); i++) {
+				if (label.charAt(i) != ZoneSnapshot.lower(name.charAt(start + i)))
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Ajoute un fils (sous le verrou de la zone). La table est agrandie
+		 * au dela de la moitie : les lecteurs voient l'ancienne ou la nouvelle.
+		 */
+		Node addChild(String label, int h) {
+			Node n = new Node(label, h);
+			Node[] table = children;
+			if (table == null || 2 * (childCount + 1) > table.length) {
+				Node[] grande = new Node[table == null ? 4 : 2 * table.length];
+				if (table != null)
+					for (Node f : table) {
+						if (f != null)
+							insert(grande, f);
+					}
+				insert(grande, n);
+				children = grande; //publication
+			} else {
+				insert(table, n);
+			}
+			childCount++;
+			return n;
+		}
+
+		private static void insert(Node[] table, Node n) {
+			int masque = table.length - 1;
+			int i = n.hash & masque;
+			while (table[i] != null) {
+				i = (i + 1) & masque;
+			}
+			table[i] = n;
+		}
+	}
+
+	private String filename = null; //fichier source de l'index
+	private final Node root = new Node("", 0);
+	private final Map<String, String> labels = new HashMap<>(); //labels partages (sous le verrou)
+	private volatile int names = 0; //noms avec au moins une adresse
+
+	/**
+	 * Constructeur, index vide
+	 * @param filename : fichier associe a cet index
+	 */
+	public ZoneStore(String filename){
+		this.filename = filename;
+	}
+
+	/**
+	 * Charge le fichier de zone dans un nouvel index.
+	 * Les lignes invalides sont ignorees.
+	 * @param filename : fichier de zone (format "hostname ip" par ligne)
+	 * @return l'index construit
+	 * @throws IOException si le fichier ne peut etre lu
+	 */
+	public static ZoneStore load(String filename) throws IOException {
+		ZoneStore store = new ZoneStore(filename);
+		try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+			String uneligne;
+			while ((uneligne = reader.readLine()) != null) {
+				store.addLine(uneligne);
+			}
+		}
+		return store;
+	}
+
+	/**
+	 * @return file name
+	 */
+	@Override
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * @return nombre de hostnames dans l'index
+	 */
+	@Override
+	public int size() {
+		return names;
+	}
+
+	/**
+	 * Ajoute une ligne "hostname ip" du fichier de zone
+	 * @param uneligne : ligne a ajouter
+	 * @return true si une nouvelle correspondance a ete ajoutee
+	 */
+	boolean addLine(String uneligne) {
+		String[] champs = uneligne.trim().split("\\s+");
+		if (champs.length < 2)
+			return false;
+		try {
+			return add(champs[0], parseIPv4(champs[1]));
+		} catch (IllegalArgumentException e) {
+			return false; //ligne mal formee, on l'ignore
+		}
+	}
+
+	/**
+	 * Ajoute une correspondance a l'index si elle n'y est pas deja
+	 * @param hostname : NS (ex google.com, ou *.svc.internal pour un joker)
+	 * @param adresseIP : ip (v4) sous forme d'entier
+	 * @return true si la correspondance a ete ajoutee
+	 */
+	public synchronized boolean add(String hostname, int adresseIP) {
+		String key = normalize(hostname);
+		if (key.isEmpty())
+			return false;
+		//descente depuis le dernier label, les noeuds manquants sont crees
+		Node node = root;
+		int end = key.length();
+		while (end > 0) {
+			int start = key.lastIndexOf('.', end - 1) + 1;
+			int h = hash(key, start, end);
+			Node enfant = node.child(key, start, end, h);
+			if (enfant == null)
+				enfant = node.addChild(intern(key.substring(start, end)), h);
+			node = enfant;
+			end = start - 1;
+		}
+		int[] adresses = node.adresses;
+		if (adresses == null) {
+			node.adresses = new int[] { adresseIP };
+			names++;
+		} else {
+			for (int adr : adresses) {
+				if (adr == adresseIP)
+					return false;
+			}
+			int[] copie = new int[adresses.length + 1];
+			System.arraycopy(adresses, 0, copie, 0, adresses.length);
+			copie[adresses.length] = adresseIP;
+			node.adresses = copie;
+		}
+		node.template = null; //sera reconstruit avec la nouvelle adresse
+		return true;
+	}
+
+	private String intern(String label) {
+		String partage = labels.putIfAbsent(label, label);
+		return partage == null ? label : partage;
+	}
+
+	/**
+	 * Cherche le noeud qui repond a un nom : le nom lui-meme s'il est dans
+	 * l'arbre, sinon le joker de son plus proche englobant
+	 * @param hostname : adresse dns a chercher (casse ignoree, point final permis)
+	 * @return le noeud, null si aucun ne repond
+	 */
+	private Node find(String hostname) {
+		int end = hostname.length();
+		if (end > 0 && hostname.charAt(end - 1) == '.')
+			end--;
+		if (end == 0)
+			return null;
+		Node node = root;
+		while (end > 0) {
+			int start = hostname.lastIndexOf('.', end - 1) + 1;
+			Node enfant = node.child(hostname, start, end, hash(hostname, start, end));
+			if (enfant == null) {
+				//nom absent : joker du plus proche englobant (RFC 4592)
+				Node joker = node.child(WILDCARD, 0, 1, WILDCARD_HASH);
+				return joker != null && joker.adresses != null ? joker : null;
+			}
+			node = enfant;
+			end = start - 1;
+		}
+		return node.adresses != null ? node : null;
+	}
+
+	/**
+	 * @param hostname : NS a verifier
+	 * @param adresseIP : ip (v4) sous forme d'entier
+	 * @return true si la correspondance existe deja
+	 */
+	public boolean contains(String hostname, int adresseIP) {
+		for (int adr : lookup(hostname)) {
+			if (adr == adresseIP)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Recherche toutes les adresses d'un hostname.
+	 * NB : le tableau retourne est partage, il ne doit pas etre modifie
+	 * @param hostname : adresse dns a chercher
+	 * @return les adresses (tableau vide si absent)
+	 */
+	@Override
+	public int[] lookup(String hostname) {
+		Node node = find(hostname);
+		return node == null ? NO_ADDRESS : node.adresses;
+	}
+
+	/**
+	 * Section reponse encodee du hostname, construite a la premiere demande
+	 * @param hostname : adresse dns a chercher
+	 * @return le template, ou null si absent
+	 */
+	@Override
+	public AnswerTemplate template(String hostname) {
+		Node node = find(hostname);
+		if (node == null)
+			return null;
+		AnswerTemplate template = node.template;
+		if (template == null) {
+			int[] adresses = node.adresses;
+			template = AnswerTemplate.forAddresses(adresses);
+			node.template = template;
+			if (node.adresses != adresses)
+				node.template = null; //ajout concurrent, ne pas garder un template perime
+		}
+		return template;
+	}
+
+	/**
+	 * Parcours l'ensemble de l'index (les jokers avec leur nom, ex *.svc.internal)
+	 * @param visitor : appele pour chaque hostname
+	 */
+	@Override
+	public void forEach(BiConsumer<String, int[]> visitor) {
+		visit(root, "", visitor);
+	}
+
+	private static void visit(Node node, String name, BiConsumer<String, int[]> visitor) {
+		int[] adresses = node.adresses;
+		if (adresses != null)
+			visitor.accept(name, adresses);
+		Node[] table = node.children;
+		if (table == null)
+			return;
+		for (Node enfant : table) {
+			if (enfant != null)
+				visit(enfant, name.isEmpty() ? enfant.label : enfant.label + "." + name, visitor);
+		}
+	}
+
+	/**
+	 * Hachage d'un label (casse ignoree)
+	 * @param name : nom contenant le label
+	 * @param start : debut du label
+	 * @param end : fin du label (exclue)
+	 */
+	private static int hash(String name, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++) {
+			h = 31 * h + ZoneSnapshot.lower(name.charAt(i));
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Les noms DNS ne sont pas sensibles a la casse (ASCII seulement, RFC 4343,
+	 * comme hash et le decodeur : pas de toLowerCase dependant de la locale),
+	 * et on ignore le point final
+	 */
+	static String normalize(String hostname) {
+		int len = hostname.length();
+		if (len > 0 && hostname.charAt(len - 1) == '.')
+			hostname = hostname.substring(0, len - 1);
+		for (int i = 0; i < hostname.length(); i++) {
+			char c = hostname.charAt(i);
+			if (c >= 'A' && c <= 'Z') {
+				char[] nom = hostname.toCharArray();
+				for (int j = i; j < nom.length; j++) {
+					nom[j] = ZoneSnapshot.lower(nom[j]);
+				}
+				return new String(nom);
+			}
+		}
+		return hostname;
+	}
+
+	/**
+	 * Conversion "a.b.c.d" -> entier
+	 * @param adresseIP : ip (v4) en notation pointee
+	 * @return l'adresse sous forme d'entier
+	 * @throws IllegalArgumentException si l'adresse est invalide
+	 */
+	public static int parseIPv4(String adresseIP) {
+		int adr = 0, octet = 0, digits = 0, parts = 0;
+		for (int i = 0; i < adresseIP.length(); i++) {
+			char c = adresseIP.charAt(i);
+			if (c >= '0' && c <= '9') {
+				octet = octet * 10 + (c - '0');
+				if (++digits > 3 || octet > 255)
+					throw new IllegalArgumentException("Invalid adresseIP (" + adresseIP + ")");
+			} else if (c == '.' && digits > 0 && parts < 3) {
+				adr = (adr << 8) | octet;
+				octet = 0;
+				digits = 0;
+				parts++;
+			} else {
+				throw new IllegalArgumentException("Invalid adresseIP (" + adresseIP + ")");
+			}
+		}
+		if (parts != 3 || digits == 0)
+			throw new IllegalArgumentException("Invalid adresseIP (" + adresseIP + ")");
+		return (adr << 8) | octet;
+	}
+
+	/**
+	 * Conversion entier -> "a.b.c.d"
+	 * @param adresseIP : ip (v4) sous forme d'entier
+	 * @return l'adresse en notation pointee
+	 */
+	public static String formatIPv4(int adresseIP) {
+		return ((adresseIP >>> 24) & 0xFF) + "." + ((adresseIP >>> 16) & 0xFF) + "."
+				+ ((adresseIP >>> 8) & 0xFF) + "." + (adresseIP & 0xFF);
+	}
+}
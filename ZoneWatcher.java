@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Surveille le fichier de zone (WatchService sur son repertoire) et
+ * reconstruit l'index en arriere-plan lorsqu'il est modifie ou remplace.
+ * Le nouvel index n'est publie dans le QueryFinder qu'une fois complet,
+ * par un simple echange de reference atomique : une recherche en cours
+ * voit soit l'ancienne zone soit la nouvelle, jamais une table partielle.
+ *
+ * Les modifications rapprochees (ecriture en plusieurs fois) sont
+ * regroupees : on attend que le fichier soit stable pendant le delai de
+ * regroupement avant de recharger.
+ *
+ * Les ajouts du journal (--record) ne provoquent pas de rechargement : ses
+ * lignes sont deja dans l'index. Pour un autre changement, les lignes encore
+ * en file sont rajoutees au nouvel index avant sa publication (AnswerRecorder).
+ * @author lighta
+ */
+public class ZoneWatcher implements Runnable {
+	private final QueryFinder finder;
+	private final Path fichier; //fichier de zone surveille
+	private final long delaiMs; //delai de regroupement des modifications
+	private final WatchService watcher;
+	private final Thread thread;
+	private AnswerRecorder recorder = null; //ecritures du serveur a ignorer
+
+	/**
+	 * @param finder : recherche a mettre a jour
+	 * @param delaiMs : delai de regroupement des modifications (ms)
+	 * @throws IOException si le repertoire ne peut etre surveille
+	 */
+	public ZoneWatcher(QueryFinder finder, long delaiMs) throws IOException {
+		this.finder = finder;
+		this.fichier = Paths.get(finder.getZone().getFilename()).toAbsolutePath();
+		this.delaiMs = delaiMs;
+		this.watcher = FileSystems.getDefault().newWatchService();
+		fichier.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		this.thread = new Thread(this, "dns-zone-watcher");
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Ignore les modifications faites par le journal de l'enregistreur, et
+	 * lui fait completer chaque nouvel index
+	 * @param recorder : enregistrement des reponses (--record), null pour aucun
+	 * @return this
+	 */
+	public ZoneWatcher ignore(AnswerRecorder recorder) {
+		this.recorder = recorder;
+		return this;
+	}
+
+	/**
+	 * Demarre la surveillance
+	 * @return this
+	 */
+	public ZoneWatcher start() {
+		thread.start();
+		return this;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				boolean modifie = pollZoneEvents(key);
+				if (!modifie)
+					continue;
+				//attendre que le fichier ne bouge plus avant de le relire
+				WatchKey suivante;
+				while ((suivante = watcher.poll(delaiMs, TimeUnit.MILLISECONDS)) != null) {
+					pollZoneEvents(suivante);
+				}
+				reload();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			//arret de la surveillance
+		}
+	}
+
+	/**
+	 * @return true si un evenement concerne le fichier de zone
+	 */
+	private boolean pollZoneEvents(WatchKey key) {
+		boolean modifie = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			Object contexte = event.context();
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW
+					|| (contexte instanceof Path && fichier.getFileName().equals(contexte)))
+				modifie = true;
+		}
+		key.reset();
+		return modifie;
+	}
+
+	private void reload() {
+		long debut = System.currentTimeMillis();
+		try {
+			long taille = Files.size(fichier);
+			long modifie = Files.getLastModifiedTime(fichier).toMillis();
+			if (recorder != null && recorder.getJournal().isKnown(taille, modifie))
+				return; //seulement nos propres ajouts
+			ZoneLookup zone;
+			if (recorder == null) {
+				zone = finder.reload();
+			} else {
+				recorder.beginReload();
+				try {
+					zone = finder.reload(z -> recorder.rebase(z, taille, modifie));
+				} catch (IOException | RuntimeException e) {
+					recorder.abortReload();
+					throw e;
+				}
+			}
+			Log.info("Zone rechargee (" + zone.size() + " noms) en "
+					+ (System.currentTimeMillis() - debut) + " ms");
+		} catch (IOException | RuntimeException e) {
+			//on garde la zone courante
+			Log.error("Probleme de rechargement de la zone " + fichier + " :", e);
+		}
+	}
+
+	/**
+	 * Arrete la surveillance
+	 */
+	public void close() {
+		try {
+			watcher.close();
+		} catch (IOException e) {
+			Log.error("Arret de la surveillance de " + fichier + " impossible :", e);
+		}
+		thread.interrupt();
+	}
+}